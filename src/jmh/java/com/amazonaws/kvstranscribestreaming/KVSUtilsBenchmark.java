@@ -0,0 +1,127 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a whole 10 second two-track call per operation, either with the copying
+ * {@link KVSUtils#getByteBufferFromStream}, joining as many frames as fit in the chunk duration,
+ * or with the frame path of the Lambda, which joins the frames of a track into pooled chunks of that duration.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KVSUtilsBenchmark {
+
+    private static final int CALL_SECONDS = 10;
+
+    @Param({"20", "125"})
+    public int frameMillis;
+
+    @Param({"50", "100", "200"})
+    public int chunkMillis;
+
+    private byte[] mkv;
+    private AudioBufferPool bufferPool;
+
+    @Setup
+    public void setup() {
+        mkv = MkvFixtures.connectCall(CALL_SECONDS, frameMillis);
+        int chunkCapacity = (chunkMillis + frameMillis) * 16;
+        bufferPool = new AudioBufferPool(chunkCapacity, 2);
+        bufferPool.preallocate(2);
+    }
+
+    @Benchmark
+    public void getByteBufferFromStream(Blackhole blackhole) throws MkvElementVisitException {
+        Reader reader = new Reader(mkv);
+        ByteBuffer chunk;
+        while ((chunk = KVSUtils.getByteBufferFromStream(reader.streamingMkvReader, reader.fragmentVisitor,
+                reader.tagProcessor, MkvFixtures.CONTACT_ID, Math.max(1, chunkMillis / frameMillis),
+                KVSUtils.TrackName.AUDIO_FROM_CUSTOMER.getName())).remaining() > 0) {
+            blackhole.consume(chunk);
+        }
+    }
+
+    @Benchmark
+    public void assemblePooledChunks(Blackhole blackhole) throws MkvElementVisitException {
+        Reader reader = new Reader(mkv);
+        AudioChunkAssembler chunkAssembler = new AudioChunkAssembler(bufferPool, 16, chunkMillis, chunkMillis);
+        String track = KVSUtils.TrackName.AUDIO_FROM_CUSTOMER.getName();
+        Optional<Frame> frame;
+        while ((frame = KVSUtils.getFrameFromStream(reader.streamingMkvReader, reader.fragmentVisitor,
+                reader.tagProcessor, MkvFixtures.CONTACT_ID)).isPresent()) {
+            if (track.equals(KVSUtils.getTrackName(reader.fragmentVisitor, frame.get()))
+                    && chunkAssembler.append(frame.get().getFrameData())) {
+                consume(blackhole, chunkAssembler.take(false));
+            }
+        }
+        consume(blackhole, chunkAssembler.take(false));
+    }
+
+    private void consume(Blackhole blackhole, ByteBuffer chunk) {
+        if (chunk != null) {
+            blackhole.consume(chunk);
+            bufferPool.release(chunk);
+        }
+    }
+
+    private static class Reader {
+        private final StreamingMkvReader streamingMkvReader;
+        private final KVSContactTagProcessor tagProcessor;
+        private final FragmentMetadataVisitor fragmentVisitor;
+
+        private Reader(byte[] mkv) {
+            streamingMkvReader = StreamingMkvReader.createDefault(
+                    new InputStreamParserByteSource(new ByteArrayInputStream(mkv)));
+            tagProcessor = new KVSContactTagProcessor(MkvFixtures.CONTACT_ID);
+            fragmentVisitor = FragmentMetadataVisitor.create(Optional.of(tagProcessor));
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Builds GetMedia streams shaped like the ones of Amazon Connect: two tracks of 8kHz 16bit mono PCM,
+ * clusters of 2 seconds tagged with the ContactId, and speech alternating between the customer and the agent.
+ * Also usable on its own to write a replay fixture for {@link KVSReplayMain}:
+ * MkvFixtures contactId_fixture.mkv seconds [frameMillis]
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public final class MkvFixtures {
+
+    public static final String CONTACT_ID = "fixture";
+
+    private static final int SAMPLE_RATE = 8000;
+    private static final int CLUSTER_MILLIS = 2000;
+    private static final BigInteger FIRST_FRAGMENT_NUMBER = new BigInteger("91343852333181432392682062607743920146264440578");
+    private static final long START_MILLIS = 1609459200000L;
+
+    private static final long EBML = 0x1A45DFA3L;
+    private static final long DOC_TYPE = 0x4282L;
+    private static final long SEGMENT = 0x18538067L;
+    private static final long INFO = 0x1549A966L;
+    private static final long TIMECODE_SCALE = 0x2AD7B1L;
+    private static final long TRACKS = 0x1654AE6BL;
+    private static final long TRACK_ENTRY = 0xAEL;
+    private static final long TRACK_NUMBER = 0xD7L;
+    private static final long TRACK_UID = 0x73C5L;
+    private static final long TRACK_TYPE = 0x83L;
+    private static final long NAME = 0x536EL;
+    private static final long CODEC_ID = 0x86L;
+    private static final long CLUSTER = 0x1F43B675L;
+    private static final long TIMECODE = 0xE7L;
+    private static final long SIMPLE_BLOCK = 0xA3L;
+    private static final long TAGS = 0x1254C367L;
+    private static final long TAG = 0x7373L;
+    private static final long SIMPLE_TAG = 0x67C8L;
+    private static final long TAG_NAME = 0x45A3L;
+    private static final long TAG_STRING = 0x4487L;
+
+    private MkvFixtures() {
+    }
+
+    /**
+     * @param seconds     duration of the call, rounded to whole clusters
+     * @param frameMillis duration of each frame of each track
+     * @return the GetMedia stream
+     */
+    public static byte[] connectCall(int seconds, int frameMillis) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeConnectCall(out, seconds, frameMillis);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param seconds
+     * @return 8kHz 16bit mono little endian PCM of the customer track, as written to the raw recording
+     */
+    public static byte[] rawAudio(int seconds) {
+        byte[] pcm = new byte[seconds * SAMPLE_RATE * 2];
+        for (int i = 0; i < pcm.length / 2; i++) {
+            short sample = sample(i, 2);
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+
+    public static void writeConnectCall(OutputStream out, int seconds, int frameMillis) throws IOException {
+        int frameSamples = frameMillis * SAMPLE_RATE / 1000;
+        long sampleIndex = 0;
+        for (int clusterMillis = 0; clusterMillis < seconds * 1000; clusterMillis += CLUSTER_MILLIS) {
+            // like GetMedia, each fragment is a Segment of unknown size with its own header and fragment tags
+            out.write(element(EBML, string(DOC_TYPE, "matroska")));
+            out.write(id(SEGMENT));
+            out.write(new byte[]{0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+            out.write(element(INFO, uint(TIMECODE_SCALE, 1000000)));
+            out.write(element(TRACKS, concat(
+                    track(1, KVSUtils.TrackName.AUDIO_TO_CUSTOMER.getName()),
+                    track(2, KVSUtils.TrackName.AUDIO_FROM_CUSTOMER.getName()))));
+            out.write(element(TAGS, concat(
+                    tag("AWS_KINESISVIDEO_FRAGMENT_NUMBER", fragmentNumber(clusterMillis / CLUSTER_MILLIS)),
+                    tag("AWS_KINESISVIDEO_SERVER_TIMESTAMP", timestamp(clusterMillis + 50)),
+                    tag("AWS_KINESISVIDEO_PRODUCER_TIMESTAMP", timestamp(clusterMillis)))));
+
+            ByteArrayOutputStream cluster = new ByteArrayOutputStream();
+            cluster.write(uint(TIMECODE, clusterMillis));
+            for (int relativeMillis = 0; relativeMillis < CLUSTER_MILLIS; relativeMillis += frameMillis) {
+                for (int trackNumber = 1; trackNumber <= 2; trackNumber++) {
+                    cluster.write(element(SIMPLE_BLOCK, simpleBlock(trackNumber, relativeMillis, sampleIndex, frameSamples)));
+                }
+                sampleIndex += frameSamples;
+            }
+            out.write(element(CLUSTER, cluster.toByteArray()));
+            out.write(element(TAGS, tag("ContactId", CONTACT_ID)));
+        }
+    }
+
+    /**
+     * @param index
+     * @return the fragment number of the fragment at the given index, as long as the ones of KVS
+     */
+    public static String fragmentNumber(int index) {
+        return FIRST_FRAGMENT_NUMBER.add(BigInteger.valueOf(index)).toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int frameMillis = args.length > 2 ? Integer.parseInt(args[2]) : 125;
+        try (OutputStream out = Files.newOutputStream(Paths.get(args[0]))) {
+            writeConnectCall(out, Integer.parseInt(args[1]), frameMillis);
+        }
+    }
+
+    // the customer speaks for 2 seconds, then the agent for 2 seconds, with line noise in between
+    private static short sample(long index, int trackNumber) {
+        boolean voiced = ((index / (2 * SAMPLE_RATE)) % 2 == 0) == (trackNumber == 2);
+        return (short) (voiced ? 3000 * Math.sin(index * 0.3) : (index % 7) * 10);
+    }
+
+    private static byte[] simpleBlock(int trackNumber, int relativeMillis, long firstSample, int samples) {
+        byte[] block = new byte[4 + samples * 2];
+        block[0] = (byte) (0x80 | trackNumber);
+        block[1] = (byte) (relativeMillis >> 8);
+        block[2] = (byte) relativeMillis;
+        block[3] = (byte) 0x80; // keyframe
+        for (int i = 0; i < samples; i++) {
+            short sample = sample(firstSample + i, trackNumber);
+            block[4 + 2 * i] = (byte) sample;
+            block[5 + 2 * i] = (byte) (sample >> 8);
+        }
+        return block;
+    }
+
+    private static byte[] tag(String name, String value) throws IOException {
+        return element(TAG, element(SIMPLE_TAG, concat(string(TAG_NAME, name), string(TAG_STRING, value))));
+    }
+
+    // KVS timestamps are in seconds with a millisecond fraction
+    private static String timestamp(long relativeMillis) {
+        long millis = START_MILLIS + relativeMillis;
+        return String.format("%d.%03d", millis / 1000, millis % 1000);
+    }
+
+    private static byte[] track(int trackNumber, String name) throws IOException {
+        return element(TRACK_ENTRY, concat(
+                uint(TRACK_NUMBER, trackNumber),
+                uint(TRACK_UID, trackNumber),
+                uint(TRACK_TYPE, 2), // audio
+                string(NAME, name),
+                string(CODEC_ID, "A_PCM/INT/LIT")));
+    }
+
+    private static byte[] element(long id, byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 12);
+        out.write(id(id));
+        // 8 byte size
+        out.write(0x01);
+        for (int shift = 48; shift >= 0; shift -= 8) {
+            out.write((int) ((long) data.length >> shift));
+        }
+        out.write(data);
+        return out.toByteArray();
+    }
+
+    private static byte[] uint(long id, long value) throws IOException {
+        byte[] data = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            data[i] = (byte) (value >> (8 * (7 - i)));
+        }
+        return element(id, data);
+    }
+
+    private static byte[] string(long id, String value) throws IOException {
+        return element(id, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] id(long id) {
+        int length = id > 0xFFFFFF ? 4 : id > 0xFFFF ? 3 : id > 0xFF ? 2 : 1;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (id >> (8 * (length - 1 - i)));
+        }
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,101 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnsafeByteOperations;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the audio request of a pooled chunk, copying the chunk as InfiniteSpeechStream does or wrapping it,
+ * and serializes it the way gRPC does before sending. Wrapping is only measured as the cost the copy saves,
+ * gRPC may keep the request after the pooled chunk has been reused.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamingRecognizeRequestBenchmark {
+
+    // 20 ms, 4 frames of 125 ms and 16 frames of 125 ms
+    @Param({"320", "8000", "32000"})
+    public int chunkBytes;
+
+    private ByteBuffer chunk;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() {
+        chunk = ByteBuffer.allocateDirect(chunkBytes);
+        chunk.put(MkvFixtures.rawAudio(3), 0, chunkBytes);
+        chunk.flip();
+        serialized = new byte[chunkBytes + 64];
+    }
+
+    @Benchmark
+    public StreamingRecognizeRequest copy() {
+        return StreamingRecognizeRequest.newBuilder()
+                .setAudioContent(ByteString.copyFrom(chunk.duplicate())).build();
+    }
+
+    @Benchmark
+    public StreamingRecognizeRequest unsafeWrap() {
+        return StreamingRecognizeRequest.newBuilder()
+                .setAudioContent(UnsafeByteOperations.unsafeWrap(chunk.duplicate())).build();
+    }
+
+    @Benchmark
+    public int copyAndSerialize() throws IOException {
+        return serialize(copy());
+    }
+
+    @Benchmark
+    public int unsafeWrapAndSerialize() throws IOException {
+        return serialize(unsafeWrap());
+    }
+
+    private int serialize(StreamingRecognizeRequest request) throws IOException {
+        CodedOutputStream output = CodedOutputStream.newInstance(serialized);
+        request.writeTo(output);
+        return output.getTotalBytesWritten();
+    }
+}
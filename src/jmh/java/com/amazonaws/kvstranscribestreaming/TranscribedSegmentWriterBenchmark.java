@@ -0,0 +1,76 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the DynamoDB item of a final segment, as done for every response of Google STT
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TranscribedSegmentWriterBenchmark {
+
+    private static final String TRANSCRIPT = "Thank you for calling. Please hold while I transfer you to the person in charge.";
+
+    private DynamoDBBatchWriter batchWriter;
+    private TranscribedSegmentWriter segmentWriter;
+    private int replyCount = 0;
+
+    @Setup
+    public void setup() {
+        batchWriter = new DynamoDBBatchWriter(new DynamoDB(new LocalDynamoDB()), 200);
+        segmentWriter = new TranscribedSegmentWriter(MkvFixtures.CONTACT_ID,
+                KVSUtils.TrackName.AUDIO_FROM_CUSTOMER.getName(), batchWriter);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        batchWriter.close(1000);
+    }
+
+    @Benchmark
+    public Item toDynamoDbItem() {
+        return segmentWriter.toDynamoDbItem(TRANSCRIPT, "+81312345678", replyCount++,
+                "https://bucket.s3-ap-northeast-1.amazonaws.com/recordings/fixture_AUDIO_FROM_CUSTOMER.wav", 1);
+    }
+}
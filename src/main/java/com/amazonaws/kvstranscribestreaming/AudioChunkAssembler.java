@@ -0,0 +1,211 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Joins the frames of one track into audio chunks held in pooled direct buffers.
+ * Each frame is copied once, straight from the MKV SimpleBlock into the chunk.
+ * Chunks are sized by audio duration, whatever the size of the frames. The target duration moves between
+ * a low latency and a high throughput bound: it grows while audio arrives faster than real time or the
+ * pipeline is behind, when fewer larger requests do not add latency, and shrinks back once the stream is live.
+ * A chunk carries the timecode of its first frame, and the frames of a chunk follow each other without gap.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class AudioChunkAssembler {
+
+    // Audio arriving this many times faster than real time is a backlog, e.g. the start of a GetMedia stream
+    private static final double BACKLOG_ARRIVAL_RATE = 2.0;
+
+    // Timecode of frames whose time is not known
+    public static final long NO_TIMECODE = Long.MIN_VALUE;
+
+    // A frame further than this from the end of the chunk starts a new chunk, so that the gap is kept
+    private static final long MAX_TIMECODE_DRIFT_MILLIS = 10;
+
+    private final AudioBufferPool bufferPool;
+    private final int bytesPerMillisecond;
+    private final int minChunkBytes;
+    private final int maxChunkBytes;
+
+    private int targetBytes;
+    private ByteBuffer chunk = null;
+    private long chunkTimecodeMillis = NO_TIMECODE;
+    private long firstAppendNanos;
+    private long lastAppendNanos;
+    private long lastTakeNanos = System.nanoTime();
+    private long chunks = 0;
+    private long chunkedBytes = 0;
+
+    /**
+     * @param bufferPool
+     * @param bytesPerMillisecond size of one millisecond of audio
+     * @param minChunkMillis      chunk duration while the stream is live, for the lowest latency
+     * @param maxChunkMillis      chunk duration while catching up, for the fewest requests
+     */
+    public AudioChunkAssembler(AudioBufferPool bufferPool, int bytesPerMillisecond, int minChunkMillis, int maxChunkMillis) {
+        this.bufferPool = bufferPool;
+        this.bytesPerMillisecond = bytesPerMillisecond;
+        this.minChunkBytes = minChunkMillis * bytesPerMillisecond;
+        this.maxChunkBytes = Math.max(minChunkMillis, maxChunkMillis) * bytesPerMillisecond;
+        this.targetBytes = minChunkBytes;
+    }
+
+    /**
+     * @return the current target duration of a chunk
+     */
+    public int getTargetMillis() {
+        return targetBytes / bytesPerMillisecond;
+    }
+
+    /**
+     * @return number of chunks taken so far
+     */
+    public long getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return audio duration of the chunks taken so far
+     */
+    public long getChunkedMillis() {
+        return chunkedBytes / bytesPerMillisecond;
+    }
+
+    /**
+     * @return true if frames have been appended since the last {@link #take}
+     */
+    public boolean isPending() {
+        return chunk != null && chunk.position() > 0;
+    }
+
+    /**
+     * @return System.nanoTime() of the first frame appended to the chunk being assembled
+     */
+    public long getFirstAppendNanos() {
+        return firstAppendNanos;
+    }
+
+    /**
+     * @return timecode of the first frame of the chunk being assembled
+     */
+    public long getTimecodeMillis() {
+        return chunkTimecodeMillis;
+    }
+
+    /**
+     * @param timecodeMillis timecode of the next frame
+     * @return true if the frame follows the chunk being assembled without gap or overlap, or if either time is unknown
+     */
+    public boolean continues(long timecodeMillis) {
+        if (!isPending() || timecodeMillis == NO_TIMECODE || chunkTimecodeMillis == NO_TIMECODE) {
+            return true;
+        }
+        long endMillis = chunkTimecodeMillis + chunk.position() / bytesPerMillisecond;
+        return Math.abs(timecodeMillis - endMillis) <= MAX_TIMECODE_DRIFT_MILLIS;
+    }
+
+    /**
+     * @return System.nanoTime() of the last frame appended
+     */
+    public long getLastAppendNanos() {
+        return lastAppendNanos;
+    }
+
+    /**
+     * Copies the frame data into the chunk being assembled.
+     * The frame data may point into the buffer of the MKV reader, so it is not kept after this call.
+     *
+     * @param frameData
+     * @return true if the chunk has reached the target duration
+     */
+    public boolean append(ByteBuffer frameData) {
+        return append(frameData, NO_TIMECODE);
+    }
+
+    /**
+     * Copies the frame data into the chunk being assembled, see {@link #append(ByteBuffer)}
+     *
+     * @param frameData
+     * @param timecodeMillis time of the frame, the chunk takes the one of its first frame
+     * @return true if the chunk has reached the target duration
+     */
+    public boolean append(ByteBuffer frameData, long timecodeMillis) {
+        lastAppendNanos = System.nanoTime();
+        if (chunk == null) {
+            chunk = bufferPool.acquire();
+        }
+        if (chunk.position() == 0) {
+            firstAppendNanos = lastAppendNanos;
+            chunkTimecodeMillis = timecodeMillis;
+        }
+        if (chunk.remaining() < frameData.remaining()) {
+            // the frame is larger than expected, move the chunk to a buffer that is not pooled
+            ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(chunk.capacity() * 2, chunk.position() + frameData.remaining()));
+            chunk.flip();
+            larger.put(chunk);
+            bufferPool.release(chunk);
+            chunk = larger;
+        }
+        chunk.put(frameData);
+        return chunk.position() >= targetBytes;
+    }
+
+    /**
+     * Hands the assembled chunk over to the caller, who must return it with {@link AudioBufferPool#release},
+     * and adapts the target duration of the next chunk
+     *
+     * @param pipelineBacklogged true if the consumers of the chunks are behind
+     * @return the chunk ready to be read, or null if no frame has been appended
+     */
+    public ByteBuffer take(boolean pipelineBacklogged) {
+        ByteBuffer assembled = chunk;
+        chunk = null;
+        if (assembled == null) {
+            return null;
+        }
+        assembled.flip();
+        if (!assembled.hasRemaining()) {
+            bufferPool.release(assembled);
+            return null;
+        }
+        chunks++;
+        chunkedBytes += assembled.remaining();
+        long now = System.nanoTime();
+        adapt(assembled.remaining(), now - lastTakeNanos, pipelineBacklogged);
+        lastTakeNanos = now;
+        return assembled;
+    }
+
+    private void adapt(int chunkBytes, long arrivalNanos, boolean pipelineBacklogged) {
+        // a live stream delivers the audio of a chunk in about as long as it lasts
+        double audioNanos = (double) chunkBytes / bytesPerMillisecond * 1000000;
+        boolean backlog = pipelineBacklogged || audioNanos > arrivalNanos * BACKLOG_ARRIVAL_RATE;
+        if (backlog) {
+            targetBytes = Math.min(maxChunkBytes, targetBytes * 2);
+        } else {
+            targetBytes = Math.max(minChunkBytes, targetBytes / 2);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import io.perfmark.Link;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded ring buffer of audio chunks with a single producer and a fixed number of consumers.
+ * Every consumer sees every chunk in order. A slot is reused only after all consumers have released it,
+ * and the producer blocks while the slowest consumer is a full ring behind.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class AudioChunkRingBuffer {
+
+    /**
+     * A slot of the ring buffer
+     */
+    public static class AudioChunk {
+        private TrackTranscriber trackTranscriber;
+        private ByteBuffer data;
+        private long timecodeMillis;
+        private Link link;
+
+        public TrackTranscriber getTrackTranscriber() {
+            return trackTranscriber;
+        }
+
+        /**
+         * @return the audio of the chunk. Consumers must read it through a duplicate, it is shared between them.
+         */
+        public ByteBuffer getData() {
+            return data;
+        }
+
+        /**
+         * @return time of the first frame of the chunk, or {@link AudioChunkAssembler#NO_TIMECODE}
+         */
+        public long getTimecodeMillis() {
+            return timecodeMillis;
+        }
+
+        /**
+         * @return the PerfMark link from the task that published the chunk
+         */
+        public Link getLink() {
+            return link;
+        }
+    }
+
+    private final AudioChunk[] slots;
+    private final AudioBufferPool bufferPool;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition notEmpty = lock.newCondition();
+
+    // Sequence of the next chunk to be put, and of the next chunk to be released by each consumer
+    private long producerSequence = 0;
+    private final long[] consumerSequences;
+    private final long[] maxDepths;
+    private boolean closed = false;
+
+    private long producerWaits = 0;
+    private long producerWaitNanos = 0;
+
+    public AudioChunkRingBuffer(int capacity, int consumers, AudioBufferPool bufferPool) {
+        this.slots = new AudioChunk[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new AudioChunk();
+        }
+        this.consumerSequences = new long[consumers];
+        this.maxDepths = new long[consumers];
+        this.bufferPool = bufferPool;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Publishes a chunk to all consumers, blocking while the ring is full.
+     * The ring takes over the buffer and returns it to the pool once every consumer has released it.
+     *
+     * @param trackTranscriber
+     * @param data
+     * @param timecodeMillis time of the first frame of the chunk
+     * @param link PerfMark link to the consumers of the chunk
+     * @throws InterruptedException
+     */
+    public void put(TrackTranscriber trackTranscriber, ByteBuffer data, long timecodeMillis, Link link) throws InterruptedException {
+        lock.lock();
+        try {
+            if (producerSequence - minConsumerSequence() >= slots.length) {
+                long waitStart = System.nanoTime();
+                producerWaits++;
+                while (producerSequence - minConsumerSequence() >= slots.length) {
+                    notFull.await();
+                }
+                producerWaitNanos += System.nanoTime() - waitStart;
+            }
+            enqueue(trackTranscriber, data, timecodeMillis, link);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Publishes a chunk to all consumers if the ring has room, without waiting
+     *
+     * @param trackTranscriber
+     * @param data
+     * @param timecodeMillis time of the first frame of the chunk
+     * @param link PerfMark link to the consumers of the chunk
+     * @return false if the ring is full, the buffer then stays with the caller
+     */
+    public boolean offer(TrackTranscriber trackTranscriber, ByteBuffer data, long timecodeMillis, Link link) {
+        lock.lock();
+        try {
+            if (producerSequence - minConsumerSequence() >= slots.length) {
+                return false;
+            }
+            enqueue(trackTranscriber, data, timecodeMillis, link);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(TrackTranscriber trackTranscriber, ByteBuffer data, long timecodeMillis, Link link) {
+        AudioChunk slot = slots[(int) (producerSequence % slots.length)];
+        slot.trackTranscriber = trackTranscriber;
+        slot.data = data;
+        slot.timecodeMillis = timecodeMillis;
+        slot.link = link;
+        producerSequence++;
+        for (int i = 0; i < consumerSequences.length; i++) {
+            maxDepths[i] = Math.max(maxDepths[i], producerSequence - consumerSequences[i]);
+        }
+        notEmpty.signalAll();
+    }
+
+    /**
+     * Waits for the next chunk of the given consumer. The chunk stays valid until {@link #release} is called.
+     *
+     * @param consumer
+     * @return the next chunk, or null once the ring is closed and drained
+     * @throws InterruptedException
+     */
+    public AudioChunk take(int consumer) throws InterruptedException {
+        lock.lock();
+        try {
+            while (consumerSequences[consumer] == producerSequence) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            return slots[(int) (consumerSequences[consumer] % slots.length)];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the chunk returned by the last {@link #take} of the consumer as done
+     *
+     * @param consumer
+     */
+    public void release(int consumer) {
+        lock.lock();
+        try {
+            long oldMin = minConsumerSequence();
+            consumerSequences[consumer]++;
+            long newMin = minConsumerSequence();
+            for (long sequence = oldMin; sequence < newMin; sequence++) {
+                AudioChunk slot = slots[(int) (sequence % slots.length)];
+                bufferPool.release(slot.data);
+                slot.data = null;
+                slot.trackTranscriber = null;
+                slot.link = null;
+            }
+            if (newMin > oldMin) {
+                notFull.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Signals the consumers that no more chunks will be put
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of chunks put so far
+     */
+    public long getPublished() {
+        lock.lock();
+        try {
+            return producerSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param consumer
+     * @return number of chunks the consumer has released so far
+     */
+    public long getReleased(int consumer) {
+        lock.lock();
+        try {
+            return consumerSequences[consumer];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param consumer
+     * @return number of chunks the consumer still has to process
+     */
+    public long getDepth(int consumer) {
+        lock.lock();
+        try {
+            return producerSequence - consumerSequences[consumer];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param consumer
+     * @return the largest number of chunks the consumer has been behind
+     */
+    public long getMaxDepth(int consumer) {
+        lock.lock();
+        try {
+            return maxDepths[consumer];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of times the producer was blocked by a full ring
+     */
+    public long getProducerWaits() {
+        lock.lock();
+        try {
+            return producerWaits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return total time the producer was blocked by a full ring in milliseconds
+     */
+    public long getProducerWaitMillis() {
+        lock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(producerWaitNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long minConsumerSequence() {
+        long min = Long.MAX_VALUE;
+        for (long sequence : consumerSequences) {
+            min = Math.min(min, sequence);
+        }
+        return min;
+    }
+}
@@ -0,0 +1,164 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import io.perfmark.PerfMark;
+import io.perfmark.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decouples reading the KVS stream from the sinks of the audio.
+ * The reader publishes chunks into an {@link AudioChunkRingBuffer}, one thread drains it to Google STT
+ * and another one to the recording files, so a slow sink does not stall the reader or the other sink.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class AudioPipeline {
+
+    public static final int STT_CONSUMER = 0;
+    public static final int RECORDING_CONSUMER = 1;
+
+    private static final Logger logger = LoggerFactory.getLogger(AudioPipeline.class);
+
+    private final AudioChunkRingBuffer ringBuffer;
+    private final Thread sttSender;
+    private final Thread recorder;
+    private final Tag tag;
+
+    public AudioPipeline(String contactId, int capacity, AudioBufferPool bufferPool) {
+        this.ringBuffer = new AudioChunkRingBuffer(capacity, 2, bufferPool);
+        this.sttSender = new Thread(() -> drain(STT_CONSUMER), "stt-sender-" + contactId);
+        this.recorder = new Thread(() -> drain(RECORDING_CONSUMER), "recorder-" + contactId);
+        this.sttSender.setDaemon(true);
+        this.recorder.setDaemon(true);
+        this.tag = PerfMarkTracing.tag(contactId);
+    }
+
+    public AudioChunkRingBuffer getRingBuffer() {
+        return ringBuffer;
+    }
+
+    public void start() {
+        sttSender.start();
+        recorder.start();
+    }
+
+    /**
+     * Hands a chunk over to the sinks, blocking while the slowest sink is a full ring behind
+     *
+     * @param trackTranscriber
+     * @param chunk
+     * @param timecodeMillis time of the first frame of the chunk
+     * @throws InterruptedException
+     */
+    public void publish(TrackTranscriber trackTranscriber, ByteBuffer chunk, long timecodeMillis) throws InterruptedException {
+        ringBuffer.put(trackTranscriber, chunk, timecodeMillis, PerfMark.linkOut());
+    }
+
+    /**
+     * Hands a chunk over to the sinks if the ring has room, without waiting
+     *
+     * @param trackTranscriber
+     * @param chunk
+     * @param timecodeMillis time of the first frame of the chunk
+     * @return false if the slowest sink is a full ring behind, the chunk then stays with the caller
+     */
+    public boolean tryPublish(TrackTranscriber trackTranscriber, ByteBuffer chunk, long timecodeMillis) {
+        return ringBuffer.offer(trackTranscriber, chunk, timecodeMillis, PerfMark.linkOut());
+    }
+
+    /**
+     * @return true if the slowest sink is a quarter of the ring or more behind
+     */
+    public boolean isBacklogged() {
+        long depth = Math.max(ringBuffer.getDepth(STT_CONSUMER), ringBuffer.getDepth(RECORDING_CONSUMER));
+        return depth * 4 >= ringBuffer.getCapacity();
+    }
+
+    /**
+     * @return number of chunks published so far
+     */
+    public long getPublishedChunks() {
+        return ringBuffer.getPublished();
+    }
+
+    /**
+     * @return number of chunks the STT sink has sent to Google so far
+     */
+    public long getSentChunks() {
+        return ringBuffer.getReleased(STT_CONSUMER);
+    }
+
+    /**
+     * Lets the sinks drain the remaining chunks and waits for them to finish
+     *
+     * @param timeoutMillis
+     * @throws InterruptedException
+     */
+    public void close(long timeoutMillis) throws InterruptedException {
+        ringBuffer.close();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        sttSender.join(Math.max(1, deadline - System.currentTimeMillis()));
+        recorder.join(Math.max(1, deadline - System.currentTimeMillis()));
+        if (sttSender.isAlive() || recorder.isAlive()) {
+            logger.warn(String.format("Audio pipeline did not drain within %d ms, stt depth: %d, recording depth: %d",
+                    timeoutMillis, ringBuffer.getDepth(STT_CONSUMER), ringBuffer.getDepth(RECORDING_CONSUMER)));
+        }
+
+        logger.info(String.format("Audio pipeline max depth stt: %d, recording: %d (capacity %d), reader waits: %d (%d ms)",
+                ringBuffer.getMaxDepth(STT_CONSUMER), ringBuffer.getMaxDepth(RECORDING_CONSUMER), ringBuffer.getCapacity(),
+                ringBuffer.getProducerWaits(), ringBuffer.getProducerWaitMillis()));
+    }
+
+    private void drain(int consumer) {
+        boolean failed = false;
+        String taskName = consumer == STT_CONSUMER ? "AudioPipeline.send" : "AudioPipeline.record";
+        try {
+            AudioChunkRingBuffer.AudioChunk chunk;
+            while ((chunk = ringBuffer.take(consumer)) != null) {
+                PerfMark.startTask(taskName, tag);
+                try {
+                    PerfMark.linkIn(chunk.getLink());
+                    if (consumer == STT_CONSUMER) {
+                        chunk.getTrackTranscriber().send(chunk.getData().duplicate());
+                    } else {
+                        chunk.getTrackTranscriber().record(chunk.getData().duplicate(), chunk.getTimecodeMillis());
+                    }
+                } catch (Exception e) {
+                    // keep draining so that the reader and the other sink are not blocked
+                    if (!failed) {
+                        logger.error(String.format("Audio pipeline %s failed to process a chunk, further failures are not logged: ", Thread.currentThread().getName()), e);
+                        failed = true;
+                    }
+                } finally {
+                    ringBuffer.release(consumer);
+                    PerfMark.stopTask(taskName, tag);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the most recent audio sent to Google STT in a preallocated circular buffer,
+ * so that audio which has not been finalized yet can be sent again to a new streaming session.
+ * Positions are absolute byte offsets in the audio of the track.
+ * Not thread safe, it is only used by the STT stage of the audio pipeline.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class AudioReplayBuffer {
+
+    private final byte[] buffer;
+    private long writtenBytes = 0;
+
+    /**
+     * @param capacityBytes bytes of the latest audio kept, 0 to keep none and replay nothing
+     * @throws IllegalArgumentException if the capacity is negative
+     */
+    public AudioReplayBuffer(int capacityBytes) {
+        if (capacityBytes < 0) {
+            throw new IllegalArgumentException("Negative replay capacity " + capacityBytes);
+        }
+        this.buffer = new byte[capacityBytes];
+    }
+
+    /**
+     * @return offset just after the last byte appended
+     */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    /**
+     * @return offset of the oldest byte that can still be read
+     */
+    public long getOldestOffset() {
+        return Math.max(0, writtenBytes - buffer.length);
+    }
+
+    /**
+     * Copies the audio into the buffer, overwriting the oldest audio when full
+     *
+     * @param audio
+     */
+    public void append(ByteBuffer audio) {
+        if (buffer.length == 0) {
+            writtenBytes += audio.remaining();
+            return;
+        }
+        ByteBuffer source = audio.duplicate();
+        if (source.remaining() > buffer.length) {
+            writtenBytes += source.remaining() - buffer.length;
+            source.position(source.limit() - buffer.length);
+        }
+        while (source.hasRemaining()) {
+            int position = (int) (writtenBytes % buffer.length);
+            int length = Math.min(source.remaining(), buffer.length - position);
+            source.get(buffer, position, length);
+            writtenBytes += length;
+        }
+    }
+
+    /**
+     * Copies the audio from the given offset up to the last byte appended
+     *
+     * @param fromOffset
+     * @param maxChunkBytes
+     * @return the audio in chunks of at most maxChunkBytes
+     */
+    public List<ByteString> read(long fromOffset, int maxChunkBytes) {
+        List<ByteString> chunks = new ArrayList<ByteString>();
+        if (buffer.length == 0) {
+            return chunks;
+        }
+        long offset = Math.max(fromOffset, getOldestOffset());
+        while (offset < writtenBytes) {
+            int position = (int) (offset % buffer.length);
+            int length = (int) Math.min(Math.min(writtenBytes - offset, buffer.length - position), maxChunkBytes);
+            chunks.add(ByteString.copyFrom(buffer, position, length));
+            offset += length;
+        }
+        return chunks;
+    }
+}
@@ -4,12 +4,12 @@ import com.amazonaws.SdkClientException;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.PutObjectResult;
+import io.perfmark.PerfMark;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,10 +64,7 @@ public final class AudioUtils {
      */
     public static void fetchAudio(Regions region, String bucketName, String objectKey, String audioFilePath, AWSCredentialsProvider awsCredentials) {
 
-        AmazonS3 s3Client = AmazonS3ClientBuilder.standard()
-                .withRegion(region)
-                .withCredentials(awsCredentials)
-                .build();
+        AmazonS3 s3Client = ClientRegistry.getS3Client(region, awsCredentials);
 
         // save the object locally
         logger.info(String.format("Fetching %s/%s to %s", bucketName, objectKey, audioFilePath));
@@ -82,8 +79,9 @@ public final class AudioUtils {
 
     /**
      * Converts the given raw audio data into a wav file. Returns the wav file back.
+     * Package-private for the benchmarks.
      */
-    private static File convertToWav(String audioFilePath) throws IOException, UnsupportedAudioFileException {
+    static File convertToWav(String audioFilePath) throws IOException, UnsupportedAudioFileException {
         File outputFile = new File(audioFilePath.replace(".raw", ".wav"));
         AudioInputStream source = new AudioInputStream(Files.newInputStream(Paths.get(audioFilePath)),
                 new AudioFormat(8000, 16, 1, true, false), -1); // 8KHz, 16 bit, 1 channel, signed, little-endian
@@ -102,22 +100,62 @@ public final class AudioUtils {
      */
     public static void uploadRawAudio(Regions region, String bucketName, String keyPrefix, String audioFilePath, String contactId, boolean publicReadAcl, AWSCredentialsProvider awsCredentials) {
         File wavFile = null;
+        PerfMark.startTask("AudioUtils.uploadRawAudio", PerfMark.createTag(contactId));
         try {
 
-            AmazonS3 s3Client = AmazonS3ClientBuilder.standard()
-                    .withRegion(region)
-                    .withCredentials(awsCredentials)
-                    .build();
-
             wavFile = convertToWav(audioFilePath);
 
-            // upload the raw audio file to the designated S3 location
-            String objectKey = keyPrefix + wavFile.getName();
+            uploadAudio(region, bucketName, keyPrefix, wavFile.getPath(), contactId, publicReadAcl, awsCredentials);
+
+        } catch (UnsupportedAudioFileException|IOException e) {
+            logger.error("Failed to convert to wav: ", e);
+        }
+        finally {
+            if (wavFile != null) {
+                wavFile.delete();
+            }
+            PerfMark.stopTask("AudioUtils.uploadRawAudio");
+        }
+    }
+
+    /**
+     * Saves the wav audio file as an S3 object
+     *
+     * @param region
+     * @param bucketName
+     * @param keyPrefix
+     * @param wavFilePath
+     * @param awsCredentials
+     */
+    public static void uploadAudio(Regions region, String bucketName, String keyPrefix, String wavFilePath, String contactId, boolean publicReadAcl, AWSCredentialsProvider awsCredentials) {
+        uploadFile(region, bucketName, keyPrefix, wavFilePath, "audio/wav", contactId, publicReadAcl, awsCredentials);
+    }
+
+    /**
+     * Saves a local file as an S3 object
+     *
+     * @param region
+     * @param bucketName
+     * @param keyPrefix
+     * @param filePath
+     * @param contentType
+     * @param awsCredentials
+     */
+    public static void uploadFile(Regions region, String bucketName, String keyPrefix, String filePath, String contentType, String contactId, boolean publicReadAcl, AWSCredentialsProvider awsCredentials) {
+        PerfMark.startTask("AudioUtils.uploadFile", PerfMark.createTag(contactId));
+        try {
+
+            AmazonS3 s3Client = ClientRegistry.getS3Client(region, awsCredentials);
+
+            File file = new File(filePath);
+
+            // upload the file to the designated S3 location
+            String objectKey = keyPrefix + file.getName();
             
-            logger.info(String.format("Uploading Audio: to %s/%s from %s", bucketName, objectKey, wavFile));
-            PutObjectRequest request = new PutObjectRequest(bucketName, objectKey, wavFile);
+            logger.info(String.format("Uploading %s: to %s/%s from %s", contentType, bucketName, objectKey, file));
+            PutObjectRequest request = new PutObjectRequest(bucketName, objectKey, file);
             ObjectMetadata metadata = new ObjectMetadata();
-            metadata.setContentType("audio/wav");
+            metadata.setContentType(contentType);
             metadata.addUserMetadata("contact-id", contactId);
             request.setMetadata(metadata);
 
@@ -130,15 +168,10 @@ public final class AudioUtils {
             logger.info("putObject completed successfully " + s3result.getETag());
 
         } catch (SdkClientException e) {
-            logger.error("Audio upload to S3 failed: ", e);
+            logger.error("Upload to S3 failed: ", e);
             throw e;
-        } catch (UnsupportedAudioFileException|IOException e) {
-            logger.error("Failed to convert to wav: ", e);
-        }
-        finally {
-            if (wavFile != null) {
-                wavFile.delete();
-            }
+        } finally {
+            PerfMark.stopTask("AudioUtils.uploadFile");
         }
     }
 }
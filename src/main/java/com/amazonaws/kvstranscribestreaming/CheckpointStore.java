@@ -0,0 +1,129 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import org.apache.commons.lang3.Validate;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Optional;
+
+/**
+ * Stores how far the transcription of each contact got in a DynamoDB table keyed by ContactId,
+ * so that a new invocation for the same contact resumes after the last fragment sent to Google STT.
+ * 
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class CheckpointStore {
+
+    public static class Checkpoint {
+        private final String contactId;
+        private final String fragmentNumber;
+        private final long producerTimestampMillis;
+        private final int replyCount;
+        private final boolean completed;
+
+        /**
+         * @param contactId
+         * @param fragmentNumber last fragment whose audio has been sent to Google STT
+         * @param producerTimestampMillis producer timestamp of that fragment
+         * @param replyCount number of the next transcript to be written
+         * @param completed true once the stream of the contact has ended
+         */
+        public Checkpoint(String contactId, String fragmentNumber, long producerTimestampMillis, int replyCount, boolean completed) {
+            this.contactId = Validate.notNull(contactId);
+            this.fragmentNumber = Validate.notNull(fragmentNumber);
+            this.producerTimestampMillis = producerTimestampMillis;
+            this.replyCount = replyCount;
+            this.completed = completed;
+        }
+
+        public String getContactId() {
+            return contactId;
+        }
+
+        public String getFragmentNumber() {
+            return fragmentNumber;
+        }
+
+        public long getProducerTimestampMillis() {
+            return producerTimestampMillis;
+        }
+
+        public int getReplyCount() {
+            return replyCount;
+        }
+
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Checkpoint{contactId='%s', fragmentNumber='%s', producerTimestampMillis=%d, replyCount=%d, completed=%b}",
+                    contactId, fragmentNumber, producerTimestampMillis, replyCount, completed);
+        }
+    }
+
+    private final Table table;
+    private final int limitDayOfTTL;
+
+    public CheckpointStore(DynamoDB dynamoDB, String tableName, int limitDayOfTTL) {
+        this.table = dynamoDB.getTable(Validate.notNull(tableName));
+        this.limitDayOfTTL = limitDayOfTTL;
+    }
+
+    /**
+     * @param contactId
+     * @return the last checkpoint saved for the contact, if any
+     */
+    public Optional<Checkpoint> load(String contactId) {
+        Item item = table.getItem(new GetItemSpec()
+                .withPrimaryKey("ContactId", contactId)
+                .withConsistentRead(true));
+        if (item == null) {
+            return Optional.empty();
+        }
+        return Optional.of(new Checkpoint(contactId, item.getString("FragmentNumber"), item.getLong("ProducerTimestamp"),
+                item.getInt("ReplyCount"), item.getBoolean("Completed")));
+    }
+
+    public void save(Checkpoint checkpoint) {
+        Instant now = Instant.now();
+        String now_str = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss").format(LocalDateTime.ofInstant(now, ZoneId.of("Asia/Tokyo")));
+        table.putItem(new Item()
+                .withPrimaryKey("ContactId", checkpoint.getContactId())
+                .withString("FragmentNumber", checkpoint.getFragmentNumber())
+                .withLong("ProducerTimestamp", checkpoint.getProducerTimestampMillis())
+                .withInt("ReplyCount", checkpoint.getReplyCount())
+                .withBoolean("Completed", checkpoint.isCompleted())
+                .withString("UpdateTime", now_str)
+                .withNumber("ExpireTime", now.getEpochSecond() + 60*60*24*limitDayOfTTL));
+    }
+}
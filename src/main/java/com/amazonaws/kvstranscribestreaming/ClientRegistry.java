@@ -0,0 +1,302 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoClientBuilder;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMedia;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMediaClientBuilder;
+import com.amazonaws.services.kinesisvideo.model.APIName;
+import com.amazonaws.services.kinesisvideo.model.GetDataEndpointRequest;
+import com.amazonaws.services.lambda.AWSLambda;
+import com.amazonaws.services.lambda.AWSLambdaClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.InstantiatingGrpcChannelProvider;
+import com.google.cloud.speech.v1.SpeechClient;
+import com.google.cloud.speech.v1.SpeechSettings;
+import io.grpc.ConnectivityState;
+import io.grpc.ForwardingChannelBuilder;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.amazonaws.util.StringUtils.isNullOrEmpty;
+
+/**
+ * Long-lived clients shared by all invocations of a warm Lambda container.
+ * Each client is created lazily on first use, so only the first call of a container pays for
+ * the gRPC channel, TLS handshakes and the KVS GetDataEndpoint lookup.
+ *
+ * The SpeechClient is checked before it is reused: it is rebuilt when it has been shut down or its channel is in
+ * TRANSIENT_FAILURE, e.g. after the connection died while the container was frozen, instead of waiting for the backoff
+ * of the channel. The AWS clients have no connection state to check, their HTTP pools validate idle connections
+ * before reusing them.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public final class ClientRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClientRegistry.class);
+
+    // Google STT endpoint as host:port, the one of the client library when not set, e.g. a LocalSpeechServer
+    private static final String SPEECH_ENDPOINT = System.getenv("SPEECH_ENDPOINT");
+    // plaintext gRPC without credentials to SPEECH_ENDPOINT, for a local server
+    private static final boolean SPEECH_PLAINTEXT = EnvUtils.getBoolean("SPEECH_PLAINTEXT", false);
+
+    private static final Object speechClientLock = new Object();
+    private static volatile SpeechClient speechClient = null;
+    // channel of speechClient, null for a client set from outside or built with settings of its own
+    private static volatile ManagedChannel speechChannel = null;
+    // last channel built with the settings of getSpeechSettings
+    private static volatile ManagedChannel builtSpeechChannel = null;
+    // settings the SpeechClient is built with, null for the ones of the environment
+    private static SpeechSettings speechSettings = null;
+
+    private static final ConcurrentMap<Regions, DynamoDB> dynamoDBClients = new ConcurrentHashMap<Regions, DynamoDB>();
+    private static final ConcurrentMap<Regions, AWSLambda> lambdaClients = new ConcurrentHashMap<Regions, AWSLambda>();
+    private static final ConcurrentMap<Regions, AmazonS3> s3Clients = new ConcurrentHashMap<Regions, AmazonS3>();
+    private static final ConcurrentMap<Regions, AmazonKinesisVideo> kinesisVideoClients = new ConcurrentHashMap<Regions, AmazonKinesisVideo>();
+    private static final ConcurrentMap<String, AmazonKinesisVideoMedia> kinesisVideoMediaClients = new ConcurrentHashMap<String, AmazonKinesisVideoMedia>();
+
+    // GetMedia data endpoint per stream name
+    private static final ConcurrentMap<String, String> dataEndpoints = new ConcurrentHashMap<String, String>();
+
+    private ClientRegistry() {
+    }
+
+    /**
+     * Returns the shared SpeechClient, creating a new one if there is none yet or the previous one is not healthy
+     *
+     * @return
+     * @throws IOException
+     */
+    public static SpeechClient getSpeechClient() throws IOException {
+        SpeechClient client = speechClient;
+        if (isHealthy(client, speechChannel)) {
+            return client;
+        }
+        synchronized (speechClientLock) {
+            if (!isHealthy(speechClient, speechChannel)) {
+                if (speechClient != null && !speechClient.isShutdown()) {
+                    logger.warn(String.format("SpeechClient channel is %s, it is rebuilt", speechChannel.getState(false)));
+                    // calls still running on the old channel go on until they end
+                    speechClient.shutdown();
+                }
+                if (speechSettings == null) {
+                    speechSettings = getSpeechSettings(SPEECH_ENDPOINT, SPEECH_PLAINTEXT);
+                }
+                logger.info(String.format("Creating SpeechClient for %s", speechSettings.getEndpoint()));
+                builtSpeechChannel = null;
+                speechClient = SpeechClient.create(speechSettings);
+                speechChannel = builtSpeechChannel;
+            }
+            return speechClient;
+        }
+    }
+
+    /**
+     * @param client
+     * @param channel channel of the client, null if unknown
+     * @return true if the client can be reused: it is not shut down and its channel, when known, is not failing
+     */
+    private static boolean isHealthy(SpeechClient client, ManagedChannel channel) {
+        if (client == null || client.isShutdown() || client.isTerminated()) {
+            return false;
+        }
+        if (channel == null) {
+            return true;
+        }
+        ConnectivityState state = channel.getState(false);
+        return state != ConnectivityState.TRANSIENT_FAILURE && state != ConnectivityState.SHUTDOWN;
+    }
+
+    /**
+     * Records the channels it builds, the client library only exposes them wrapped in a pool without their state
+     */
+    private static class RecordingChannelBuilder extends ForwardingChannelBuilder<RecordingChannelBuilder> {
+        private final ManagedChannelBuilder<?> delegate;
+
+        private RecordingChannelBuilder(ManagedChannelBuilder<?> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        protected ManagedChannelBuilder<?> delegate() {
+            return delegate;
+        }
+
+        @Override
+        public ManagedChannel build() {
+            ManagedChannel channel = super.build();
+            builtSpeechChannel = channel;
+            return channel;
+        }
+    }
+
+    /**
+     * Drops a SpeechClient whose channel is broken, so that the next {@link #getSpeechClient} builds a new one.
+     * Nothing happens if the client has already been replaced.
+     *
+     * @param brokenClient
+     */
+    public static void invalidateSpeechClient(SpeechClient brokenClient) {
+        synchronized (speechClientLock) {
+            if (speechClient != brokenClient) {
+                return;
+            }
+            logger.warn("SpeechClient channel is broken, it will be rebuilt");
+            speechClient = null;
+            speechChannel = null;
+        }
+        brokenClient.shutdown();
+    }
+
+    /**
+     * Replaces the shared SpeechClient, e.g. with a {@link LocalSpeechStub} to replay calls without Google
+     *
+     * @param client
+     */
+    public static void setSpeechClient(SpeechClient client) {
+        synchronized (speechClientLock) {
+            speechClient = client;
+            speechChannel = null;
+        }
+    }
+
+    /**
+     * Sets the settings of the SpeechClient, e.g. another endpoint or channel provider for a load test.
+     * The next {@link #getSpeechClient} builds a new client with them, and so do the rebuilds after a broken channel.
+     *
+     * @param settings
+     */
+    public static void setSpeechSettings(SpeechSettings settings) {
+        synchronized (speechClientLock) {
+            speechSettings = settings;
+            speechClient = null;
+            speechChannel = null;
+        }
+    }
+
+    /**
+     * @param endpoint  host:port of Google STT, null for the default endpoint
+     * @param plaintext true to connect without TLS nor credentials, to a local server
+     * @return the settings of a SpeechClient connecting to the endpoint
+     * @throws IOException
+     */
+    public static SpeechSettings getSpeechSettings(String endpoint, boolean plaintext) throws IOException {
+        SpeechSettings.Builder builder = SpeechSettings.newBuilder();
+        InstantiatingGrpcChannelProvider.Builder channelProvider = SpeechSettings.defaultGrpcTransportProviderBuilder();
+        if (!isNullOrEmpty(endpoint)) {
+            channelProvider.setEndpoint(endpoint);
+            builder.setEndpoint(endpoint);
+            if (plaintext) {
+                builder.setCredentialsProvider(NoCredentialsProvider.create());
+            }
+        }
+        boolean usePlaintext = plaintext && !isNullOrEmpty(endpoint);
+        // the channel is recorded so that its state can be checked before the client is reused
+        channelProvider.setChannelConfigurator(channelBuilder ->
+                new RecordingChannelBuilder(usePlaintext ? channelBuilder.usePlaintext() : channelBuilder));
+        return builder.setTransportChannelProvider(channelProvider.build()).build();
+    }
+
+    /**
+     * Replaces the DynamoDB client of the region, e.g. with a {@link LocalDynamoDB} to replay calls without AWS
+     *
+     * @param region
+     * @param dynamoDB
+     */
+    public static void setDynamoDB(Regions region, DynamoDB dynamoDB) {
+        dynamoDBClients.put(region, dynamoDB);
+    }
+
+    public static DynamoDB getDynamoDB(Regions region) {
+        return dynamoDBClients.computeIfAbsent(region, r -> {
+            AmazonDynamoDBClientBuilder builder = AmazonDynamoDBClientBuilder.standard();
+            builder.setRegion(r.getName());
+            return new DynamoDB(builder.build());
+        });
+    }
+
+    public static AWSLambda getLambdaClient(Regions region) {
+        return lambdaClients.computeIfAbsent(region, r -> AWSLambdaClientBuilder.standard()
+                .withRegion(r)
+                .build());
+    }
+
+    public static AmazonS3 getS3Client(Regions region, AWSCredentialsProvider awsCredentials) {
+        return s3Clients.computeIfAbsent(region, r -> AmazonS3ClientBuilder.standard()
+                .withRegion(r)
+                .withCredentials(awsCredentials)
+                .build());
+    }
+
+    public static AmazonKinesisVideo getKinesisVideoClient(Regions region, AWSCredentialsProvider awsCredentials) {
+        return kinesisVideoClients.computeIfAbsent(region, r -> AmazonKinesisVideoClientBuilder.standard()
+                .withRegion(r)
+                .withCredentials(awsCredentials)
+                .build());
+    }
+
+    public static AmazonKinesisVideoMedia getKinesisVideoMediaClient(String endPoint, Regions region, AWSCredentialsProvider awsCredentials) {
+        return kinesisVideoMediaClients.computeIfAbsent(endPoint, e -> AmazonKinesisVideoMediaClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(e, region.getName()))
+                .withCredentials(awsCredentials)
+                .build());
+    }
+
+    /**
+     * Returns the GetMedia data endpoint of the stream, calling GetDataEndpoint only the first time
+     *
+     * @param streamName
+     * @param region
+     * @param awsCredentials
+     * @return
+     */
+    public static String getDataEndpoint(String streamName, Regions region, AWSCredentialsProvider awsCredentials) {
+        return dataEndpoints.computeIfAbsent(streamName, s -> getKinesisVideoClient(region, awsCredentials)
+                .getDataEndpoint(new GetDataEndpointRequest()
+                        .withAPIName(APIName.GET_MEDIA)
+                        .withStreamName(s)).getDataEndpoint());
+    }
+
+    /**
+     * Forgets the cached data endpoint of the stream, e.g. after GetMedia failed on it
+     *
+     * @param streamName
+     */
+    public static void invalidateDataEndpoint(String streamName) {
+        dataEndpoints.remove(streamName);
+    }
+}
@@ -0,0 +1,88 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.services.lambda.AWSLambda;
+import com.amazonaws.services.lambda.model.InvocationType;
+import com.amazonaws.services.lambda.model.InvokeRequest;
+import com.amazonaws.services.lambda.model.InvokeResult;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Starts the invocation that continues the transcription of a call once the current one hands it off.
+ * The Lambda is invoked asynchronously with the continuation request, so the current invocation can return at once.
+ * 
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public final class ContinuationInvoker {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContinuationInvoker.class);
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private ContinuationInvoker() {
+    }
+
+    /**
+     * @param lambda
+     * @param functionArn ARN of the function to invoke, usually the one of the current invocation
+     * @param request
+     * @throws JsonProcessingException
+     */
+    public static void invoke(AWSLambda lambda, String functionArn, TranscriptionRequest request) throws JsonProcessingException {
+        String payload = toJson(request);
+        InvokeResult result = lambda.invoke(new InvokeRequest()
+                .withFunctionName(functionArn)
+                .withInvocationType(InvocationType.Event)
+                .withPayload(payload));
+        logger.info(String.format("Continuation invoked with status %d: %s", result.getStatusCode(), payload));
+    }
+
+    /**
+     * Serializes the request with the property names the Lambda runtime deserializes it from
+     *
+     * @param request
+     * @return
+     * @throws JsonProcessingException
+     */
+    static String toJson(TranscriptionRequest request) throws JsonProcessingException {
+        Map<String, Object> json = new LinkedHashMap<String, Object>();
+        json.put("streamARN", request.getStreamARN());
+        json.put("startFragmentNum", request.getStartFragmentNum());
+        json.put("startSelectorType", request.getStartSelectorType());
+        json.put("connectContactId", request.getConnectContactId());
+        json.put("saveCallRecording", request.isSaveCallRecordingEnabled());
+        json.put("streamAudioFromCustomer", request.isStreamAudioFromCustomerEnabled());
+        json.put("streamAudioToCustomer", request.isStreamAudioToCustomerEnabled());
+        json.put("phoneNumber", request.getPhoneNumber());
+        json.put("replyCount", request.getReplyCount());
+        json.put("recordingPart", request.getRecordingPart());
+        return objectMapper.writeValueAsString(json);
+    }
+}
@@ -0,0 +1,275 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import io.perfmark.Link;
+import io.perfmark.PerfMark;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes items to DynamoDB asynchronously with BatchWriteItem.
+ * Items are queued by the caller and grouped by a background thread into batches of up to 25 items,
+ * or whatever arrived within a short window. Unprocessed items and failed batches are retried with backoff.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class DynamoDBBatchWriter {
+
+    // Maximum number of items in a BatchWriteItem request
+    public static final int MAX_BATCH_SIZE = 25;
+
+    private static final Logger logger = LoggerFactory.getLogger(DynamoDBBatchWriter.class);
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long INITIAL_BACKOFF_MILLIS = 50;
+    private static final long MAX_BACKOFF_MILLIS = 2000;
+
+    private static class PendingItem {
+        private final String tableName;
+        private final Item item;
+        private final String coalesceKey;
+        private final Link link;
+
+        private PendingItem(String tableName, Item item, String coalesceKey, Link link) {
+            this.tableName = tableName;
+            this.item = item;
+            this.coalesceKey = coalesceKey;
+            this.link = link;
+        }
+    }
+
+    private final DynamoDB ddbClient;
+    private final long batchWindowMillis;
+    private final MetricsUtil.Stat writeLatency;
+    private final BlockingQueue<PendingItem> queue = new LinkedBlockingQueue<PendingItem>();
+    private final Thread writer;
+
+    // Number of items queued, and of items written or given up on
+    private long submittedItems = 0;
+    private long completedItems = 0;
+    private volatile boolean closed = false;
+
+    public DynamoDBBatchWriter(DynamoDB ddbClient, long batchWindowMillis) {
+        this(ddbClient, batchWindowMillis, null);
+    }
+
+    /**
+     * @param ddbClient
+     * @param batchWindowMillis time items may wait for others to join their batch
+     * @param writeLatency time to write a batch including the retries, or null
+     */
+    public DynamoDBBatchWriter(DynamoDB ddbClient, long batchWindowMillis, MetricsUtil.Stat writeLatency) {
+        this.ddbClient = Validate.notNull(ddbClient);
+        this.batchWindowMillis = batchWindowMillis;
+        this.writeLatency = writeLatency;
+        this.writer = new Thread(this::run, "ddb-batch-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public DynamoDB getDdbClient() {
+        return ddbClient;
+    }
+
+    /**
+     * Queues an item to be put into the table. Returns immediately.
+     *
+     * @param tableName
+     * @param item
+     */
+    public void write(String tableName, Item item) {
+        write(tableName, item, null);
+    }
+
+    /**
+     * Queues an item that replaces the previous versions of itself. Returns immediately.
+     * When several versions are in the same batch, only the last one is written,
+     * BatchWriteItem does not accept two puts of the same key.
+     *
+     * @param tableName
+     * @param item
+     * @param coalesceKey the primary key of the item, or null if the item is never put again
+     */
+    public void write(String tableName, Item item, String coalesceKey) {
+        Validate.isTrue(!closed, "DynamoDBBatchWriter is closed");
+        synchronized (this) {
+            submittedItems++;
+        }
+        queue.add(new PendingItem(tableName, item, coalesceKey, PerfMark.linkOut()));
+    }
+
+    /**
+     * Waits until every item queued before this call has been written or given up on
+     *
+     * @param timeoutMillis
+     * @return false if the timeout elapsed first
+     * @throws InterruptedException
+     */
+    public synchronized boolean flush(long timeoutMillis) throws InterruptedException {
+        long target = submittedItems;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (completedItems < target) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                logger.warn(String.format("DynamoDB batch writer did not flush within %d ms, %d item(s) pending",
+                        timeoutMillis, target - completedItems));
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Flushes the queued items and stops the background thread
+     *
+     * @param timeoutMillis
+     * @throws InterruptedException
+     */
+    public void close(long timeoutMillis) throws InterruptedException {
+        flush(timeoutMillis);
+        closed = true;
+        writer.interrupt();
+    }
+
+    private void run() {
+        List<PendingItem> batch = new ArrayList<PendingItem>(MAX_BATCH_SIZE);
+        while (!closed) {
+            try {
+                PendingItem first = queue.take();
+                batch.add(first);
+
+                // give the following segments a short window to join the batch
+                long deadline = System.currentTimeMillis() + batchWindowMillis;
+                while (batch.size() < MAX_BATCH_SIZE) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    PendingItem next = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                PerfMark.startTask("DynamoDBBatchWriter.writeBatch");
+                try {
+                    for (PendingItem pendingItem : batch) {
+                        PerfMark.linkIn(pendingItem.link);
+                    }
+                    writeBatch(batch);
+                } finally {
+                    PerfMark.stopTask("DynamoDBBatchWriter.writeBatch");
+                }
+            } catch (InterruptedException e) {
+                if (!closed) {
+                    logger.warn("DynamoDB batch writer interrupted");
+                }
+                break;
+            } finally {
+                if (!batch.isEmpty()) {
+                    completed(batch.size());
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingItem> batch) throws InterruptedException {
+
+        // the last version of each coalesced item, in the order of the batch
+        Map<String, PendingItem> lastVersions = new HashMap<String, PendingItem>();
+        for (PendingItem pendingItem : batch) {
+            if (pendingItem.coalesceKey != null) {
+                lastVersions.put(pendingItem.tableName + '/' + pendingItem.coalesceKey, pendingItem);
+            }
+        }
+
+        Map<String, TableWriteItems> tableWriteItems = new LinkedHashMap<String, TableWriteItems>();
+        for (PendingItem pendingItem : batch) {
+            if (pendingItem.coalesceKey != null
+                    && lastVersions.get(pendingItem.tableName + '/' + pendingItem.coalesceKey) != pendingItem) {
+                continue;
+            }
+            TableWriteItems items = tableWriteItems.get(pendingItem.tableName);
+            if (items == null) {
+                items = new TableWriteItems(pendingItem.tableName);
+                tableWriteItems.put(pendingItem.tableName, items);
+            }
+            items.addItemToPut(pendingItem.item);
+        }
+
+        long startNanos = System.nanoTime();
+        long backoffMillis = INITIAL_BACKOFF_MILLIS;
+        Map<String, List<WriteRequest>> unprocessedItems = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                BatchWriteItemOutcome outcome = (unprocessedItems == null)
+                        ? ddbClient.batchWriteItem(tableWriteItems.values().toArray(new TableWriteItems[0]))
+                        : ddbClient.batchWriteItemUnprocessed(unprocessedItems);
+                Map<String, List<WriteRequest>> unprocessed = outcome.getUnprocessedItems();
+                if (unprocessed == null || unprocessed.isEmpty()) {
+                    logger.info(String.format("write to dynamo success! %d item(s)", batch.size()));
+                    if (writeLatency != null) {
+                        writeLatency.recordSince(startNanos);
+                    }
+                    return;
+                }
+                unprocessedItems = unprocessed;
+                logger.info(String.format("%d unprocessed item(s), retrying", countWriteRequests(unprocessed)));
+            } catch (Exception e) {
+                logger.warn(String.format("Exception while writing to DDB, attempt %d: ", attempt), e);
+            }
+            Thread.sleep(backoffMillis);
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        }
+
+        logger.error(String.format("Giving up writing to DDB after %d attempts, %d item(s) lost", MAX_ATTEMPTS,
+                unprocessedItems == null ? batch.size() : countWriteRequests(unprocessedItems)));
+    }
+
+    private synchronized void completed(int items) {
+        completedItems += items;
+        notifyAll();
+    }
+
+    private static int countWriteRequests(Map<String, List<WriteRequest>> writeRequests) {
+        int count = 0;
+        for (List<WriteRequest> requests : writeRequests.values()) {
+            count += requests.size();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,55 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import static com.amazonaws.util.StringUtils.isNullOrEmpty;
+
+/**
+ * Utility class to read optional settings from environment variables
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public final class EnvUtils {
+
+    private EnvUtils() {
+    }
+
+    public static String getString(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return isNullOrEmpty(value) ? defaultValue : value;
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        String value = System.getenv(name);
+        return isNullOrEmpty(value) ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return isNullOrEmpty(value) ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = System.getenv(name);
+        return isNullOrEmpty(value) ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
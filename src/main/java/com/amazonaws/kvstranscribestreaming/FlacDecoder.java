@@ -0,0 +1,221 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Decoder of the FLAC streams written by {@link FlacEncoder}: 16 bit mono, constant, verbatim and fixed subframes.
+ * Used by {@link LocalSpeechStub} to measure the audio it receives, and to check that the encoding is lossless.
+ * The stream is fed in pieces that each hold whole frames, like the requests sent to Google STT.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class FlacDecoder {
+
+    private boolean headerRead = false;
+    private long samples = 0;
+
+    /**
+     * @return number of samples decoded so far
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * Decodes the next piece of the stream
+     *
+     * @param data the stream header and metadata on the first call, then whole frames
+     * @return little-endian 16 bit PCM
+     * @throws IllegalArgumentException if the data is not a stream of {@link FlacEncoder}
+     */
+    public byte[] decode(byte[] data) {
+        BitReader in = new BitReader(data);
+        if (!headerRead) {
+            if (in.read(32) != 0x664C6143) {
+                throw new IllegalArgumentException("Not a FLAC stream");
+            }
+            boolean last = false;
+            while (!last) {
+                last = in.read(1) == 1;
+                in.read(7);
+                in.skipBytes((int) in.read(24));
+            }
+            headerRead = true;
+        }
+
+        ByteArrayOutputStream pcm = new ByteArrayOutputStream(data.length * 2);
+        while (in.remainingBytes() > 0) {
+            decodeFrame(in, pcm);
+        }
+        return pcm.toByteArray();
+    }
+
+    private void decodeFrame(BitReader in, ByteArrayOutputStream pcm) {
+        if (in.read(14) != 0x3FFE) {
+            throw new IllegalArgumentException("Lost FLAC frame sync");
+        }
+        in.read(2);
+        int blockSizeCode = (int) in.read(4);
+        int sampleRateCode = (int) in.read(4);
+        if (in.read(4) != 0 || in.read(3) != 4) {
+            throw new IllegalArgumentException("Only 16 bit mono is supported");
+        }
+        in.read(1);
+        int first = (int) in.read(8);
+        for (int mask = 0x80; (first & mask) != 0 && mask > 1; mask >>= 1) {
+            if (mask != 0x80) {
+                in.read(8);
+            }
+        }
+        int blockSize;
+        if (blockSizeCode == 6) {
+            blockSize = (int) in.read(8) + 1;
+        } else if (blockSizeCode == 7) {
+            blockSize = (int) in.read(16) + 1;
+        } else {
+            throw new IllegalArgumentException("Unsupported block size code " + blockSizeCode);
+        }
+        if (sampleRateCode == 12) {
+            in.read(8);
+        } else if (sampleRateCode == 13 || sampleRateCode == 14) {
+            in.read(16);
+        }
+        in.read(8); // CRC-8
+
+        int[] block = new int[blockSize];
+        int type = (int) in.read(8) >> 1;
+        if (type == 0) {
+            int value = in.readSigned(16);
+            for (int i = 0; i < blockSize; i++) {
+                block[i] = value;
+            }
+        } else if (type == 1) {
+            for (int i = 0; i < blockSize; i++) {
+                block[i] = in.readSigned(16);
+            }
+        } else if ((type & 0x38) == 8 && (type & 7) <= 4) {
+            decodeFixed(in, block, type & 7);
+        } else {
+            throw new IllegalArgumentException("Unsupported subframe type " + type);
+        }
+
+        in.alignToByte();
+        in.read(16); // CRC-16
+
+        for (int value : block) {
+            pcm.write(value);
+            pcm.write(value >> 8);
+        }
+        samples += blockSize;
+    }
+
+    private static void decodeFixed(BitReader in, int[] block, int order) {
+        for (int i = 0; i < order; i++) {
+            block[i] = in.readSigned(16);
+        }
+        if (in.read(2) != 0) {
+            throw new IllegalArgumentException("Unsupported residual coding");
+        }
+        int partitionOrder = (int) in.read(4);
+        int partitionSize = block.length >> partitionOrder;
+        int i = order;
+        for (int p = 0; p < (1 << partitionOrder); p++) {
+            int parameter = (int) in.read(4);
+            int end = (p + 1) * partitionSize;
+            for (; i < end; i++) {
+                long folded = in.readRice(parameter);
+                block[i] = (int) ((folded >>> 1) ^ -(folded & 1));
+            }
+        }
+        for (i = order; i < block.length; i++) {
+            switch (order) {
+                case 0:
+                    break;
+                case 1:
+                    block[i] += block[i - 1];
+                    break;
+                case 2:
+                    block[i] += 2 * block[i - 1] - block[i - 2];
+                    break;
+                case 3:
+                    block[i] += 3 * block[i - 1] - 3 * block[i - 2] + block[i - 3];
+                    break;
+                default:
+                    block[i] += 4 * block[i - 1] - 6 * block[i - 2] + 4 * block[i - 3] - block[i - 4];
+                    break;
+            }
+        }
+    }
+
+    private static final class BitReader {
+        private final byte[] data;
+        private int position = 0;
+        private int bitOffset = 0;
+
+        private BitReader(byte[] data) {
+            this.data = data;
+        }
+
+        private int remainingBytes() {
+            return data.length - position;
+        }
+
+        private long read(int count) {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                int bit = (data[position] >> (7 - bitOffset)) & 1;
+                value = (value << 1) | bit;
+                if (++bitOffset == 8) {
+                    bitOffset = 0;
+                    position++;
+                }
+            }
+            return value;
+        }
+
+        private int readSigned(int count) {
+            long value = read(count);
+            return (int) (value << (64 - count) >> (64 - count));
+        }
+
+        private long readRice(int parameter) {
+            long quotient = 0;
+            while (read(1) == 0) {
+                quotient++;
+            }
+            return (quotient << parameter) | read(parameter);
+        }
+
+        private void skipBytes(int count) {
+            position += count;
+        }
+
+        private void alignToByte() {
+            if (bitOffset > 0) {
+                bitOffset = 0;
+                position++;
+            }
+        }
+    }
+}
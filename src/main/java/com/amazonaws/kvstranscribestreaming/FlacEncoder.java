@@ -0,0 +1,538 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Streaming FLAC encoder of 16 bit mono or stereo PCM, lossless so that the recognition does not change.
+ * Each call to {@link #encode} returns whole FLAC frames, preceded by the stream header on the first call,
+ * so the output of each call can be sent as is. Frames use the variable block size strategy, so that chunks
+ * of any duration can be encoded without waiting for more audio.
+ *
+ * Each block is coded as a constant, with the fixed linear predictor of the order leaving the smallest residual
+ * and a partitioned Rice code, or verbatim when that is not smaller. Phone audio at 8 kHz usually shrinks to
+ * about 50 to 60 percent, and silence to almost nothing. The channels of stereo audio are coded independently.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class FlacEncoder {
+
+    // Largest block of a frame, longer chunks are split into several frames
+    public static final int MAX_BLOCK_SIZE = 4608;
+    // Smallest block allowed except for the last frame, shorter chunks are kept for the next call
+    public static final int MIN_BLOCK_SIZE = 16;
+
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 6;
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    private static final int SUBFRAME_CONSTANT = 0;
+    private static final int SUBFRAME_VERBATIM = 1;
+    private static final int SUBFRAME_FIXED = 8;
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xFF;
+            CRC16_TABLE[i] = crc16 & 0xFFFF;
+        }
+    }
+
+    private final int sampleRate;
+    private final int channels;
+    private final BitWriter out = new BitWriter();
+    private final int[][] channelSamples;
+    // samples of the channel whose subframe is being written
+    private int[] samples;
+    private final int[] residual = new int[MAX_BLOCK_SIZE + MIN_BLOCK_SIZE];
+    private int pendingSamples = 0;
+    private long sampleNumber = 0;
+    private boolean headerWritten = false;
+
+    private int minFrameBytes = Integer.MAX_VALUE;
+    private int maxFrameBytes = 0;
+
+    private long pcmBytes = 0;
+    private long encodedBytes = 0;
+
+    /**
+     * @param sampleRate
+     */
+    public FlacEncoder(int sampleRate) {
+        this(sampleRate, 1);
+    }
+
+    /**
+     * @param sampleRate
+     * @param channels   1 or 2, the samples of stereo PCM are interleaved
+     */
+    public FlacEncoder(int sampleRate, int channels) {
+        if (channels < 1 || channels > 2) {
+            throw new IllegalArgumentException("Unsupported number of channels: " + channels);
+        }
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.channelSamples = new int[channels][MAX_BLOCK_SIZE + MIN_BLOCK_SIZE];
+        this.samples = channelSamples[0];
+    }
+
+    /**
+     * @return PCM bytes encoded so far
+     */
+    public long getPcmBytes() {
+        return pcmBytes;
+    }
+
+    /**
+     * @return FLAC bytes returned so far, stream header included
+     */
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    /**
+     * @return the stream header, "fLaC" and a STREAMINFO block with unknown length and MD5
+     */
+    public byte[] streamHeader() {
+        return streamHeader(0, 0, 0, new byte[16]);
+    }
+
+    /**
+     * Header of a finished stream, to replace the one at the start of a file once all frames are written.
+     * It has the same length as {@link #streamHeader()}.
+     *
+     * @param md5 MD5 of the PCM encoded, 16 bytes
+     * @return the stream header with the frame sizes and the number of samples of the frames written so far
+     */
+    public byte[] streamHeader(byte[] md5) {
+        return streamHeader(maxFrameBytes > 0 ? minFrameBytes : 0, maxFrameBytes, sampleNumber, md5);
+    }
+
+    private byte[] streamHeader(int minFrameSize, int maxFrameSize, long totalSamples, byte[] md5) {
+        BitWriter header = new BitWriter();
+        header.write(0x664C6143, 32); // fLaC
+        header.write(0x80, 8); // last metadata block, STREAMINFO
+        header.write(34, 24);
+        header.write(MIN_BLOCK_SIZE, 16);
+        header.write(MAX_BLOCK_SIZE, 16);
+        header.write(minFrameSize, 24); // 0 when unknown
+        header.write(maxFrameSize, 24);
+        header.write(sampleRate, 20);
+        header.write(channels - 1, 3);
+        header.write(BITS_PER_SAMPLE - 1, 5);
+        header.write(totalSamples, 36); // 0 when unknown
+        header.write(md5); // all 0 when unknown
+        return header.toByteArray();
+    }
+
+    /**
+     * Encodes little-endian 16 bit PCM, with the samples of the channels interleaved
+     *
+     * @param pcm read from its position to its limit, the position is not moved
+     * @return the stream header on the first call, then the frames of the samples
+     */
+    public byte[] encode(ByteBuffer pcm) {
+        ByteBuffer input = pcm.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        pcmBytes += input.remaining();
+        out.reset();
+        if (!headerWritten) {
+            out.write(streamHeader());
+            headerWritten = true;
+        }
+
+        int available = pendingSamples + input.remaining() / (2 * channels);
+        // blocks of about the same size, so that no frame is shorter than the minimum
+        int frames = (available + MAX_BLOCK_SIZE - 1) / MAX_BLOCK_SIZE;
+        while (available >= MIN_BLOCK_SIZE) {
+            int blockSize = (available + frames - 1) / frames;
+            while (pendingSamples < blockSize) {
+                readSamples(input);
+            }
+            writeFrame(blockSize);
+            available -= blockSize;
+            frames--;
+        }
+        while (input.remaining() >= 2 * channels) {
+            readSamples(input);
+        }
+
+        byte[] encoded = out.toByteArray();
+        encodedBytes += encoded.length;
+        return encoded;
+    }
+
+    /**
+     * Encodes the samples kept from the previous calls, as the last frame of the stream
+     *
+     * @return the last frame, or an empty array
+     */
+    public byte[] finish() {
+        out.reset();
+        if (pendingSamples > 0) {
+            if (!headerWritten) {
+                out.write(streamHeader());
+                headerWritten = true;
+            }
+            writeFrame(pendingSamples);
+        }
+        byte[] encoded = out.toByteArray();
+        encodedBytes += encoded.length;
+        return encoded;
+    }
+
+    private void readSamples(ByteBuffer input) {
+        for (int channel = 0; channel < channels; channel++) {
+            channelSamples[channel][pendingSamples] = input.getShort();
+        }
+        pendingSamples++;
+    }
+
+    private void writeFrame(int blockSize) {
+        int frameStart = out.length();
+
+        out.write(0x3FFE, 14); // sync code
+        out.write(0, 1);
+        out.write(1, 1); // variable block size, the header carries the sample number
+        out.write(7, 4); // block size - 1 in 16 bits after the sample number
+        out.write(sampleRateCode(), 4);
+        out.write(channels - 1, 4); // mono, or left and right coded independently
+        out.write(4, 3); // 16 bits per sample
+        out.write(0, 1);
+        writeUtf8(sampleNumber);
+        out.write(blockSize - 1, 16);
+        if (sampleRateCode() == 13) {
+            out.write(sampleRate, 16);
+        }
+        out.write(out.crc8(frameStart), 8);
+
+        for (int[] channel : channelSamples) {
+            samples = channel;
+            writeSubframe(blockSize);
+        }
+
+        out.alignToByte();
+        out.write(out.crc16(frameStart), 16);
+        minFrameBytes = Math.min(minFrameBytes, out.length() - frameStart);
+        maxFrameBytes = Math.max(maxFrameBytes, out.length() - frameStart);
+
+        sampleNumber += blockSize;
+        pendingSamples -= blockSize;
+        if (pendingSamples > 0) {
+            for (int[] channel : channelSamples) {
+                System.arraycopy(channel, blockSize, channel, 0, pendingSamples);
+            }
+        }
+    }
+
+    private void writeSubframe(int blockSize) {
+        boolean constant = true;
+        for (int i = 1; i < blockSize && constant; i++) {
+            constant = samples[i] == samples[0];
+        }
+        if (constant) {
+            out.write(SUBFRAME_CONSTANT << 1, 8);
+            out.write(samples[0], BITS_PER_SAMPLE);
+            return;
+        }
+
+        int order = bestFixedOrder(blockSize);
+        computeResidual(order, blockSize);
+        int partitionOrder = 0;
+        long bestBits = Long.MAX_VALUE;
+        for (int p = 0; p <= MAX_PARTITION_ORDER; p++) {
+            if (blockSize % (1 << p) != 0 || (blockSize >> p) <= order) {
+                break;
+            }
+            long bits = residualBits(order, blockSize, p);
+            if (bits < bestBits) {
+                bestBits = bits;
+                partitionOrder = p;
+            }
+        }
+
+        long fixedBits = (long) order * BITS_PER_SAMPLE + bestBits;
+        if (fixedBits >= (long) blockSize * BITS_PER_SAMPLE) {
+            out.write(SUBFRAME_VERBATIM << 1, 8);
+            for (int i = 0; i < blockSize; i++) {
+                out.write(samples[i], BITS_PER_SAMPLE);
+            }
+            return;
+        }
+
+        out.write((SUBFRAME_FIXED | order) << 1, 8);
+        for (int i = 0; i < order; i++) {
+            out.write(samples[i], BITS_PER_SAMPLE);
+        }
+        writeResidual(order, blockSize, partitionOrder);
+    }
+
+    /**
+     * @param blockSize
+     * @return the order of the fixed predictor with the smallest sum of absolute residuals
+     */
+    private int bestFixedOrder(int blockSize) {
+        if (blockSize <= MAX_FIXED_ORDER) {
+            return 0;
+        }
+        long[] sums = new long[MAX_FIXED_ORDER + 1];
+        int last0 = samples[MAX_FIXED_ORDER - 1];
+        int last1 = last0 - samples[MAX_FIXED_ORDER - 2];
+        int last2 = last1 - (samples[MAX_FIXED_ORDER - 2] - samples[MAX_FIXED_ORDER - 3]);
+        int last3 = last2 - (samples[MAX_FIXED_ORDER - 2] - 2 * samples[MAX_FIXED_ORDER - 3] + samples[MAX_FIXED_ORDER - 4]);
+        for (int i = MAX_FIXED_ORDER; i < blockSize; i++) {
+            int e0 = samples[i];
+            int e1 = e0 - last0;
+            int e2 = e1 - last1;
+            int e3 = e2 - last2;
+            int e4 = e3 - last3;
+            sums[0] += Math.abs(e0);
+            sums[1] += Math.abs(e1);
+            sums[2] += Math.abs(e2);
+            sums[3] += Math.abs(e3);
+            sums[4] += Math.abs(e4);
+            last0 = e0;
+            last1 = e1;
+            last2 = e2;
+            last3 = e3;
+        }
+        int order = 0;
+        for (int i = 1; i <= MAX_FIXED_ORDER; i++) {
+            if (sums[i] < sums[order]) {
+                order = i;
+            }
+        }
+        return order;
+    }
+
+    private void computeResidual(int order, int blockSize) {
+        int[] s = samples;
+        for (int i = order; i < blockSize; i++) {
+            switch (order) {
+                case 0:
+                    residual[i] = s[i];
+                    break;
+                case 1:
+                    residual[i] = s[i] - s[i - 1];
+                    break;
+                case 2:
+                    residual[i] = s[i] - 2 * s[i - 1] + s[i - 2];
+                    break;
+                case 3:
+                    residual[i] = s[i] - 3 * s[i - 1] + 3 * s[i - 2] - s[i - 3];
+                    break;
+                default:
+                    residual[i] = s[i] - 4 * s[i - 1] + 6 * s[i - 2] - 4 * s[i - 3] + s[i - 4];
+                    break;
+            }
+        }
+    }
+
+    private long residualBits(int order, int blockSize, int partitionOrder) {
+        long bits = 2 + 4;
+        int partitionSize = blockSize >> partitionOrder;
+        for (int p = 0, start = order; p < (1 << partitionOrder); p++) {
+            int end = (p + 1) * partitionSize;
+            bits += 4 + riceBits(start, end, riceParameter(start, end));
+            start = end;
+        }
+        return bits;
+    }
+
+    private void writeResidual(int order, int blockSize, int partitionOrder) {
+        out.write(0, 2); // Rice coding with 4 bit parameters
+        out.write(partitionOrder, 4);
+        int partitionSize = blockSize >> partitionOrder;
+        for (int p = 0, start = order; p < (1 << partitionOrder); p++) {
+            int end = (p + 1) * partitionSize;
+            int parameter = riceParameter(start, end);
+            out.write(parameter, 4);
+            for (int i = start; i < end; i++) {
+                out.writeRice(fold(residual[i]), parameter);
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * @return the Rice parameter for the mean of the folded residuals, the best one or close to it
+     */
+    private int riceParameter(int start, int end) {
+        int n = end - start;
+        if (n <= 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = start; i < end; i++) {
+            sum += fold(residual[i]);
+        }
+        int parameter = 0;
+        while (parameter < MAX_RICE_PARAMETER && ((long) n << (parameter + 1)) < sum) {
+            parameter++;
+        }
+        return parameter;
+    }
+
+    private long riceBits(int start, int end, int parameter) {
+        long bits = (long) (end - start) * (parameter + 1);
+        for (int i = start; i < end; i++) {
+            bits += fold(residual[i]) >>> parameter;
+        }
+        return bits;
+    }
+
+    private static long fold(int value) {
+        return value >= 0 ? (long) value << 1 : ((long) -value << 1) - 1;
+    }
+
+    private int sampleRateCode() {
+        switch (sampleRate) {
+            case 8000:
+                return 4;
+            case 16000:
+                return 5;
+            case 22050:
+                return 6;
+            case 24000:
+                return 7;
+            case 32000:
+                return 8;
+            case 44100:
+                return 9;
+            case 48000:
+                return 10;
+            default:
+                // in Hz in 16 bits after the block size
+                return 13;
+        }
+    }
+
+    private void writeUtf8(long value) {
+        if (value < 0x80) {
+            out.write((int) value, 8);
+            return;
+        }
+        int continuationBytes = value < 0x800 ? 1 : value < 0x10000 ? 2 : value < 0x200000 ? 3
+                : value < 0x4000000 ? 4 : value < 0x80000000L ? 5 : 6;
+        int firstBits = 6 - continuationBytes;
+        int lead = (0xFF00 >> (continuationBytes + 1)) & 0xFF;
+        out.write(lead | (int) (value >>> (6 * continuationBytes)) & ((1 << firstBits) - 1), 8);
+        for (int i = continuationBytes - 1; i >= 0; i--) {
+            out.write(0x80 | (int) (value >>> (6 * i)) & 0x3F, 8);
+        }
+    }
+
+    /**
+     * Big-endian bit writer into a growing array
+     */
+    private static final class BitWriter {
+        private byte[] buffer = new byte[4096];
+        private int length = 0;
+        private long accumulator = 0;
+        private int bits = 0;
+
+        private void reset() {
+            length = 0;
+            accumulator = 0;
+            bits = 0;
+        }
+
+        private int length() {
+            return length;
+        }
+
+        private void write(long value, int count) {
+            if (count > 32) {
+                write(value >>> 32, count - 32);
+                count = 32;
+            }
+            accumulator = (accumulator << count) | (value & ((1L << count) - 1));
+            bits += count;
+            while (bits >= 8) {
+                bits -= 8;
+                put((byte) (accumulator >>> bits));
+            }
+        }
+
+        private void write(byte[] bytes) {
+            for (byte b : bytes) {
+                write(b, 8);
+            }
+        }
+
+        private void writeRice(long value, int parameter) {
+            long quotient = value >>> parameter;
+            while (quotient >= 32) {
+                write(0, 32);
+                quotient -= 32;
+            }
+            write(1, (int) quotient + 1);
+            if (parameter > 0) {
+                write(value, parameter);
+            }
+        }
+
+        private void alignToByte() {
+            if (bits > 0) {
+                write(0, 8 - bits);
+            }
+        }
+
+        private int crc8(int from) {
+            int crc = 0;
+            for (int i = from; i < length; i++) {
+                crc = CRC8_TABLE[(crc ^ buffer[i]) & 0xFF];
+            }
+            return crc;
+        }
+
+        private int crc16(int from) {
+            int crc = 0;
+            for (int i = from; i < length; i++) {
+                crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ buffer[i]) & 0xFF]) & 0xFFFF;
+            }
+            return crc;
+        }
+
+        private void put(byte b) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[length++] = b;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buffer, length);
+        }
+    }
+}
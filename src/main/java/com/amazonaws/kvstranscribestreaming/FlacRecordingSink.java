@@ -0,0 +1,124 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Writes PCM audio into a FLAC file while the call is running, lossless and about half the size of a WAV file.
+ * Each chunk is encoded into frames and appended as it arrives. The stream header is written first with unknown
+ * length and MD5, and is rewritten on close with the number of samples, the frame sizes and the MD5 of the audio.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class FlacRecordingSink implements RecordingSink {
+
+    private final Path path;
+    private final RecordingFile file;
+    private final FlacEncoder encoder;
+    private final MessageDigest md5;
+    private long dataBytes = 0;
+
+    /**
+     * @param path
+     * @param sampleRate
+     * @throws IOException
+     */
+    public FlacRecordingSink(Path path, int sampleRate) throws IOException {
+        this(path, sampleRate, 1);
+    }
+
+    /**
+     * @param path
+     * @param sampleRate
+     * @param channels   1 or 2
+     * @throws IOException
+     */
+    public FlacRecordingSink(Path path, int sampleRate, int channels) throws IOException {
+        this.path = path;
+        this.encoder = new FlacEncoder(sampleRate, channels);
+        try {
+            this.md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        this.file = new RecordingFile(path);
+    }
+
+    @Override
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    @Override
+    public long getFileBytes() {
+        return file.getWrittenBytes();
+    }
+
+    /**
+     * Encodes the chunk and appends its frames, preceded by the stream header on the first call
+     *
+     * @param pcm
+     * @throws IOException
+     */
+    @Override
+    public void write(ByteBuffer pcm) throws IOException {
+        md5.update(pcm.duplicate());
+        dataBytes += pcm.remaining();
+        append(encoder.encode(pcm));
+        pcm.position(pcm.limit());
+    }
+
+    /**
+     * Appends the last frame, rewrites the stream header and closes the file.
+     * A recording cut short because /tmp was exhausted keeps the header of unknown length.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (!file.isOpen()) {
+            return;
+        }
+        try {
+            append(encoder.finish());
+            if (encoder.getEncodedBytes() > 0 && !file.isFull()) {
+                file.write(ByteBuffer.wrap(encoder.streamHeader(md5.digest())), 0);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private void append(byte[] encoded) throws IOException {
+        file.append(ByteBuffer.wrap(encoded));
+    }
+}
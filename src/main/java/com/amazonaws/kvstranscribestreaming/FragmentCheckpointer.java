@@ -0,0 +1,228 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Follows the fragments read from KVS and periodically saves a checkpoint of the last fragment whose audio
+ * has been transcribed by Google STT, together with the number of the next transcript.
+ * The frame loop marks a fragment as read once all of its audio has been published to the {@link AudioPipeline}.
+ * Once the STT sink has sent the chunks published up to then, the fragment is transcribed when Google STT has returned
+ * final results for all audio sent on each track by that time, so a resumed invocation never skips audio that has
+ * no final result yet.
+ * 
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class FragmentCheckpointer {
+
+    private static final Logger logger = LoggerFactory.getLogger(FragmentCheckpointer.class);
+
+    private static class ReadFragment {
+        private final String fragmentNumber;
+        private final long producerTimestampMillis;
+        private final long publishedChunks;
+        // audio sent on each track once all chunks of the fragment were sent, null until then
+        private long[] sentOffsets = null;
+
+        ReadFragment(String fragmentNumber, long producerTimestampMillis, long publishedChunks) {
+            this.fragmentNumber = fragmentNumber;
+            this.producerTimestampMillis = producerTimestampMillis;
+            this.publishedChunks = publishedChunks;
+        }
+    }
+
+    private final CheckpointStore store;
+    private final String contactId;
+    private final AudioPipeline audioPipeline;
+    private final Collection<TrackTranscriber> trackTranscribers;
+    private final AtomicInteger replyCount;
+    private final long intervalNanos;
+
+    // only used by the frame loop
+    private String currentFragmentNumber = null;
+    private long currentProducerTimestampMillis = 0;
+    private String previousFragmentNumber = null;
+    private long previousProducerTimestampMillis = 0;
+    private long nextCheckpointNanos;
+
+    // handed from the frame loop to the writer, in order, until they have been transcribed
+    private final Queue<ReadFragment> readFragments = new ConcurrentLinkedQueue<ReadFragment>();
+    // last fragment transcribed whose checkpoint could not be saved yet
+    private ReadFragment unsavedFragment = null;
+    private int saves = 0;
+
+    /**
+     * @param store
+     * @param contactId
+     * @param audioPipeline
+     * @param trackTranscribers tracks whose Google STT streams must have transcribed a fragment before it is saved
+     * @param replyCount number of the next transcript, shared by all tracks
+     * @param intervalMillis minimum time between two checkpoints
+     */
+    public FragmentCheckpointer(CheckpointStore store, String contactId, AudioPipeline audioPipeline,
+                                Collection<TrackTranscriber> trackTranscribers, AtomicInteger replyCount,
+                                long intervalMillis) {
+        this.store = store;
+        this.contactId = contactId;
+        this.audioPipeline = audioPipeline;
+        this.trackTranscribers = trackTranscribers;
+        this.replyCount = replyCount;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.nextCheckpointNanos = System.nanoTime() + intervalNanos;
+    }
+
+    /**
+     * Called by the frame loop before each frame is added to its track.
+     * When it returns true, the previous fragment has been read completely and a checkpoint is due,
+     * the caller then flushes the tracks and calls {@link #markRead}.
+     *
+     * @param fragment metadata of the fragment the frame belongs to
+     * @return
+     */
+    public boolean onFrame(Optional<FragmentMetadata> fragment) {
+        if (!fragment.isPresent()) {
+            return false;
+        }
+        String fragmentNumber = fragment.get().getFragmentNumberString();
+        if (fragmentNumber.equals(currentFragmentNumber)) {
+            return false;
+        }
+        previousFragmentNumber = currentFragmentNumber;
+        previousProducerTimestampMillis = currentProducerTimestampMillis;
+        currentFragmentNumber = fragmentNumber;
+        currentProducerTimestampMillis = fragment.get().getProducerSideTimestampMillis();
+        if (previousFragmentNumber == null || System.nanoTime() - nextCheckpointNanos < 0) {
+            return false;
+        }
+        nextCheckpointNanos = System.nanoTime() + intervalNanos;
+        return true;
+    }
+
+    /**
+     * Marks the previous fragment as read, once the tracks have published all of its audio
+     */
+    public void markRead() {
+        readFragments.add(new ReadFragment(previousFragmentNumber, previousProducerTimestampMillis, audioPipeline.getPublishedChunks()));
+    }
+
+    /**
+     * Saves the last fragment read whose audio has been transcribed, if it has not been saved yet.
+     * Called periodically, failures are logged and the checkpoint is saved on the next call.
+     */
+    public synchronized void saveIfTranscribed() {
+        ReadFragment fragment;
+        while ((fragment = readFragments.peek()) != null && isTranscribed(fragment)) {
+            unsavedFragment = readFragments.poll();
+        }
+        if (unsavedFragment != null && save(new CheckpointStore.Checkpoint(contactId, unsavedFragment.fragmentNumber,
+                unsavedFragment.producerTimestampMillis, replyCount.get(), false))) {
+            unsavedFragment = null;
+        }
+    }
+
+    /**
+     * @param fragment
+     * @return true once Google STT has returned final results for all audio sent on each track when the last chunk
+     * of the fragment was sent. Audio sent after the fragment may be waited for as well, it is never less.
+     */
+    private boolean isTranscribed(ReadFragment fragment) {
+        if (fragment.sentOffsets == null) {
+            if (audioPipeline.getSentChunks() < fragment.publishedChunks) {
+                return false;
+            }
+            fragment.sentOffsets = getSentOffsets();
+        }
+        List<InfiniteSpeechStream> speechStreams = getSpeechStreams();
+        for (int i = 0; i < speechStreams.size(); i++) {
+            if (speechStreams.get(i).getFinalizedOffset() < fragment.sentOffsets[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long[] getSentOffsets() {
+        List<InfiniteSpeechStream> speechStreams = getSpeechStreams();
+        long[] sentOffsets = new long[speechStreams.size()];
+        for (int i = 0; i < sentOffsets.length; i++) {
+            sentOffsets[i] = speechStreams.get(i).getSentOffset();
+        }
+        return sentOffsets;
+    }
+
+    private List<InfiniteSpeechStream> getSpeechStreams() {
+        List<InfiniteSpeechStream> speechStreams = new ArrayList<InfiniteSpeechStream>(trackTranscribers.size());
+        for (TrackTranscriber trackTranscriber : trackTranscribers) {
+            speechStreams.add(trackTranscriber.getSpeechStream());
+        }
+        return speechStreams;
+    }
+
+    /**
+     * Saves the last fragment of the stream, once the audio pipeline has been drained and the Google STT streams
+     * finished. If a stream did not complete, its last results may be missing, and the last fragment known to be
+     * transcribed is saved instead.
+     *
+     * @param completed false if the stream may still go on, e.g. after an idle timeout
+     */
+    public synchronized void complete(boolean completed) {
+        if (currentFragmentNumber == null) {
+            return;
+        }
+        for (InfiniteSpeechStream speechStream : getSpeechStreams()) {
+            if (!speechStream.isCompleted()) {
+                logger.warn(String.format("Google STT did not complete for %s, the checkpoint stays at the last fragment transcribed",
+                        contactId));
+                saveIfTranscribed();
+                return;
+            }
+        }
+        save(new CheckpointStore.Checkpoint(contactId, currentFragmentNumber, currentProducerTimestampMillis,
+                replyCount.get(), completed));
+        logger.info(String.format("%d checkpoint(s) saved for %s, last fragment %s", saves, contactId, currentFragmentNumber));
+    }
+
+    private boolean save(CheckpointStore.Checkpoint checkpoint) {
+        try {
+            store.save(checkpoint);
+            saves++;
+            logger.debug("Saved " + checkpoint);
+            return true;
+        } catch (Exception e) {
+            logger.warn("Error saving " + checkpoint, e);
+            return false;
+        }
+    }
+}
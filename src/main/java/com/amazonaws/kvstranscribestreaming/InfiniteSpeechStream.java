@@ -0,0 +1,440 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.ClientStream;
+import com.google.api.gax.rpc.ResponseObserver;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.api.gax.rpc.StreamController;
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.SpeechClient;
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Duration;
+import com.google.protobuf.UnsafeByteOperations;
+import io.perfmark.Link;
+import io.perfmark.PerfMark;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Google STT stream that is not limited by the maximum duration of a streaming session.
+ * Before the limit is reached a new session is opened and the audio that has not been finalized yet
+ * is sent again from an {@link AudioReplayBuffer}. From then on the previous session only delivers the final results
+ * of audio that is not replayed, so every segment is delivered exactly once, with result offsets relative to all the
+ * audio sent on the track. That is the whole track unless the {@link VoiceActivityDetector} skips silence, then the
+ * skipped audio is not counted.
+ * Based on the InfiniteStreamRecognize sample of google java-speech.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class InfiniteSpeechStream {
+
+    /**
+     * Receives the responses of the current session
+     */
+    public interface ResponseHandler {
+        /**
+         * @param response
+         * @param sessionStartMillis position of the start of the session in the audio of the track,
+         *                           to be added to the result offsets of the response
+         */
+        void onResponse(StreamingRecognizeResponse response, long sessionStartMillis);
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(InfiniteSpeechStream.class);
+
+    // Largest audio content sent in one request while replaying
+    private static final int REPLAY_CHUNK_BYTES = 16 * 1024;
+
+    // Sends remembered to measure the latency of the final results, several seconds of audio at any chunk duration
+    private static final int SEND_TIMES = 256;
+
+    private class Session implements ResponseObserver<StreamingRecognizeResponse> {
+        private final int generation;
+        private final long startOffset;
+        private final long startNanos = System.nanoTime();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        // once the next session is opened, end of the audio that is not replayed to it, guarded by responseLock
+        private long replayFrom = Long.MAX_VALUE;
+        private volatile boolean failed = false;
+        private volatile boolean responded = false;
+        private SpeechClient client;
+        private ClientStream<StreamingRecognizeRequest> clientStream;
+        // each session is a new FLAC stream that starts with its own header
+        private FlacEncoder encoder;
+
+        private Session(int generation, long startOffset) {
+            this.generation = generation;
+            this.startOffset = startOffset;
+        }
+
+        public void onStart(StreamController controller) {
+            logger.info(String.format("GoogleSTT Start : %s session %d", name, generation));
+        }
+
+        public void onResponse(StreamingRecognizeResponse response) {
+            PerfMark.startTask("InfiniteSpeechStream.onResponse", name);
+            try {
+                // the responses of both sessions of a rollover are handled one at a time
+                synchronized (responseLock) {
+                    if (isReplayed(response)) {
+                        // this audio has been replayed to the next session
+                        return;
+                    }
+                    if (!responded) {
+                        responded = true;
+                        if (generation > 0) {
+                            seamLatency(this);
+                        }
+                    }
+                    for (int i = 0; i < response.getResultsCount(); i++) {
+                        StreamingRecognitionResult result = response.getResults(i);
+                        if (result.getIsFinal() && result.hasResultEndTime()) {
+                            long endOffset = startOffset + toMillis(result.getResultEndTime()) * bytesPerMillisecond;
+                            finalizedOffset.accumulateAndGet(endOffset, Math::max);
+                            resultLatency(endOffset);
+                        }
+                    }
+                    responseHandler.onResponse(response, startOffset / bytesPerMillisecond);
+                }
+            } finally {
+                PerfMark.stopTask("InfiniteSpeechStream.onResponse", name);
+            }
+        }
+
+        /**
+         * @param response
+         * @return true if the response holds anything but final results of audio before replayFrom
+         */
+        private boolean isReplayed(StreamingRecognizeResponse response) {
+            if (replayFrom == Long.MAX_VALUE) {
+                return false;
+            }
+            if (response.getResultsCount() == 0) {
+                return true;
+            }
+            for (int i = 0; i < response.getResultsCount(); i++) {
+                StreamingRecognitionResult result = response.getResults(i);
+                if (!result.getIsFinal() || !result.hasResultEndTime()
+                        || startOffset + toMillis(result.getResultEndTime()) * bytesPerMillisecond > replayFrom) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void onComplete() {
+            logger.info(String.format("GoogleSTT Complete : %s session %d", name, generation));
+            completed.countDown();
+        }
+
+        public void onError(Throwable t) {
+            failed = true;
+            if (this == current) {
+                logger.error(String.format("GoogleSTT Error : %s session %d : %s\n", name, generation, t));
+            } else {
+                logger.info(String.format("GoogleSTT previous session ended : %s session %d : %s", name, generation, t));
+            }
+            if (t instanceof ApiException
+                    && ((ApiException) t).getStatusCode().getCode() == StatusCode.Code.UNAVAILABLE) {
+                // the shared channel is broken, the next session will use a new one
+                ClientRegistry.invalidateSpeechClient(client);
+            }
+            completed.countDown();
+        }
+    }
+
+    private final String name;
+    private final StreamingRecognitionConfig streamingRecognitionConfig;
+    private final ResponseHandler responseHandler;
+    private final long bytesPerMillisecond;
+    private final long streamingLimitMillis;
+    private final long rolloverWindowMillis;
+    private final long rolloverBudgetMillis;
+    private final AudioReplayBuffer replayBuffer;
+
+    // End of the audio finalized by Google STT, as an offset in the audio sent on the track
+    private final AtomicLong finalizedOffset = new AtomicLong();
+    // Taken to handle a response, and to choose the audio to replay at a rollover
+    private final Object responseLock = new Object();
+    private volatile Session current;
+    private volatile long rolloverStartNanos;
+    private int rollovers = 0;
+    private final AtomicLong maxSeamMillis = new AtomicLong();
+
+    // End offset and System.nanoTime() of the last sends, a ring written by send and read by the responses
+    private final MetricsUtil.Stat resultLatency;
+    private final long[] sentOffsets = new long[SEND_TIMES];
+    private final long[] sentNanos = new long[SEND_TIMES];
+    private final Link[] sentLinks = new Link[SEND_TIMES];
+    private long sends = 0;
+
+    // Audio sent by the STT stage and the rollovers, before and after FLAC encoding
+    private long pcmBytes = 0;
+    private long encodedBytes = 0;
+
+    /**
+     * @param name                       name used in logs, e.g. the track name
+     * @param streamingRecognitionConfig
+     * @param responseHandler
+     * @param bytesPerMillisecond        size of one millisecond of the audio sent
+     * @param streamingLimitMillis       a new session is opened at the latest after this duration
+     * @param rolloverWindowMillis       within this duration before the limit, a new session is opened as soon as
+     *                                   all audio sent has been finalized, so that there is little to replay
+     * @param maxReplayMillis            largest amount of audio that is not finalized yet and can be replayed
+     * @param rolloverBudgetMillis       time from the rollover to the first response of the new session above which
+     *                                   a warning is logged
+     * @param resultLatency              time from sending the end of an utterance to its final result
+     */
+    public InfiniteSpeechStream(String name, StreamingRecognitionConfig streamingRecognitionConfig, ResponseHandler responseHandler,
+                                int bytesPerMillisecond, long streamingLimitMillis, long rolloverWindowMillis,
+                                long maxReplayMillis, long rolloverBudgetMillis, MetricsUtil.Stat resultLatency) {
+        this.name = name;
+        this.streamingRecognitionConfig = streamingRecognitionConfig;
+        this.responseHandler = responseHandler;
+        this.bytesPerMillisecond = bytesPerMillisecond;
+        this.streamingLimitMillis = streamingLimitMillis;
+        // the session must live for a while before rolling over early
+        this.rolloverWindowMillis = Math.min(rolloverWindowMillis, streamingLimitMillis / 2);
+        this.rolloverBudgetMillis = rolloverBudgetMillis;
+        this.replayBuffer = new AudioReplayBuffer((int) (maxReplayMillis * bytesPerMillisecond));
+        this.resultLatency = resultLatency;
+    }
+
+    /**
+     * Opens the first session
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        current = openSession(0, 0);
+    }
+
+    /**
+     * Sends audio to the current session, rolling over to a new session first if it is time to.
+     * Called by the STT stage of the audio pipeline only.
+     *
+     * @param audio
+     * @throws IOException
+     */
+    public void send(ByteBuffer audio) throws IOException {
+        Session session = current;
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - session.startNanos);
+        boolean allFinalized = finalizedOffset.get() >= replayBuffer.getWrittenBytes();
+        if (session.failed
+                || elapsedMillis >= streamingLimitMillis
+                || (elapsedMillis >= streamingLimitMillis - rolloverWindowMillis && allFinalized)) {
+            session = rollover(session);
+        }
+
+        PerfMark.startTask("InfiniteSpeechStream.send", name);
+        try {
+            ByteString content = toByteString(session, audio);
+            if (!content.isEmpty()) {
+                session.clientStream.send(StreamingRecognizeRequest.newBuilder().setAudioContent(content).build());
+            }
+            replayBuffer.append(audio);
+            sent(replayBuffer.getWrittenBytes(), PerfMark.linkOut());
+        } finally {
+            PerfMark.stopTask("InfiniteSpeechStream.send", name);
+        }
+    }
+
+    /**
+     * Closes the current session and waits for its last responses
+     *
+     * @param timeoutMillis
+     * @throws InterruptedException
+     */
+    public void finish(long timeoutMillis) throws InterruptedException {
+        Session session = current;
+        closeSend(session);
+        if (!session.completed.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            logger.warn(String.format("GoogleSTT did not complete within %d ms : %s", timeoutMillis, name));
+        }
+        logger.info(String.format("GoogleSTT %s : %d rollover(s), max seam latency %d ms", name, rollovers, maxSeamMillis.get()));
+        if (encodedBytes > 0) {
+            logger.info(String.format("GoogleSTT %s : sent %d bytes of FLAC for %d bytes of PCM (%.0f%%)", name,
+                    encodedBytes, pcmBytes, 100.0 * encodedBytes / pcmBytes));
+        }
+    }
+
+    /**
+     * @return end of the audio sent so far, as an offset in the audio sent on the track
+     */
+    public synchronized long getSentOffset() {
+        return sends == 0 ? 0 : sentOffsets[(int) ((sends - 1) % SEND_TIMES)];
+    }
+
+    /**
+     * @return end of the audio Google STT has returned final results for, as an offset in the audio sent on the track
+     */
+    public long getFinalizedOffset() {
+        return finalizedOffset.get();
+    }
+
+    /**
+     * @return true once the last session has completed without error after {@link #finish}, every final result
+     * has been received then
+     */
+    public boolean isCompleted() {
+        Session session = current;
+        return session.completed.getCount() == 0 && !session.failed;
+    }
+
+    private Session rollover(Session previous) throws IOException {
+        rolloverStartNanos = System.nanoTime();
+        long replayFrom;
+        synchronized (responseLock) {
+            replayFrom = finalizedOffset.get();
+            if (replayFrom < replayBuffer.getOldestOffset()) {
+                logger.warn(String.format("GoogleSTT %s : %d ms of audio not finalized is too old to replay", name,
+                        (replayBuffer.getOldestOffset() - replayFrom) / bytesPerMillisecond));
+                replayFrom = replayBuffer.getOldestOffset();
+            }
+            replayFrom = Math.min(replayFrom, replayBuffer.getWrittenBytes());
+            // from now on the results of the previous session after replayFrom are dropped
+            previous.replayFrom = replayFrom;
+        }
+
+        Session session = openSession(previous.generation + 1, replayFrom);
+        // the responses of the new session are delivered while it is replayed to already
+        current = session;
+        List<ByteString> replay = replayBuffer.read(replayFrom, REPLAY_CHUNK_BYTES);
+        for (ByteString chunk : replay) {
+            ByteString content = session.encoder == null ? chunk
+                    : UnsafeByteOperations.unsafeWrap(encode(session, chunk.asReadOnlyByteBuffer()));
+            session.clientStream.send(StreamingRecognizeRequest.newBuilder().setAudioContent(content).build());
+        }
+        closeSend(previous);
+        rollovers++;
+
+        logger.info(String.format("GoogleSTT %s : rolled over to session %d after %d ms, replayed %d ms", name,
+                session.generation, TimeUnit.NANOSECONDS.toMillis(rolloverStartNanos - previous.startNanos),
+                (replayBuffer.getWrittenBytes() - replayFrom) / bytesPerMillisecond));
+        return session;
+    }
+
+    private Session openSession(int generation, long startOffset) throws IOException {
+        Session session = new Session(generation, startOffset);
+        if (streamingRecognitionConfig.getConfig().getEncoding() == RecognitionConfig.AudioEncoding.FLAC) {
+            session.encoder = new FlacEncoder(streamingRecognitionConfig.getConfig().getSampleRateHertz());
+        }
+        session.client = ClientRegistry.getSpeechClient();
+        session.clientStream = session.client.streamingRecognizeCallable().splitCall(session);
+
+        // Send configuration request
+        session.clientStream.send(StreamingRecognizeRequest.newBuilder()
+                .setStreamingConfig(streamingRecognitionConfig)
+                .build());
+        return session;
+    }
+
+    private void seamLatency(Session session) {
+        long seamMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - rolloverStartNanos);
+        maxSeamMillis.accumulateAndGet(seamMillis, Math::max);
+        if (seamMillis > rolloverBudgetMillis) {
+            logger.warn(String.format("GoogleSTT %s : session %d answered %d ms after the rollover, budget is %d ms",
+                    name, session.generation, seamMillis, rolloverBudgetMillis));
+        }
+    }
+
+    private synchronized void sent(long endOffset, Link link) {
+        int slot = (int) (sends++ % SEND_TIMES);
+        sentOffsets[slot] = endOffset;
+        sentNanos[slot] = System.nanoTime();
+        sentLinks[slot] = link;
+    }
+
+    /**
+     * Records the time since the audio at the end of a final result was sent, if it is still remembered,
+     * and links the result to that send in the PerfMark trace
+     *
+     * @param endOffset
+     */
+    private synchronized void resultLatency(long endOffset) {
+        long oldest = Math.max(0, sends - SEND_TIMES);
+        if (oldest > 0 && endOffset <= sentOffsets[(int) (oldest % SEND_TIMES)]) {
+            // the send holding the end of the result may have been forgotten already
+            return;
+        }
+        // the first send whose audio reaches the end of the result, the offsets only grow
+        for (long i = oldest; i < sends; i++) {
+            int slot = (int) (i % SEND_TIMES);
+            if (sentOffsets[slot] >= endOffset) {
+                resultLatency.recordSince(sentNanos[slot]);
+                PerfMark.linkIn(sentLinks[slot]);
+                return;
+            }
+        }
+    }
+
+    private void closeSend(Session session) {
+        if (session.failed) {
+            return;
+        }
+        try {
+            session.clientStream.closeSend();
+        } catch (IllegalStateException e) {
+            logger.info(String.format("GoogleSTT %s : session %d already closed", name, session.generation));
+        }
+    }
+
+    private byte[] encode(Session session, ByteBuffer pcm) {
+        byte[] flac = session.encoder.encode(pcm);
+        pcmBytes += pcm.remaining();
+        encodedBytes += flac.length;
+        return flac;
+    }
+
+    /**
+     * Copies the pooled chunk for the request, or encodes it into a new array with FLAC.
+     * gRPC may keep the message after send returns, e.g. to buffer it for a retry, while the chunk goes back to
+     * the pool and is refilled as soon as this returns, so the request must not share its bytes.
+     *
+     * @param session
+     * @param chunk
+     * @return
+     */
+    private ByteString toByteString(Session session, ByteBuffer chunk) {
+        if (session.encoder != null) {
+            return UnsafeByteOperations.unsafeWrap(encode(session, chunk));
+        }
+        return ByteString.copyFrom(chunk.duplicate());
+    }
+
+    private static long toMillis(Duration duration) {
+        return duration.getSeconds() * 1000 + duration.getNanos() / 1000000;
+    }
+}
@@ -0,0 +1,124 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.google.cloud.speech.v1.SpeechClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a saved GetMedia stream through the whole pipeline, to measure throughput and latency without a call.
+ * By default Google STT and DynamoDB are replaced by local stand-ins, so neither AWS nor Google is needed.
+ * The environment variables of the Lambda are read as usual, REGION, LIMITDAY_OF_TTL and TRANSCRIPT_TABLE_NAME are required.
+ *
+ * The contact ID is taken from REPLAY_CONTACT_ID, or from the name of a file saved with GETMEDIA_TEE_KEY_PREFIX.
+ *
+ * Usage: KVSReplayMain file.mkv [speed] [--google-speech] [--dynamodb]
+ *   speed            1 for real time (default), 2 for twice as fast, 0 as fast as possible
+ *   --google-speech  send the audio to Google STT, or to SPEECH_ENDPOINT, instead of the local stand-in
+ *   --dynamodb       write the segments to DynamoDB instead of the local stand-in
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class KVSReplayMain {
+
+    private static final Logger logger = LoggerFactory.getLogger(KVSReplayMain.class);
+
+    /**
+     * Files saved by GETMEDIA_TEE_KEY_PREFIX are named contactId_date_GETMEDIA.mkv, the contact ID must match the tags of the stream
+     *
+     * @param inputFileName
+     * @return
+     */
+    static String getContactId(String inputFileName) {
+        String fileName = Paths.get(inputFileName).getFileName().toString();
+        int separator = fileName.indexOf('_');
+        return separator > 0 ? fileName.substring(0, separator) : "replay";
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: KVSReplayMain file.mkv [speed] [--google-speech] [--dynamodb]");
+            System.exit(1);
+        }
+
+        String inputFileName = args[0];
+        double speed = 1.0;
+        boolean googleSpeech = false;
+        boolean dynamoDB = false;
+        for (int i = 1; i < args.length; i++) {
+            if ("--google-speech".equals(args[i])) {
+                googleSpeech = true;
+            } else if ("--dynamodb".equals(args[i])) {
+                dynamoDB = true;
+            } else {
+                speed = Double.parseDouble(args[i]);
+            }
+        }
+
+        LocalSpeechStub localSpeech = null;
+        if (!googleSpeech) {
+            localSpeech = new LocalSpeechStub(16, EnvUtils.getLong("LOCAL_SPEECH_SEGMENT_MS", 3000),
+                    EnvUtils.getLong("LOCAL_SPEECH_INTERIM_MS", 250), EnvUtils.getLong("LOCAL_SPEECH_DELAY_MS", 300));
+            ClientRegistry.setSpeechClient(SpeechClient.create(localSpeech));
+        }
+        LocalDynamoDB localDynamoDB = null;
+        if (!dynamoDB) {
+            localDynamoDB = new LocalDynamoDB();
+            ClientRegistry.setDynamoDB(Regions.fromName(System.getenv("REGION")), new DynamoDB(localDynamoDB));
+        }
+
+        TranscriptionRequest request = new TranscriptionRequest();
+        request.setInputFileName(inputFileName);
+        request.setReplaySpeed(speed);
+        request.setConnectContactId(EnvUtils.getString("REPLAY_CONTACT_ID", getContactId(inputFileName)));
+        request.setPhoneNumber(EnvUtils.getString("REPLAY_PHONE_NUMBER", "replay"));
+        request.setSaveCallRecording(false);
+        // the fixtures have both tracks
+        request.setStreamAudioToCustomer(true);
+
+        long startNanos = System.nanoTime();
+        String result = new KVSTranscribeStreamingLambda().handleRequest(request, null);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        KVSTranscribeStreamingLambda.metricsUtil.shutdown();
+
+        logger.info(String.format("Replay of %s finished in %d ms : %s", inputFileName, elapsedMillis, result));
+        if (localSpeech != null) {
+            logger.info(String.format("Local speech : %d stream(s), %d ms of audio sent, %d result(s), %d interim result(s)",
+                    localSpeech.getStreams(), localSpeech.getAudioMillis(), localSpeech.getResults(),
+                    localSpeech.getInterimResults()));
+        }
+        if (localDynamoDB != null) {
+            logger.info(String.format("Local DynamoDB : %d item(s) in %d BatchWriteItem call(s)",
+                    localDynamoDB.getItems(System.getenv("TRANSCRIPT_TABLE_NAME")).size(), localDynamoDB.getBatchWrites()));
+            if (System.getenv("LIVE_TABLE_NAME") != null) {
+                logger.info(String.format("Local DynamoDB : %d live item write(s)",
+                        localDynamoDB.getItems(System.getenv("LIVE_TABLE_NAME")).size()));
+            }
+        }
+    }
+}
@@ -3,7 +3,6 @@ package com.amazonaws.kvstranscribestreaming;
 import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
 import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
 
-import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.nio.file.Path;
 
@@ -39,18 +38,23 @@ public class KVSStreamTrackObject {
     private KVSContactTagProcessor tagProcessor;
     private FragmentMetadataVisitor fragmentVisitor;
     private Path saveAudioFilePath;
-    private FileOutputStream outputStream;
+    private RecordingSink recordingSink;
+    private RecordingUploader recordingUploader;
+    private StereoRecorder stereoRecorder;
     private String trackName;
 
     public KVSStreamTrackObject(InputStream inputStream, StreamingMkvReader streamingMkvReader,
                                 KVSContactTagProcessor tagProcessor, FragmentMetadataVisitor fragmentVisitor,
-                                Path saveAudioFilePath, FileOutputStream outputStream, String trackName) {
+                                Path saveAudioFilePath, RecordingSink recordingSink, RecordingUploader recordingUploader,
+                                StereoRecorder stereoRecorder, String trackName) {
         this.inputStream = inputStream;
         this.streamingMkvReader = streamingMkvReader;
         this.tagProcessor = tagProcessor;
         this.fragmentVisitor = fragmentVisitor;
         this.saveAudioFilePath = saveAudioFilePath;
-        this.outputStream = outputStream;
+        this.recordingSink = recordingSink;
+        this.recordingUploader = recordingUploader;
+        this.stereoRecorder = stereoRecorder;
         this.trackName = trackName;
     }
 
@@ -74,8 +78,25 @@ public class KVSStreamTrackObject {
         return saveAudioFilePath;
     }
 
-    public FileOutputStream getOutputStream() {
-        return outputStream;
+    /**
+     * @return recording of the track, null if both tracks are recorded to the stereo file or not saved
+     */
+    public RecordingSink getRecordingSink() {
+        return recordingSink;
+    }
+
+    /**
+     * @return uploader of the recording during the call, null if it is uploaded at the end or not saved
+     */
+    public RecordingUploader getRecordingUploader() {
+        return recordingUploader;
+    }
+
+    /**
+     * @return stereo recording of both tracks, null if each track is recorded to its own file
+     */
+    public StereoRecorder getStereoRecorder() {
+        return stereoRecorder;
     }
 
     public String getTrackName() {
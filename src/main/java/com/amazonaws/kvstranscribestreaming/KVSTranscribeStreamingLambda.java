@@ -1,41 +1,47 @@
 package com.amazonaws.kvstranscribestreaming;
 
+import com.amazonaws.SdkClientException;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
 import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
 import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatchClientBuilder;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
-import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
+import io.perfmark.PerfMark;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.net.URLEncoder;
 
-import com.google.api.gax.rpc.ClientStream;
-import com.google.api.gax.rpc.ResponseObserver;
-import com.google.api.gax.rpc.StreamController;
 import com.google.cloud.speech.v1.RecognitionConfig;
-import com.google.cloud.speech.v1.SpeechClient;
-import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
 import com.google.cloud.speech.v1.StreamingRecognitionConfig;
-import com.google.cloud.speech.v1.StreamingRecognitionResult;
-import com.google.cloud.speech.v1.StreamingRecognizeRequest;
-import com.google.cloud.speech.v1.StreamingRecognizeResponse;
-import com.google.protobuf.ByteString;
+
+import static com.amazonaws.util.StringUtils.isNullOrEmpty;
 
 /**
  * This Lambda is invoked by another Lambda. 
@@ -74,19 +80,115 @@ public class KVSTranscribeStreamingLambda implements RequestHandler<Transcriptio
     private static final String RECORDINGS_BUCKET_NAME = System.getenv("RECORDINGS_BUCKET_NAME");
     private static final String RECORDINGS_KEY_PREFIX = System.getenv("RECORDINGS_KEY_PREFIX");
     private static final boolean RECORDINGS_PUBLIC_READ_ACL = Boolean.parseBoolean(System.getenv("RECORDINGS_PUBLIC_READ_ACL"));
+    // Recordings are encoded while the call streams in, WAV, lossless FLAC or Opus in Ogg at this bitrate
+    private static final RecordingSink.Format RECORDING_FORMAT =
+            RecordingSink.Format.valueOf(EnvUtils.getString("RECORDING_FORMAT", "WAV").toUpperCase());
+    private static final int RECORDING_OPUS_BITRATE = EnvUtils.getInt("RECORDING_OPUS_BITRATE", 16000);
+    // Saved recordings are uploaded in parts of this size during the call, 0 to upload them at the end in one request
+    private static final long RECORDING_UPLOAD_PART_MB = EnvUtils.getLong("RECORDING_UPLOAD_PART_MB", 5);
+    // Both tracks are recorded to one stereo file aligned by their timecodes with STEREO, to a file per track by default
+    private static final boolean RECORDING_STEREO = "STEREO".equalsIgnoreCase(EnvUtils.getString("RECORDING_LAYOUT", "TRACKS"));
+    // A channel of the stereo recording this far behind the other is filled with silence
+    private static final int RECORDING_STEREO_MAX_LAG_MILLIS = 5000;
     private static final String START_SELECTOR_TYPE = System.getenv("START_SELECTOR_TYPE");
     private static final String TRANSCRIPT_TABLE_NAME = System.getenv("TRANSCRIPT_TABLE_NAME");
     private static final int LIMITDAY_OF_TTL = Integer.parseInt(System.getenv("LIMITDAY_OF_TTL"));
 
-    private static final Logger logger = LoggerFactory.getLogger(KVSTranscribeStreamingLambda.class);
-    public static final MetricsUtil metricsUtil = new MetricsUtil(AmazonCloudWatchClientBuilder.defaultClient());
-    private static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    // The stream is handed off to a new invocation when less than this is left of the Lambda timeout, 0 to never hand off
+    private static final long LAMBDA_HANDOFF_MARGIN_MILLIS = EnvUtils.getLong("LAMBDA_HANDOFF_MARGIN_MS", 60000);
+
+    // When set, the last fragment sent to Google STT is saved to this table, and new invocations for the contact resume after it
+    private static final String CHECKPOINT_TABLE_NAME = System.getenv("CHECKPOINT_TABLE_NAME");
+    private static final long CHECKPOINT_INTERVAL_MILLIS = EnvUtils.getLong("CHECKPOINT_INTERVAL_MS", 5000);
+
+    // When set, the interim transcripts of each contact are published to this table, partition key ContactId,
+    // the item being written at most once per interval
+    private static final String LIVE_TABLE_NAME = System.getenv("LIVE_TABLE_NAME");
+    private static final long LIVE_UPDATE_INTERVAL_MILLIS = EnvUtils.getLong("LIVE_UPDATE_INTERVAL_MS", 300);
 
-    // SegmentWriter saves Transcription segments to DynamoDB
-    private TranscribedSegmentWriter fromCustomerSegmentWriter = null;
+    // When set, the raw GetMedia bytes of each call are saved and uploaded with this prefix, to be replayed later
+    private static final String GETMEDIA_TEE_KEY_PREFIX = System.getenv("GETMEDIA_TEE_KEY_PREFIX");
 
-    // Number of replies
-    private int replyCount = 1;
+    // The GetMedia stream is read ahead on its own thread, and the call ends when KVS has sent nothing for this long
+    private static final long KVS_IDLE_TIMEOUT_MILLIS = EnvUtils.getLong("KVS_IDLE_TIMEOUT_MS", 20000);
+    private static final int KVS_READ_AHEAD_KB = EnvUtils.getInt("KVS_READ_AHEAD_KB", 1024);
+    private static final long KVS_READ_MAX_BACKOFF_MILLIS = EnvUtils.getLong("KVS_READ_MAX_BACKOFF_MS", 100);
+    private static final int KVS_READ_SIZE = 16 * 1024;
+
+    private static final Logger logger = LoggerFactory.getLogger(KVSTranscribeStreamingLambda.class);
+    // Metrics are aggregated in process and published in the background, per contact as well when enabled
+    public static final MetricsUtil metricsUtil = new MetricsUtil(AmazonCloudWatchClientBuilder.standard().withRegion(REGION).build(),
+            MetricsUtil.Mode.valueOf(EnvUtils.getString("METRICS_MODE", "CLOUDWATCH").toUpperCase()),
+            EnvUtils.getBoolean("METRICS_CONTACT_DIMENSION", false), EnvUtils.getLong("METRICS_FLUSH_INTERVAL_MS", 60000));
+    // shared by concurrent calls in service mode, so it must be thread safe
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+            .withZone(ZoneId.systemDefault());
+
+    // Audio duration joined into one request to Google STT, short while the call is live and long while catching up
+    private static final int CHUNK_MIN_MILLIS = EnvUtils.getInt("CHUNK_MIN_MS", 50);
+    private static final int CHUNK_MAX_MILLIS = EnvUtils.getInt("CHUNK_MAX_MS", 200);
+
+    // A partial chunk is sent when no frame of its track has arrived for this long
+    private static final long CHUNK_IDLE_FLUSH_MILLIS = EnvUtils.getLong("CHUNK_IDLE_FLUSH_MS", 100);
+
+    // Capacity of a pooled chunk buffer, the longest chunk plus a frame. Larger chunks are moved to an unpooled buffer.
+    private static final int CHUNK_BUFFER_CAPACITY = Math.max(CHUNK_MIN_MILLIS, CHUNK_MAX_MILLIS) * 16 + 4096;
+
+    // Flushes idle chunks, saves checkpoints and writes the live transcripts of the calls, kept for the next invocations.
+    // Its tasks never wait for the audio pipeline. A single thread is enough for a Lambda, the service mode sizes it
+    // with setSchedulerThreads for the number of its calls.
+    private static final ScheduledThreadPoolExecutor chunkFlushScheduler = new ScheduledThreadPoolExecutor(
+            EnvUtils.getInt("SCHEDULER_THREADS", 1), r -> {
+        Thread thread = new Thread(r, "chunk-idle-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Uploads the parts of the recordings during the calls, kept for the next invocations
+    private static final ExecutorService recordingUploadExecutor = Executors.newFixedThreadPool(
+            EnvUtils.getInt("RECORDING_UPLOAD_THREADS", 4), r -> {
+        Thread thread = new Thread(r, "recording-upload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Number of chunks the STT and recording stages may fall behind the KVS reader
+    private static final int AUDIO_PIPELINE_CAPACITY = 64;
+
+    // Time to wait for the last responses after the audio stream has ended
+    private static final long SPEECH_COMPLETE_TIMEOUT_MILLIS = 5000;
+
+    // Google STT streaming sessions are limited to about 5 minutes, a new session is opened before the limit.
+    // Within the rollover window the session is rolled over as soon as all audio sent has been finalized.
+    private static final long SPEECH_STREAMING_LIMIT_MILLIS = EnvUtils.getLong("SPEECH_STREAMING_LIMIT_MS", 290000);
+    private static final long SPEECH_ROLLOVER_WINDOW_MILLIS = EnvUtils.getLong("SPEECH_ROLLOVER_WINDOW_MS", 30000);
+    private static final long SPEECH_MAX_REPLAY_MILLIS = EnvUtils.getLong("SPEECH_MAX_REPLAY_MS", 30000);
+    private static final long SPEECH_ROLLOVER_BUDGET_MILLIS = EnvUtils.getLong("SPEECH_ROLLOVER_BUDGET_MS", 1000);
+
+    // LINEAR16 sends the PCM as is, FLAC compresses it losslessly before it is sent
+    private static final RecognitionConfig.AudioEncoding SPEECH_ENCODING =
+            RecognitionConfig.AudioEncoding.valueOf(EnvUtils.getString("SPEECH_ENCODING", "LINEAR16").toUpperCase());
+
+    // Voice activity detection, off by default. Silence is not sent to Google STT but is still recorded
+    private static final VoiceActivityDetector.Mode VAD_MODE =
+            VoiceActivityDetector.Mode.valueOf(EnvUtils.getString("VAD_MODE", "OFF").toUpperCase());
+    private static final int VAD_MIN_ENERGY = EnvUtils.getInt("VAD_MIN_ENERGY", 200);
+    private static final int VAD_HANGOVER_MILLIS = EnvUtils.getInt("VAD_HANGOVER_MS", 300);
+    private static final int VAD_PRE_ROLL_MILLIS = EnvUtils.getInt("VAD_PRE_ROLL_MS", 200);
+    private static final int VAD_KEEP_ALIVE_INTERVAL_MILLIS = EnvUtils.getInt("VAD_KEEP_ALIVE_INTERVAL_MS", 5000);
+
+    // Time segments may wait to be grouped into one BatchWriteItem, and to wait for pending writes at the end
+    private static final long DDB_BATCH_WINDOW_MILLIS = 200;
+    private static final long DDB_FLUSH_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Sizes the scheduler shared by the calls of the process
+     *
+     * @param threads
+     */
+    static void setSchedulerThreads(int threads) {
+        chunkFlushScheduler.setCorePoolSize(threads);
+    }
 
     /**
      * Handler function for the Lambda
@@ -99,103 +201,196 @@ public class KVSTranscribeStreamingLambda implements RequestHandler<Transcriptio
     public String handleRequest(TranscriptionRequest request, Context context) {
 
         logger.info("received request: " + request.toString());
-        logger.info("received context: " + context.toString());
+        logger.info("received context: " + context);
+        PerfMark.startTask("KVSTranscribeStreamingLambda.handleRequest", PerfMarkTracing.tag(request.getConnectContactId()));
 
+        DynamoDBBatchWriter batchWriter = null;
         try {
-            // create a SegmentWriter to be able to save off transcription results
-            AmazonDynamoDBClientBuilder builder = AmazonDynamoDBClientBuilder.standard();
-            builder.setRegion(REGION.getName());
-            fromCustomerSegmentWriter = new TranscribedSegmentWriter(request.getConnectContactId(), new DynamoDB(builder.build()));
+            // a warm container keeps the recordings of earlier calls that did not end normally
+            RecordingFile.deleteLeftovers(Paths.get("/tmp"));
+
+            // create a DynamoDB writer to be able to save off transcription results
+            batchWriter = new DynamoDBBatchWriter(ClientRegistry.getDynamoDB(REGION), DDB_BATCH_WINDOW_MILLIS,
+                    metricsUtil.stat("DynamoDBWriteLatency", StandardUnit.Milliseconds, request.getConnectContactId()));
+
+            List<String> trackNames = new ArrayList<String>();
+            if (request.isStreamAudioFromCustomerEnabled()) {
+                trackNames.add(KVSUtils.TrackName.AUDIO_FROM_CUSTOMER.getName());
+            }
+            if (request.isStreamAudioToCustomerEnabled()) {
+                trackNames.add(KVSUtils.TrackName.AUDIO_TO_CUSTOMER.getName());
+            }
+
+            // Hand the stream off to a new invocation before the Lambda times out, leaving time to drain and save the work
+            long handoffAtMillis = Long.MAX_VALUE;
+            if (context != null && LAMBDA_HANDOFF_MARGIN_MILLIS > 0 && isNullOrEmpty(request.getInputFileName())) {
+                handoffAtMillis = System.currentTimeMillis() + context.getRemainingTimeInMillis() - LAMBDA_HANDOFF_MARGIN_MILLIS;
+            }
 
             // Start Google Speech to Text
-            startKVSToTranscribeStreaming(request.getStreamARN(), request.getStartFragmentNum(), request.getConnectContactId(), request.getSaveCallRecording(), request.getPhoneNumber());
+            Optional<CheckpointStore.Checkpoint> continuation = startKVSToTranscribeStreaming(request, trackNames, batchWriter, handoffAtMillis);
+
+            if (continuation.isPresent()) {
+                // the transcripts must be written before the next invocation continues the numbering
+                batchWriter.close(DDB_FLUSH_TIMEOUT_MILLIS);
+                batchWriter = null;
+                ContinuationInvoker.invoke(ClientRegistry.getLambdaClient(REGION), context.getInvokedFunctionArn(),
+                        request.continueAfter(continuation.get().getFragmentNumber(), continuation.get().getReplyCount()));
+                return "{ \"result\": \"HandedOff\" }";
+            }
 
             return "{ \"result\": \"Success\" }";
 
         } catch (Exception e) {
             logger.error("KVS to Transcribe Streaming failed with: ", e);
             return "{ \"result\": \"Failed\" }";
+        } finally {
+            if (batchWriter != null) {
+                try {
+                    // write the remaining segments before the Lambda is frozen
+                    batchWriter.close(DDB_FLUSH_TIMEOUT_MILLIS);
+                } catch (InterruptedException e) {
+                    logger.error("Interrupted while flushing DDB writes: ", e);
+                }
+            }
+            // the recordings of a call that failed before uploading them would hold /tmp until the container is recycled
+            RecordingFile.deleteAll(request.getConnectContactId());
+            metricsUtil.release(request.getConnectContactId());
+            PerfMark.stopTask("KVSTranscribeStreamingLambda.handleRequest");
+            PerfMarkTracing.dump(request.getConnectContactId());
+            if (context != null) {
+                // publish the metrics of the call before the Lambda is frozen
+                metricsUtil.flush();
+            }
         }
     }
 
     /**
-     * Get the audio stream from KVS and transcribe it with GoogleSpeechToText.
+     * Get the audio stream from KVS and transcribe each requested track with its own GoogleSpeechToText stream.
+     * All tracks are read from a single GetMedia call, or from a saved GetMedia stream when inputFileName is set.
      * 
-     * @param streamARN
-     * @param startFragmentNum
-     * @param contactId
+     * The stream is handed off at the first fragment boundary after handoffAtMillis,
+     * so that the invocation can drain and save its work before the Lambda times out.
+     *
+     * @param request
+     * @param trackNames
+     * @param batchWriter
+     * @param handoffAtMillis epoch milliseconds after which the stream is handed off, Long.MAX_VALUE to read it to the end
+     * @return where a new invocation has to continue, or empty if the stream has ended
      * @throws Exception
      */
-    private void startKVSToTranscribeStreaming(String streamARN, String startFragmentNum, String contactId,Optional<Boolean> saveCallRecording, String phoneNumber) throws Exception {
-
-        String streamName = streamARN.substring(streamARN.indexOf("/") + 1, streamARN.lastIndexOf("/"));
-        KVSStreamTrackObject kvsStreamTrackObjectFromCustomer = getKVSStreamTrackObject(streamName, startFragmentNum, KVSUtils.TrackName.AUDIO_FROM_CUSTOMER.getName(), contactId);
+    private Optional<CheckpointStore.Checkpoint> startKVSToTranscribeStreaming(TranscriptionRequest request, List<String> trackNames,
+                                                                                DynamoDBBatchWriter batchWriter,
+                                                                                long handoffAtMillis) throws Exception {
+
+        String streamARN = request.getStreamARN();
+        String startFragmentNum = request.getStartFragmentNum();
+        String contactId = request.getConnectContactId();
+        Optional<Boolean> saveCallRecording = request.getSaveCallRecording();
+        String phoneNumber = request.getPhoneNumber();
+        String inputFileName = request.getInputFileName();
+        double replaySpeed = request.getReplaySpeed();
+
+        // A continuation of a previous invocation starts after the fragment it handed off
+        String startSelectorType = isNullOrEmpty(request.getStartSelectorType()) ? START_SELECTOR_TYPE : request.getStartSelectorType();
+        int firstReplyCount = request.getReplyCount() > 0 ? request.getReplyCount() : 1;
+
+        // Resume after the last checkpoint of the contact, replays of saved streams always start from the beginning
+        CheckpointStore checkpointStore = null;
+        if (!isNullOrEmpty(CHECKPOINT_TABLE_NAME) && isNullOrEmpty(inputFileName)) {
+            checkpointStore = new CheckpointStore(ClientRegistry.getDynamoDB(REGION), CHECKPOINT_TABLE_NAME, LIMITDAY_OF_TTL);
+            Optional<CheckpointStore.Checkpoint> checkpoint = checkpointStore.load(contactId);
+            if (checkpoint.isPresent()) {
+                if (checkpoint.get().isCompleted()) {
+                    logger.info(String.format("Contact %s has already been transcribed: %s", contactId, checkpoint.get()));
+                    return Optional.empty();
+                }
+                logger.info("Resuming from " + checkpoint.get());
+                startFragmentNum = checkpoint.get().getFragmentNumber();
+                startSelectorType = "FRAGMENT_NUMBER";
+                firstReplyCount = checkpoint.get().getReplyCount();
+            }
+        }
 
         // Parameters required to get the audio stream from KVS
-        StreamingMkvReader streamingMkvReader = kvsStreamTrackObjectFromCustomer.getStreamingMkvReader();
-        FragmentMetadataVisitor fragmentVisitor = kvsStreamTrackObjectFromCustomer.getFragmentVisitor();
-        KVSContactTagProcessor tagProcessor = kvsStreamTrackObjectFromCustomer.getTagProcessor();
-        int CHUNK_SIZE_IN_KB = 4;
-        String track = kvsStreamTrackObjectFromCustomer.getTrackName();
+        InputStream kvsInputStream;
+        ReplayPacer replayPacer = null;
+        TeeInputStream teeInputStream = null;
+        ReadAheadInputStream readAheadInputStream = null;
+        if (isNullOrEmpty(inputFileName)) {
+            String streamName = streamARN.substring(streamARN.indexOf("/") + 1, streamARN.lastIndexOf("/"));
+            kvsInputStream = KVSUtils.getInputStreamFromKVS(streamName, REGION, startFragmentNum, getAWSCredentials(), startSelectorType);
+            if (!isNullOrEmpty(GETMEDIA_TEE_KEY_PREFIX)) {
+                teeInputStream = new TeeInputStream(kvsInputStream,
+                        Paths.get("/tmp", String.format("%s_%s_%s.mkv", contactId, DATE_FORMAT.format(Instant.now()), TeeInputStream.NAME)));
+                kvsInputStream = teeInputStream;
+            }
+            readAheadInputStream = new ReadAheadInputStream(kvsInputStream, contactId, KVS_IDLE_TIMEOUT_MILLIS,
+                    KVS_READ_SIZE, Math.max(1, KVS_READ_AHEAD_KB * 1024 / KVS_READ_SIZE), KVS_READ_MAX_BACKOFF_MILLIS);
+            kvsInputStream = readAheadInputStream;
+        } else {
+            kvsInputStream = KVSUtils.getInputStreamFromFile(inputFileName);
+            replayPacer = new ReplayPacer(replaySpeed, 16);
+        }
+        StreamingMkvReader streamingMkvReader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(kvsInputStream));
+        // a replayed stream may be tagged with another contact than the one it is replayed as
+        KVSContactTagProcessor tagProcessor = new KVSContactTagProcessor(
+                isNullOrEmpty(inputFileName) || isNullOrEmpty(request.getInputContactId()) ? contactId : request.getInputContactId());
+        FragmentMetadataVisitor fragmentVisitor = FragmentMetadataVisitor.create(Optional.of(tagProcessor));
 
-        // Get audio file link to save to s3
-        String audio_file_path = URLEncoder.encode(kvsStreamTrackObjectFromCustomer.getSaveAudioFilePath().toString().replace(".raw", ".wav").replace("/tmp/", ""), "UTF-8");
-        String audio_file_link = "https://" + RECORDINGS_BUCKET_NAME + ".s3-ap-northeast-1.amazonaws.com/"+ RECORDINGS_KEY_PREFIX + audio_file_path;
+        // Number of replies, shared by all tracks of the contact
+        AtomicInteger replyCount = new AtomicInteger(firstReplyCount);
 
         logger.info(String.format("phoneNumber: %s\n", phoneNumber));
-        logger.info(String.format("audioFileLink: %s\n", audio_file_link));
-        logger.info(String.format("replyCount: %d\n", replyCount));
-
-        ResponseObserver<StreamingRecognizeResponse> responseObserver = null;
-
-        // Google Speech to Text Streaming
-        try (SpeechClient client = SpeechClient.create()) {
-
-            ClientStream<StreamingRecognizeRequest> clientStream;
-
-            // response handler
-            responseObserver =
-                new ResponseObserver<StreamingRecognizeResponse>() {
-
-                    public void onStart(StreamController controller) {
-                        logger.info(String.format("GoogleSTT Start"));
-                        replyCount = 1;
-                    }
-
-                    public void onResponse(StreamingRecognizeResponse response) {
-
-                        logger.info("===response===");
-                        System.out.println(response);
-
-                        StreamingRecognitionResult result = response.getResultsList().get(0);
-                        SpeechRecognitionAlternative alternative = result.getAlternativesList().get(0);
-                        String transcript_segment = alternative.getTranscript();
-                        float confidence = alternative.getConfidence();
-
-                        logger.info(String.format("Transctipt : %s\n", transcript_segment));
-                        logger.info(String.format("Confidence : %f\n", confidence));
-                        
-                        if(result.getIsFinal()){
-                            fromCustomerSegmentWriter.writeToDynamoDB(transcript_segment, phoneNumber, TRANSCRIPT_TABLE_NAME, replyCount, audio_file_link, LIMITDAY_OF_TTL);
-                            replyCount++;
-                        }
-                    }
-
-                    public void onComplete() {
-                        logger.info(String.format("GoogleSTT Complete"));
-                    }
 
-                    public void onError(Throwable t) { 
-                        logger.error(String.format("GoogleSTT Error : %s\n", t));
-                    }
-                };
+        // Chunk buffers are reused by all tracks of the contact, one per slot of the pipeline and one per assembling track
+        int pooledBuffers = AUDIO_PIPELINE_CAPACITY + trackNames.size();
+        AudioBufferPool bufferPool = new AudioBufferPool(CHUNK_BUFFER_CAPACITY, pooledBuffers);
+        bufferPool.preallocate(pooledBuffers);
+        AudioPipeline audioPipeline = new AudioPipeline(contactId, AUDIO_PIPELINE_CAPACITY, bufferPool);
+
+        MetricsUtil.Stat kvsBytes = metricsUtil.stat("KVSBytes", StandardUnit.Bytes, contactId);
+        MetricsUtil.Stat kvsFrames = metricsUtil.stat("KVSFrames", StandardUnit.Count, contactId);
+        MetricsUtil.Stat s3UploadTime = metricsUtil.stat("S3UploadTime", StandardUnit.Milliseconds, contactId);
+
+        LiveTranscriptWriter liveTranscriptWriter = isNullOrEmpty(LIVE_TABLE_NAME) ? null
+                : new LiveTranscriptWriter(contactId, LIVE_TABLE_NAME, batchWriter, chunkFlushScheduler,
+                        LIVE_UPDATE_INTERVAL_MILLIS, LIMITDAY_OF_TTL, metricsUtil);
+
+        // a single track is recorded on its own even in the stereo layout
+        StereoRecorder stereoRecorder = RECORDING_STEREO && trackNames.size() > 1
+                ? getStereoRecorder(contactId, request.getRecordingPart(), request.isSaveCallRecordingEnabled())
+                : null;
+
+        Map<String, TrackTranscriber> trackTranscribers = new LinkedHashMap<String, TrackTranscriber>();
+        for (String trackName : trackNames) {
+            KVSStreamTrackObject kvsStreamTrackObject = getKVSStreamTrackObject(kvsInputStream, streamingMkvReader, tagProcessor, fragmentVisitor, trackName, contactId,
+                    request.getRecordingPart(), request.isSaveCallRecordingEnabled(), stereoRecorder);
+
+            // Get audio file link to save to s3
+            String audio_file_path = URLEncoder.encode(kvsStreamTrackObject.getSaveAudioFilePath().getFileName().toString(), "UTF-8");
+            String audio_file_link = "https://" + RECORDINGS_BUCKET_NAME + ".s3-ap-northeast-1.amazonaws.com/"+ RECORDINGS_KEY_PREFIX + audio_file_path;
+            logger.info(String.format("audioFileLink: %s\n", audio_file_link));
+
+            TranscribedSegmentWriter segmentWriter = new TranscribedSegmentWriter(contactId, trackName, batchWriter);
+            trackTranscribers.put(trackName, new TrackTranscriber(kvsStreamTrackObject, segmentWriter, phoneNumber,
+                    TRANSCRIPT_TABLE_NAME, audio_file_link, LIMITDAY_OF_TTL, bufferPool, audioPipeline, CHUNK_MIN_MILLIS, CHUNK_MAX_MILLIS, replyCount,
+                    new VoiceActivityDetector(VAD_MODE, 16, VAD_MIN_ENERGY, VAD_HANGOVER_MILLIS, VAD_PRE_ROLL_MILLIS,
+                            VAD_KEEP_ALIVE_INTERVAL_MILLIS), metricsUtil, liveTranscriptWriter));
+        }
+        FragmentCheckpointer checkpointer = checkpointStore == null ? null
+                : new FragmentCheckpointer(checkpointStore, contactId, audioPipeline, trackTranscribers.values(),
+                        replyCount, CHECKPOINT_INTERVAL_MILLIS);
 
-            clientStream = client.streamingRecognizeCallable().splitCall(responseObserver);
+        boolean handoff = false;
+        Optional<CheckpointStore.Checkpoint> continuation = Optional.empty();
 
+        // Google Speech to Text Streaming, the client is kept open for the next invocations
+        try {
             // request parameter
             RecognitionConfig recognitionConfig =
                 RecognitionConfig.newBuilder()
-                    .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
+                    .setEncoding(SPEECH_ENCODING)
                     .setLanguageCode("ja-JP")
                     .setSampleRateHertz(8000) // great for phone voice
                     .setEnableAutomaticPunctuation(true)
@@ -206,81 +401,254 @@ public class KVSTranscribeStreamingLambda implements RequestHandler<Transcriptio
                 StreamingRecognitionConfig.newBuilder()
                     .setConfig(recognitionConfig)
                     .setSingleUtterance(false)
+                    .setInterimResults(liveTranscriptWriter != null)
                     .build();
 
-            StreamingRecognizeRequest request_google =
-                StreamingRecognizeRequest.newBuilder()
-                    .setStreamingConfig(streamingRecognitionConfig)
-                    .build();
-
-            // Send configuration request
-            clientStream.send(request_google);
-
-            // Get audio stream and send request to Google STT
-            while (true) {
+            // Open a Google STT stream for each track
+            for (TrackTranscriber trackTranscriber : trackTranscribers.values()) {
+                trackTranscriber.start(streamingRecognitionConfig, SPEECH_STREAMING_LIMIT_MILLIS,
+                        SPEECH_ROLLOVER_WINDOW_MILLIS, SPEECH_MAX_REPLAY_MILLIS, SPEECH_ROLLOVER_BUDGET_MILLIS);
+            }
+            audioPipeline.start();
 
-                // Get audio stream
-                ByteBuffer audioBuffer = KVSUtils.getByteBufferFromStream(streamingMkvReader, fragmentVisitor,
-                        tagProcessor, contactId, CHUNK_SIZE_IN_KB, track);
+            // Send partial chunks while KVS is idle, e.g. at the end of an utterance
+            ScheduledFuture<?> idleFlush = chunkFlushScheduler.scheduleWithFixedDelay(() -> {
+                for (TrackTranscriber trackTranscriber : trackTranscribers.values()) {
+                    trackTranscriber.flushIfIdle(CHUNK_IDLE_FLUSH_MILLIS);
+                }
+            }, CHUNK_IDLE_FLUSH_MILLIS / 2, Math.max(1, CHUNK_IDLE_FLUSH_MILLIS / 2), TimeUnit.MILLISECONDS);
+            String lastFragmentNumber = null;
+            long lastProducerTimestampMillis = 0;
+            ScheduledFuture<?> checkpointSaves = checkpointer == null ? null
+                    : chunkFlushScheduler.scheduleWithFixedDelay(checkpointer::saveIfTranscribed,
+                            CHECKPOINT_INTERVAL_MILLIS, CHECKPOINT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+            // Get audio stream and send request to Google STT of the track it belongs to
+            try {
+                Optional<Frame> frame;
+                while ((frame = KVSUtils.getFrameFromStream(streamingMkvReader, fragmentVisitor, tagProcessor, contactId)).isPresent()) {
+                    Optional<FragmentMetadata> fragment = fragmentVisitor.getCurrentFragmentMetadata();
+                    if (fragment.isPresent() && !fragment.get().getFragmentNumberString().equals(lastFragmentNumber)) {
+                        if (lastFragmentNumber != null && System.currentTimeMillis() >= handoffAtMillis) {
+                            // the previous fragment has been read completely, the next invocation starts after it
+                            logger.info(String.format("Lambda time budget is running out, handing off %s after fragment %s",
+                                    contactId, lastFragmentNumber));
+                            handoff = true;
+                            break;
+                        }
+                        lastFragmentNumber = fragment.get().getFragmentNumberString();
+                        lastProducerTimestampMillis = fragment.get().getProducerSideTimestampMillis();
+                    }
+                    if (checkpointer != null && checkpointer.onFrame(fragmentVisitor.getCurrentFragmentMetadata())) {
+                        // publish the audio of the previous fragment before marking it as read
+                        for (TrackTranscriber trackTranscriber : trackTranscribers.values()) {
+                            trackTranscriber.flush();
+                        }
+                        checkpointer.markRead();
+                    }
+                    kvsBytes.record(frame.get().getFrameData().remaining());
+                    kvsFrames.record(1);
+                    String trackName = KVSUtils.getTrackName(fragmentVisitor, frame.get());
+                    if (trackName == null) {
+                        logger.warn(String.format("Skipping a frame of track %d, its track entry has not been read",
+                                frame.get().getTrackNumber()));
+                        continue;
+                    }
+                    if (replayPacer != null) {
+                        replayPacer.pace(trackName, frame.get().getFrameData().remaining());
+                    }
+                    TrackTranscriber trackTranscriber = trackTranscribers.get(trackName);
+                    if (trackTranscriber != null) {
+                        trackTranscriber.addFrame(frame.get().getFrameData(), KVSUtils.getTimecodeMillis(fragmentVisitor, frame.get()));
+                    }
+                }
+            } finally {
+                idleFlush.cancel(false);
+                if (checkpointSaves != null) {
+                    checkpointSaves.cancel(false);
+                }
+                if (readAheadInputStream != null) {
+                    recordReadMetrics(contactId, readAheadInputStream);
+                }
+            }
 
-                if (audioBuffer.remaining() > 0) {
+            for (TrackTranscriber trackTranscriber : trackTranscribers.values()) {
+                trackTranscriber.flush();
+            }
+            audioPipeline.close(SPEECH_COMPLETE_TIMEOUT_MILLIS);
 
-                    byte[] audioBytes = new byte[audioBuffer.remaining()];
-                    audioBuffer.get(audioBytes);
+            for (TrackTranscriber trackTranscriber : trackTranscribers.values()) {
+                trackTranscriber.finish(SPEECH_COMPLETE_TIMEOUT_MILLIS);
+            }
+            if (checkpointer != null) {
+                checkpointer.complete(!handoff && (readAheadInputStream == null || !readAheadInputStream.isTimedOut()));
+            }
+            if (handoff) {
+                continuation = Optional.of(new CheckpointStore.Checkpoint(contactId, lastFragmentNumber,
+                        lastProducerTimestampMillis, replyCount.get(), false));
+            }
 
-                    // send request to Google STT
-                    request_google = StreamingRecognizeRequest.newBuilder()
-                            .setAudioContent(ByteString.copyFrom(audioBytes)).build();
-                    clientStream.send(request_google);
+        } catch (Exception e) {
 
-                    // Write audio stream to outputStream
-                    kvsStreamTrackObjectFromCustomer.getOutputStream().write(audioBytes);
+            logger.info(String.format("Error KVS or GoogleSTT : %s\n", e));
+        }
+        if (liveTranscriptWriter != null) {
+            liveTranscriptWriter.close();
+        }
 
-                } else {
-                    break;
+        for (TrackTranscriber trackTranscriber : trackTranscribers.values()) {
+            KVSStreamTrackObject kvsStreamTrackObject = trackTranscriber.getKVSStreamTrackObject();
+            try {
+                kvsStreamTrackObject.getInputStream().close();
+                // save the recording to s3
+                if (kvsStreamTrackObject.getRecordingSink() != null) {
+                    closeFileAndUploadRawAudio(kvsStreamTrackObject.getTrackName(), kvsStreamTrackObject.getRecordingSink(),
+                            kvsStreamTrackObject.getRecordingUploader(), contactId, saveCallRecording, s3UploadTime);
                 }
+            }catch(IOException e){
+                logger.info(String.format("Error closeFile and UploadRawAudio: %s\n", e));
             }
-            
-            responseObserver.onComplete();
+        }
+        if (stereoRecorder != null) {
+            try {
+                stereoRecorder.flush();
+            } catch (IOException e) {
+                logger.info(String.format("Error flushing the stereo recording: %s\n", e));
+            }
+            try {
+                closeFileAndUploadRawAudio(StereoRecorder.NAME, stereoRecorder.getSink(), stereoRecorder.getUploader(),
+                        contactId, saveCallRecording, s3UploadTime);
+            } catch (IOException e) {
+                logger.info(String.format("Error closeFile and UploadRawAudio: %s\n", e));
+            }
+        }
 
-        } catch (Exception e) {
+        if (teeInputStream != null) {
+            try {
+                teeInputStream.close();
+                long uploadStartNanos = System.nanoTime();
+                AudioUtils.uploadFile(REGION, RECORDINGS_BUCKET_NAME, GETMEDIA_TEE_KEY_PREFIX, teeInputStream.getPath().toString(),
+                        "video/x-matroska", contactId, false, getAWSCredentials());
+                s3UploadTime.recordSince(uploadStartNanos);
+            } catch (IOException | SdkClientException e) {
+                logger.info(String.format("Error saving GetMedia stream: %s\n", e));
+            } finally {
+                RecordingFile.delete(teeInputStream.getPath());
+            }
+        }
 
-            logger.info(String.format("Error KVS or GoogleSTT : %s\n", e));
+        return continuation;
+    }
+
+    /**
+     * Logs and publishes how long the call waited for KVS and how long it spent processing the stream
+     *
+     * @param contactId
+     * @param readAheadInputStream
+     */
+    private void recordReadMetrics(String contactId, ReadAheadInputStream readAheadInputStream) {
+        logger.info(String.format("KVS stream of %s: idle %d ms, busy %d ms%s", contactId,
+                readAheadInputStream.getIdleMillis(), readAheadInputStream.getBusyMillis(),
+                readAheadInputStream.isTimedOut() ? ", ended by idle timeout" : ""));
+        metricsUtil.stat("KVSReadIdleMillis", StandardUnit.Milliseconds, contactId).record(readAheadInputStream.getIdleMillis());
+        metricsUtil.stat("KVSReadBusyMillis", StandardUnit.Milliseconds, contactId).record(readAheadInputStream.getBusyMillis());
+        if (readAheadInputStream.isTimedOut()) {
+            metricsUtil.stat("KVSIdleTimeouts", StandardUnit.Count, contactId).record(1);
         }
+    }
 
-        try {
-            // save wav file to s3
-            closeFileAndUploadRawAudio(kvsStreamTrackObjectFromCustomer,contactId,saveCallRecording);
-        }catch(IOException e){
-            logger.info(String.format("Error closeFile and UploadRawAudio: %s\n", e));
+    /**
+     * Create all objects necessary for KVS streaming from each track.
+     * The KVS stream is shared by all tracks, the recording file is created per track unless both tracks are
+     * recorded to the stereo file.
+     *
+     * @param kvsInputStream
+     * @param streamingMkvReader
+     * @param tagProcessor
+     * @param fragmentVisitor
+     * @param trackName
+     * @param contactId
+     * @param recordingPart
+     * @param saveCallRecording
+     * @param stereoRecorder    stereo recording of both tracks, or null to record the track to its own file
+     * @return
+     * @throws IOException
+     */
+    private KVSStreamTrackObject getKVSStreamTrackObject(InputStream kvsInputStream, StreamingMkvReader streamingMkvReader,
+            KVSContactTagProcessor tagProcessor, FragmentMetadataVisitor fragmentVisitor,
+            String trackName, String contactId, int recordingPart, boolean saveCallRecording,
+            StereoRecorder stereoRecorder) throws IOException {
+
+        if (stereoRecorder != null) {
+            return new KVSStreamTrackObject(kvsInputStream, streamingMkvReader, tagProcessor, fragmentVisitor,
+                    stereoRecorder.getSink().getPath(), null, null, stereoRecorder, trackName);
         }
 
+        Path saveAudioFilePath = getRecordingPath(contactId, trackName, recordingPart);
+        return new KVSStreamTrackObject(kvsInputStream, streamingMkvReader, tagProcessor, fragmentVisitor, saveAudioFilePath,
+                getRecordingSink(saveAudioFilePath, 1), getRecordingUploader(saveAudioFilePath, contactId, saveCallRecording),
+                null, trackName);
     }
 
     /**
-     * Create all objects necessary for KVS streaming from each track
+     * Creates the stereo recording of both tracks, AUDIO_FROM_CUSTOMER on the left and AUDIO_TO_CUSTOMER on the right
      *
-     * @param streamName
-     * @param startFragmentNum
-     * @param trackName
      * @param contactId
+     * @param recordingPart
+     * @param saveCallRecording
      * @return
-     * @throws FileNotFoundException
+     * @throws IOException
      */
-    private KVSStreamTrackObject getKVSStreamTrackObject(String streamName, String startFragmentNum,
-            String trackName, String contactId) throws FileNotFoundException {
-        
-        InputStream kvsInputStream = KVSUtils.getInputStreamFromKVS(streamName, REGION, startFragmentNum, getAWSCredentials(), START_SELECTOR_TYPE);
-        StreamingMkvReader streamingMkvReader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(kvsInputStream));
+    private StereoRecorder getStereoRecorder(String contactId, int recordingPart, boolean saveCallRecording) throws IOException {
+        Path saveAudioFilePath = getRecordingPath(contactId, StereoRecorder.NAME, recordingPart);
+        return new StereoRecorder(getRecordingSink(saveAudioFilePath, 2),
+                getRecordingUploader(saveAudioFilePath, contactId, saveCallRecording), 8000, RECORDING_STEREO_MAX_LAG_MILLIS);
+    }
 
-        KVSContactTagProcessor tagProcessor = new KVSContactTagProcessor(contactId);
-        FragmentMetadataVisitor fragmentVisitor = FragmentMetadataVisitor.create(Optional.of(tagProcessor));
+    /**
+     * @param contactId
+     * @param name          track name, or {@link StereoRecorder#NAME}
+     * @param recordingPart
+     * @return path of the recording in /tmp
+     */
+    private static Path getRecordingPath(String contactId, String name, int recordingPart) {
+        // the recordings of the continuations of a long call are uploaded as separate parts
+        String fileName = recordingPart > 0
+                ? String.format("%s_%s_%s_part%d.%s", contactId, DATE_FORMAT.format(Instant.now()), name, recordingPart,
+                        RECORDING_FORMAT.getExtension())
+                : String.format("%s_%s_%s.%s", contactId, DATE_FORMAT.format(Instant.now()), name, RECORDING_FORMAT.getExtension());
+        return Paths.get("/tmp", fileName);
+    }
 
-        String fileName = String.format("%s_%s_%s.raw", contactId, DATE_FORMAT.format(new Date()), trackName);
-        Path saveAudioFilePath = Paths.get("/tmp", fileName);
-        FileOutputStream fileOutputStream = new FileOutputStream(saveAudioFilePath.toString());
+    /**
+     * @param saveAudioFilePath
+     * @param channels          1 for a track, 2 for both
+     * @return recording in the configured format, 8KHz 16 bit
+     * @throws IOException
+     */
+    private static RecordingSink getRecordingSink(Path saveAudioFilePath, int channels) throws IOException {
+        switch (RECORDING_FORMAT) {
+            case FLAC:
+                return new FlacRecordingSink(saveAudioFilePath, 8000, channels);
+            case OPUS:
+                return new OggOpusRecordingSink(saveAudioFilePath, 8000, channels, RECORDING_OPUS_BITRATE);
+            default:
+                return new WavRecordingSink(saveAudioFilePath, 8000, channels, 16);
+        }
+    }
 
-        return new KVSStreamTrackObject(kvsInputStream, streamingMkvReader, tagProcessor, fragmentVisitor, saveAudioFilePath, fileOutputStream, trackName);
+    /**
+     * @param saveAudioFilePath
+     * @param contactId
+     * @param saveCallRecording
+     * @return uploader of the recording during the call, null if it is uploaded at the end or not saved
+     */
+    private static RecordingUploader getRecordingUploader(Path saveAudioFilePath, String contactId, boolean saveCallRecording) {
+        return saveCallRecording && RECORDING_UPLOAD_PART_MB > 0
+                ? new RecordingUploader(ClientRegistry.getS3Client(REGION, getAWSCredentials()), RECORDINGS_BUCKET_NAME,
+                        RECORDINGS_KEY_PREFIX, saveAudioFilePath.toFile(), RECORDING_FORMAT, contactId, RECORDINGS_PUBLIC_READ_ACL,
+                        RECORDING_UPLOAD_PART_MB * 1024 * 1024, recordingUploadExecutor)
+                : null;
     }
 
     /**
@@ -291,27 +659,45 @@ public class KVSTranscribeStreamingLambda implements RequestHandler<Transcriptio
     }
 
     /**
-     * Closes the FileOutputStream and uploads the Raw audio file to S3
+     * Closes the recording file and uploads it to S3, or the rest of it when parts were uploaded during the call.
+     * The file is deleted afterwards, and a multipart upload that has not been completed is aborted.
      *
-     * @param kvsStreamTrackObject
+     * @param name              track name, or {@link StereoRecorder#NAME}
+     * @param recordingSink
+     * @param recordingUploader null if the recording is uploaded at the end
+     * @param contactId
      * @param saveCallRecording
+     * @param uploadTime
      * @throws IOException
      */
-    private void closeFileAndUploadRawAudio(KVSStreamTrackObject kvsStreamTrackObject, String contactId,
-            Optional<Boolean> saveCallRecording) throws IOException {
-
-        kvsStreamTrackObject.getInputStream().close();
-        kvsStreamTrackObject.getOutputStream().close();
-
-        //Upload the Raw Audio file to S3
-        if ((saveCallRecording.isPresent() ? saveCallRecording.get() : false)
-                && (new File(kvsStreamTrackObject.getSaveAudioFilePath().toString()).length() > 0)) {
-            AudioUtils.uploadRawAudio(REGION, RECORDINGS_BUCKET_NAME, RECORDINGS_KEY_PREFIX,
-                    kvsStreamTrackObject.getSaveAudioFilePath().toString(), contactId, RECORDINGS_PUBLIC_READ_ACL,
-                    getAWSCredentials());
-        } else {
-            logger.info("Skipping upload to S3.  saveCallRecording was disabled or audio file has 0 bytes: "
-                    + kvsStreamTrackObject.getSaveAudioFilePath().toString());
+    private void closeFileAndUploadRawAudio(String name, RecordingSink recordingSink, RecordingUploader recordingUploader,
+            String contactId, Optional<Boolean> saveCallRecording, MetricsUtil.Stat uploadTime) throws IOException {
+
+        try {
+            recordingSink.close();
+
+            //Upload the recording to S3, it is already encoded so no conversion is needed
+            if ((saveCallRecording.isPresent() ? saveCallRecording.get() : false)
+                    && (recordingSink.getDataBytes() > 0)) {
+                logger.info(String.format("Recording %s: %d bytes of %s for %d bytes of PCM", name,
+                        Files.size(recordingSink.getPath()), RECORDING_FORMAT, recordingSink.getDataBytes()));
+                long uploadStartNanos = System.nanoTime();
+                if (recordingUploader == null || !recordingUploader.complete(recordingSink.getFileBytes())) {
+                    AudioUtils.uploadFile(REGION, RECORDINGS_BUCKET_NAME, RECORDINGS_KEY_PREFIX,
+                            recordingSink.getPath().toString(), RECORDING_FORMAT.getContentType(), contactId,
+                            RECORDINGS_PUBLIC_READ_ACL, getAWSCredentials());
+                }
+                uploadTime.recordSince(uploadStartNanos);
+            } else {
+                logger.info("Skipping upload to S3.  saveCallRecording was disabled or audio file has 0 bytes: "
+                        + recordingSink.getPath().toString());
+            }
+        } finally {
+            if (recordingUploader != null) {
+                // the parts uploaded during the call are billed until the upload is completed or aborted
+                recordingUploader.abort();
+            }
+            RecordingFile.delete(recordingSink.getPath());
         }
     }
     
@@ -1,33 +1,33 @@
 package com.amazonaws.kvstranscribestreaming;
 
+import com.amazonaws.SdkClientException;
 import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
 import com.amazonaws.kinesisvideo.parser.mkv.Frame;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
-import com.amazonaws.kinesisvideo.parser.mkv.MkvValue;
 import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
 import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
 import com.amazonaws.kinesisvideo.parser.utilities.MkvTrackMetadata;
 import com.amazonaws.regions.Regions;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoClientBuilder;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMedia;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMediaClientBuilder;
-import com.amazonaws.services.kinesisvideo.model.APIName;
-import com.amazonaws.services.kinesisvideo.model.GetDataEndpointRequest;
 import com.amazonaws.services.kinesisvideo.model.GetMediaRequest;
 import com.amazonaws.services.kinesisvideo.model.GetMediaResult;
 import com.amazonaws.services.kinesisvideo.model.StartSelector;
 import com.amazonaws.services.kinesisvideo.model.StartSelectorType;
+import io.perfmark.PerfMark;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 
 import static com.amazonaws.util.StringUtils.isNullOrEmpty;
@@ -78,13 +78,15 @@ public final class KVSUtils {
     private static final Logger logger = LoggerFactory.getLogger(KVSUtils.class);
 
     /**
-     * Fetches the next ByteBuffer of size 1024 bytes from the KVS stream by parsing the frame from the MkvElement
-     * Each frame has a ByteBuffer having size 1024
+     * Fetches a copy of the data of the next frame of the given track from the KVS stream, skipping the other tracks.
+     * Not used by the Lambda, which reads the frames of all tracks with {@link KVSUtils#getFrameFromStream} into
+     * pooled chunks without copying them one by one.
      *
      * @param streamingMkvReader
      * @param fragmentVisitor
      * @param tagProcessor
      * @param contactId
+     * @param track
      * @return
      * @throws MkvElementVisitException
      */
@@ -92,45 +94,136 @@ public final class KVSUtils {
                                                      FragmentMetadataVisitor fragmentVisitor,
                                                      KVSContactTagProcessor tagProcessor,
                                                      String contactId, String track) throws MkvElementVisitException {
-        while (streamingMkvReader.mightHaveNext()) {
-            Optional<MkvElement> mkvElementOptional = streamingMkvReader.nextIfAvailable();
-            if (mkvElementOptional.isPresent()) {
-                if (tagProcessor.shouldStopProcessing()) {
-                    return ByteBuffer.allocate(0);
+        PerfMark.startTask("KVSUtils.getByteBufferFromStream");
+        try {
+            Optional<Frame> frame;
+            while ((frame = getFrameFromStream(streamingMkvReader, fragmentVisitor, tagProcessor, contactId)).isPresent()) {
+                if (track.equals(getTrackName(fragmentVisitor, frame.get()))) {
+                    // the frame data is only valid until the next element is read
+                    ByteBuffer frameData = frame.get().getFrameData();
+                    ByteBuffer audioBuffer = ByteBuffer.allocate(frameData.remaining());
+                    audioBuffer.put(frameData);
+                    audioBuffer.flip();
+                    return audioBuffer;
                 }
-                MkvElement mkvElement = mkvElementOptional.get();
-                mkvElement.accept(fragmentVisitor);
-                if (MkvTypeInfos.SIMPLEBLOCK.equals(mkvElement.getElementMetaData().getTypeInfo())) {
-                    MkvDataElement dataElement = (MkvDataElement) mkvElement;
-                    Frame frame = ((MkvValue<Frame>) dataElement.getValueCopy()).getVal();
-                    ByteBuffer audioBuffer = frame.getFrameData();
-
-                    long trackNumber = frame.getTrackNumber();
-                    MkvTrackMetadata metadata = fragmentVisitor.getMkvTrackMetadata(trackNumber);
-                    if (track.equals(metadata.getTrackName())) {
-                        return audioBuffer;
-                    } else if ("Track_audio/L16".equals(metadata.getTrackName()) && TrackName.AUDIO_FROM_CUSTOMER.getName().equals(track)) {
-                        // backwards compatibility
-                        return audioBuffer;
-                    }
 
-                    // do nothing
+                // do nothing
+            }
+
+            return ByteBuffer.allocate(0);
+        } finally {
+            PerfMark.stopTask("KVSUtils.getByteBufferFromStream");
+        }
+    }
+
+    /**
+     * Fetches the next audio frame of any track from the KVS stream.
+     * The caller can find out which track the frame belongs to with {@link KVSUtils#getTrackName}.
+     * The frame is not copied out of the MkvElement, so its data is only valid until the next call.
+     *
+     * @param streamingMkvReader
+     * @param fragmentVisitor
+     * @param tagProcessor
+     * @param contactId
+     * @return the frame, or empty if the stream has ended or should stop being processed
+     * @throws MkvElementVisitException
+     */
+    public static Optional<Frame> getFrameFromStream(StreamingMkvReader streamingMkvReader,
+                                                     FragmentMetadataVisitor fragmentVisitor,
+                                                     KVSContactTagProcessor tagProcessor,
+                                                     String contactId) throws MkvElementVisitException {
+        PerfMark.startTask("KVSUtils.getFrameFromStream");
+        try {
+            while (mightHaveNext(streamingMkvReader)) {
+                Optional<MkvElement> mkvElementOptional = streamingMkvReader.nextIfAvailable();
+                if (mkvElementOptional.isPresent()) {
+                    if (tagProcessor.shouldStopProcessing()) {
+                        return Optional.empty();
+                    }
+                    MkvElement mkvElement = mkvElementOptional.get();
+                    mkvElement.accept(fragmentVisitor);
+                    if (MkvTypeInfos.SIMPLEBLOCK.equals(mkvElement.getElementMetaData().getTypeInfo())) {
+                        ByteBuffer dataBuffer = ((MkvDataElement) mkvElement).getDataBuffer().duplicate();
+                        dataBuffer.rewind();
+                        return Optional.of(Frame.withoutCopy(dataBuffer));
+                    }
                 }
             }
+
+            return Optional.empty();
+        } finally {
+            PerfMark.stopTask("KVSUtils.getFrameFromStream");
         }
+    }
 
-        return ByteBuffer.allocate(0);
+    /**
+     * Checks whether the stream may have more elements, treating a stream that has been idle for too long as ended.
+     * The parser wraps the {@link ReadAheadInputStream.IdleTimeoutException} of the read into a RuntimeException.
+     *
+     * @param streamingMkvReader
+     * @return
+     */
+    private static boolean mightHaveNext(StreamingMkvReader streamingMkvReader) {
+        try {
+            return streamingMkvReader.mightHaveNext();
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof ReadAheadInputStream.IdleTimeoutException) {
+                return false;
+            }
+            throw e;
+        }
     }
 
     /**
-     * Fetches ByteBuffer of provided size from the KVS stream by repeatedly calling {@link KVSUtils#getByteBufferFromStream}
-     * and concatenating the ByteBuffers to create a single chunk
+     * Resolves the name of the track the given frame belongs to
+     *
+     * @param fragmentVisitor
+     * @param frame
+     * @return one of the {@link TrackName} names, the raw track name for unknown tracks, or null if the track entry
+     * of the frame has not been read
+     */
+    public static String getTrackName(FragmentMetadataVisitor fragmentVisitor, Frame frame) {
+        MkvTrackMetadata metadata = fragmentVisitor.getMkvTrackMetadata(frame.getTrackNumber());
+        if (metadata == null) {
+            return null;
+        }
+        if ("Track_audio/L16".equals(metadata.getTrackName())) {
+            // backwards compatibility
+            return TrackName.AUDIO_FROM_CUSTOMER.getName();
+        }
+        return metadata.getTrackName();
+    }
+
+    /**
+     * Time of the given frame on the producer clock, the same for all tracks of the stream.
+     * The timecode of a SimpleBlock is relative to its cluster, which starts at the producer timestamp of the
+     * fragment. KVS uses a timecode scale of one millisecond.
+     *
+     * @param fragmentVisitor
+     * @param frame
+     * @return producer time of the frame in epoch milliseconds, or {@link AudioChunkAssembler#NO_TIMECODE} when the
+     * fragment has no producer timestamp
+     */
+    public static long getTimecodeMillis(FragmentMetadataVisitor fragmentVisitor, Frame frame) {
+        Optional<FragmentMetadata> fragment = fragmentVisitor.getCurrentFragmentMetadata();
+        if (!fragment.isPresent()) {
+            return AudioChunkAssembler.NO_TIMECODE;
+        }
+        return fragment.get().getProducerSideTimestampMillis() + frame.getTimeCode();
+    }
+
+    /**
+     * Fetches up to chunkSizeInKB frames of the given track by repeatedly calling {@link KVSUtils#getByteBufferFromStream}
+     * and concatenating their copies into a single chunk.
+     * This was the chunking of the Lambda before {@link AudioChunkAssembler}, it is only kept as the baseline of
+     * KVSUtilsBenchmark.
      *
      * @param streamingMkvReader
      * @param fragmentVisitor
      * @param tagProcessor
      * @param contactId
-     * @param chunkSizeInKB
+     * @param chunkSizeInKB number of frames
+     * @param track
      * @return
      * @throws MkvElementVisitException
      */
@@ -172,6 +265,21 @@ public final class KVSUtils {
         return combinedByteBuffer;
     }
 
+    /**
+     * Opens a GetMedia stream saved to a file, to replay a call without KVS
+     *
+     * @param inputFileName
+     * @return
+     * @throws IOException
+     */
+    public static InputStream getInputStreamFromFile(String inputFileName) throws IOException {
+        Validate.notNull(inputFileName);
+
+        Path path = Paths.get(inputFileName);
+        logger.info("Replaying {} ({} bytes)", path, Files.size(path));
+        return new BufferedInputStream(Files.newInputStream(path), 64 * 1024);
+    }
+
     /**
      * Makes a GetMedia call to KVS and retrieves the InputStream corresponding to the given streamName and
      * startFragmentNum
@@ -192,17 +300,6 @@ public final class KVSUtils {
         Validate.notNull(startFragmentNum);
         Validate.notNull(awsCredentialsProvider);
 
-        AmazonKinesisVideo amazonKinesisVideo = (AmazonKinesisVideo) AmazonKinesisVideoClientBuilder.standard().build();
-
-        String endPoint = amazonKinesisVideo.getDataEndpoint(new GetDataEndpointRequest()
-                .withAPIName(APIName.GET_MEDIA)
-                .withStreamName(streamName)).getDataEndpoint();
-
-        AmazonKinesisVideoMediaClientBuilder amazonKinesisVideoMediaClientBuilder = AmazonKinesisVideoMediaClientBuilder.standard()
-                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endPoint, region.getName()))
-                .withCredentials(awsCredentialsProvider);
-        AmazonKinesisVideoMedia amazonKinesisVideoMedia = amazonKinesisVideoMediaClientBuilder.build();
-
         StartSelector startSelector;
         startSelectorType = isNullOrEmpty(startSelectorType) ? "NOW" : startSelectorType;
         switch (startSelectorType) {
@@ -220,9 +317,22 @@ public final class KVSUtils {
                 break;
         }
 
-        GetMediaResult getMediaResult = amazonKinesisVideoMedia.getMedia(new GetMediaRequest()
+        // the clients and the data endpoint of the stream are reused by warm containers
+        String endPoint = ClientRegistry.getDataEndpoint(streamName, region, awsCredentialsProvider);
+        GetMediaRequest getMediaRequest = new GetMediaRequest()
                 .withStreamName(streamName)
-                .withStartSelector(startSelector));
+                .withStartSelector(startSelector);
+
+        GetMediaResult getMediaResult;
+        try {
+            getMediaResult = ClientRegistry.getKinesisVideoMediaClient(endPoint, region, awsCredentialsProvider).getMedia(getMediaRequest);
+        } catch (SdkClientException e) {
+            // the cached endpoint may be stale, look it up again once
+            logger.warn("GetMedia failed on cached endpoint {}, retrying with a fresh endpoint", endPoint, e);
+            ClientRegistry.invalidateDataEndpoint(streamName);
+            endPoint = ClientRegistry.getDataEndpoint(streamName, region, awsCredentialsProvider);
+            getMediaResult = ClientRegistry.getKinesisVideoMediaClient(endPoint, region, awsCredentialsProvider).getMedia(getMediaRequest);
+        }
 
         logger.info("GetMedia called on stream {} response {} requestId {}", streamName,
                 getMediaResult.getSdkHttpMetadata().getHttpStatusCode(),
@@ -0,0 +1,217 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the interim transcripts of a contact to a live item, so that agents see the words before
+ * Google STT finalizes the utterance. The item is keyed by the contact and holds the latest transcript of each track.
+ *
+ * Interim results arrive several times per second. Only the latest one of each track is kept, and the item is
+ * written at most once per interval: the first update after a quiet interval is written at once, the following
+ * ones when the interval has elapsed. A final result replaces the interim one with the committed transcript and its
+ * ReplyCount, the committed items written by {@link TranscribedSegmentWriter} are not changed.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class LiveTranscriptWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(LiveTranscriptWriter.class);
+
+    private static class TrackState {
+        private String transcript = "";
+        private float stability = 0;
+        private boolean isFinal = false;
+        private int replyCount = 0;
+        // when the first interim result of the current utterance arrived, 0 if none has yet
+        private long firstInterimNanos = 0;
+    }
+
+    private final String contactId;
+    private final String tableName;
+    private final DynamoDBBatchWriter batchWriter;
+    private final ScheduledExecutorService scheduler;
+    private final long intervalNanos;
+    private final int limitDayOfTTL;
+
+    private final MetricsUtil.Stat interimResults;
+    private final MetricsUtil.Stat liveWrites;
+    private final MetricsUtil.Stat interimLead;
+
+    private final Map<String, TrackState> tracks = new LinkedHashMap<String, TrackState>();
+    private boolean dirty = false;
+    private ScheduledFuture<?> scheduledWrite = null;
+    private long lastWriteNanos;
+    private long sequence = 0;
+
+    /**
+     * @param contactId
+     * @param tableName       table of the live items, partition key ContactId
+     * @param batchWriter
+     * @param scheduler       runs the writes delayed by the interval
+     * @param intervalMillis  minimum time between two writes of the item
+     * @param limitDayOfTTL
+     * @param metricsUtil
+     */
+    public LiveTranscriptWriter(String contactId, String tableName, DynamoDBBatchWriter batchWriter,
+                                ScheduledExecutorService scheduler, long intervalMillis, int limitDayOfTTL,
+                                MetricsUtil metricsUtil) {
+        this.contactId = contactId;
+        this.tableName = tableName;
+        this.batchWriter = batchWriter;
+        this.scheduler = scheduler;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.limitDayOfTTL = limitDayOfTTL;
+        this.interimResults = metricsUtil.stat("LiveInterimResults", StandardUnit.Count, contactId);
+        this.liveWrites = metricsUtil.stat("LiveWrites", StandardUnit.Count, contactId);
+        this.interimLead = metricsUtil.stat("LiveInterimLead", StandardUnit.Milliseconds, contactId);
+        this.lastWriteNanos = System.nanoTime() - intervalNanos;
+    }
+
+    /**
+     * Replaces the interim transcript of the track
+     *
+     * @param trackName
+     * @param transcript
+     * @param stability estimate of Google STT that the transcript will not change
+     */
+    public synchronized void interim(String trackName, String transcript, float stability) {
+        interimResults.record(1);
+        TrackState track = track(trackName);
+        if (track.firstInterimNanos == 0) {
+            track.firstInterimNanos = System.nanoTime();
+        }
+        track.transcript = transcript;
+        track.stability = stability;
+        track.isFinal = false;
+        changed();
+    }
+
+    /**
+     * Replaces the interim transcript of the track with the final one, written as the item of replyCount
+     *
+     * @param trackName
+     * @param transcript
+     * @param replyCount
+     */
+    public synchronized void commit(String trackName, String transcript, int replyCount) {
+        TrackState track = track(trackName);
+        if (track.firstInterimNanos != 0) {
+            // how much earlier the words of the utterance were shown than with final results only
+            interimLead.recordSince(track.firstInterimNanos);
+            track.firstInterimNanos = 0;
+        }
+        track.transcript = transcript;
+        track.stability = 1.0f;
+        track.isFinal = true;
+        track.replyCount = replyCount;
+        changed();
+    }
+
+    /**
+     * Writes the last changes at once, at the end of the call before the batch writer is flushed
+     */
+    public synchronized void close() {
+        if (scheduledWrite != null) {
+            scheduledWrite.cancel(false);
+            scheduledWrite = null;
+        }
+        if (dirty) {
+            write();
+        }
+        logger.info(String.format("Live transcript of %s : %d write(s)", contactId, sequence));
+    }
+
+    private TrackState track(String trackName) {
+        TrackState track = tracks.get(trackName);
+        if (track == null) {
+            track = new TrackState();
+            tracks.put(trackName, track);
+        }
+        return track;
+    }
+
+    private void changed() {
+        dirty = true;
+        if (scheduledWrite != null) {
+            // the pending write will carry this change
+            return;
+        }
+        long delayNanos = lastWriteNanos + intervalNanos - System.nanoTime();
+        if (delayNanos <= 0) {
+            write();
+        } else {
+            scheduledWrite = scheduler.schedule(this::scheduledWrite, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private synchronized void scheduledWrite() {
+        scheduledWrite = null;
+        if (dirty) {
+            write();
+        }
+    }
+
+    private void write() {
+        dirty = false;
+        lastWriteNanos = System.nanoTime();
+        sequence++;
+        liveWrites.record(1);
+        try {
+            batchWriter.write(tableName, toDynamoDbItem(), contactId);
+        } catch (Exception e) {
+            logger.error("Exception while queueing write of the live transcript to DDB: ", e);
+        }
+    }
+
+    private Item toDynamoDbItem() {
+        Instant now = Instant.now();
+        Item item = new Item()
+                .withPrimaryKey("ContactId", contactId)
+                .withLong("Sequence", sequence)
+                .withLong("UpdateTime", now.toEpochMilli())
+                .withLong("ExpireTime", now.getEpochSecond() + 60 * 60 * 24 * limitDayOfTTL);
+        for (Map.Entry<String, TrackState> entry : tracks.entrySet()) {
+            TrackState track = entry.getValue();
+            Map<String, Object> live = new LinkedHashMap<String, Object>();
+            live.put("Transcript", track.transcript);
+            live.put("Stability", track.stability);
+            live.put("IsFinal", track.isFinal);
+            if (track.isFinal) {
+                live.put("ReplyCount", track.replyCount);
+            }
+            item.withMap(entry.getKey(), live);
+        }
+        return item;
+    }
+}
@@ -0,0 +1,110 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for the DynamoDB tables, used to replay recorded calls without AWS.
+ * Items written with BatchWriteItem and PutItem are kept in memory per table, GetItem returns the last item put with the key.
+ * Install it with {@code ClientRegistry.setDynamoDB(region, new DynamoDB(new LocalDynamoDB()))}.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class LocalDynamoDB extends AbstractAmazonDynamoDB {
+
+    private final ConcurrentMap<String, List<Map<String, AttributeValue>>> tables =
+            new ConcurrentHashMap<String, List<Map<String, AttributeValue>>>();
+    private final AtomicInteger batchWrites = new AtomicInteger();
+
+    public int getBatchWrites() {
+        return batchWrites.get();
+    }
+
+    /**
+     * @param tableName
+     * @return the items put to the table so far
+     */
+    public List<Map<String, AttributeValue>> getItems(String tableName) {
+        List<Map<String, AttributeValue>> items = tables.get(tableName);
+        if (items == null) {
+            return Collections.emptyList();
+        }
+        synchronized (items) {
+            return new ArrayList<Map<String, AttributeValue>>(items);
+        }
+    }
+
+    @Override
+    public PutItemResult putItem(PutItemRequest request) {
+        List<Map<String, AttributeValue>> items = tables.computeIfAbsent(request.getTableName(),
+                t -> new ArrayList<Map<String, AttributeValue>>());
+        synchronized (items) {
+            items.add(request.getItem());
+        }
+        return new PutItemResult();
+    }
+
+    @Override
+    public GetItemResult getItem(GetItemRequest request) {
+        List<Map<String, AttributeValue>> items = getItems(request.getTableName());
+        for (int i = items.size() - 1; i >= 0; i--) {
+            if (items.get(i).entrySet().containsAll(request.getKey().entrySet())) {
+                return new GetItemResult().withItem(items.get(i));
+            }
+        }
+        return new GetItemResult();
+    }
+
+    @Override
+    public BatchWriteItemResult batchWriteItem(BatchWriteItemRequest request) {
+        batchWrites.incrementAndGet();
+        for (Map.Entry<String, List<WriteRequest>> table : request.getRequestItems().entrySet()) {
+            List<Map<String, AttributeValue>> items = tables.computeIfAbsent(table.getKey(),
+                    t -> new ArrayList<Map<String, AttributeValue>>());
+            synchronized (items) {
+                for (WriteRequest writeRequest : table.getValue()) {
+                    if (writeRequest.getPutRequest() != null) {
+                        items.add(writeRequest.getPutRequest().getItem());
+                    }
+                }
+            }
+        }
+        return new BatchWriteItemResult().withUnprocessedItems(Collections.<String, List<WriteRequest>>emptyMap());
+    }
+}
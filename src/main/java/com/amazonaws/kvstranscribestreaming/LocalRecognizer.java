@@ -0,0 +1,161 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import com.google.protobuf.Duration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fake recognition of one Google STT stream, shared by {@link LocalSpeechStub} and {@link LocalSpeechServer}.
+ * A final result is made for every segment of audio received, and interim results in between when the stream
+ * asks for them. The transcript names the stream, the segment and the audio it covers, e.g. "[local 1-12] 36000-37065 ms".
+ * Not thread safe, each stream is fed by one caller at a time.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class LocalRecognizer {
+
+    private final int streamId;
+    private final int bytesPerMillisecond;
+    private final long segmentMillis;
+    private final long interimMillis;
+
+    private long streamBytes = 0;
+    // set when the stream is configured for FLAC, the audio is measured once decoded
+    private FlacDecoder flacDecoder = null;
+    private boolean interim = false;
+    private long segmentStartMillis = 0;
+    private long interimEndMillis = 0;
+    private int segments = 0;
+
+    /**
+     * @param streamId            number of the stream, in the transcripts
+     * @param bytesPerMillisecond size of one millisecond of the audio received
+     * @param segmentMillis       audio duration covered by each final result
+     * @param interimMillis       audio duration between two interim results, when the stream asks for them
+     */
+    public LocalRecognizer(int streamId, int bytesPerMillisecond, long segmentMillis, long interimMillis) {
+        this.streamId = streamId;
+        this.bytesPerMillisecond = bytesPerMillisecond;
+        this.segmentMillis = segmentMillis;
+        this.interimMillis = interimMillis;
+    }
+
+    /**
+     * @return bytes of audio received, decoded when the stream is FLAC
+     */
+    public long getAudioBytes() {
+        return streamBytes;
+    }
+
+    /**
+     * @param request
+     * @return the results completed by the request, in order
+     */
+    public List<StreamingRecognizeResponse> recognize(StreamingRecognizeRequest request) {
+        if (request.hasStreamingConfig()) {
+            interim = request.getStreamingConfig().getInterimResults();
+            if (request.getStreamingConfig().getConfig().getEncoding() == RecognitionConfig.AudioEncoding.FLAC) {
+                flacDecoder = new FlacDecoder();
+            }
+        }
+        streamBytes += flacDecoder == null || request.getAudioContent().isEmpty() ? request.getAudioContent().size()
+                : flacDecoder.decode(request.getAudioContent().toByteArray()).length;
+
+        List<StreamingRecognizeResponse> responses = Collections.emptyList();
+        while (streamBytes / bytesPerMillisecond - segmentStartMillis >= segmentMillis) {
+            responses = add(responses, answer(segmentStartMillis + segmentMillis));
+        }
+        while (interim && streamBytes / bytesPerMillisecond - interimEndMillis >= interimMillis) {
+            interimEndMillis += interimMillis;
+            if (interimEndMillis > segmentStartMillis) {
+                responses = add(responses, answerInterim(interimEndMillis));
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * @return the final result of the audio after the last segment, if any, once the client has closed the stream
+     */
+    public List<StreamingRecognizeResponse> finish() {
+        long endMillis = streamBytes / bytesPerMillisecond;
+        return endMillis > segmentStartMillis ? Collections.singletonList(answer(endMillis))
+                : Collections.<StreamingRecognizeResponse>emptyList();
+    }
+
+    private static List<StreamingRecognizeResponse> add(List<StreamingRecognizeResponse> responses,
+                                                        StreamingRecognizeResponse response) {
+        if (responses.isEmpty()) {
+            responses = new ArrayList<StreamingRecognizeResponse>(2);
+        }
+        responses.add(response);
+        return responses;
+    }
+
+    private StreamingRecognizeResponse answerInterim(long endMillis) {
+        return StreamingRecognizeResponse.newBuilder()
+                .addResults(StreamingRecognitionResult.newBuilder()
+                        .setStability(0.5f)
+                        .setResultEndTime(toDuration(endMillis))
+                        .addAlternatives(SpeechRecognitionAlternative.newBuilder()
+                                .setTranscript(String.format("[local %d-%d] %d-%d ms", streamId, segments, segmentStartMillis, endMillis))))
+                .build();
+    }
+
+    private StreamingRecognizeResponse answer(long endMillis) {
+        StreamingRecognizeResponse response = StreamingRecognizeResponse.newBuilder()
+                .addResults(StreamingRecognitionResult.newBuilder()
+                        .setIsFinal(true)
+                        .setResultEndTime(toDuration(endMillis))
+                        .addAlternatives(SpeechRecognitionAlternative.newBuilder()
+                                .setTranscript(String.format("[local %d-%d] %d-%d ms", streamId, segments, segmentStartMillis, endMillis))
+                                .setConfidence(1.0f)))
+                .build();
+        segmentStartMillis = endMillis;
+        segments++;
+        return response;
+    }
+
+    private static Duration toDuration(long millis) {
+        return Duration.newBuilder()
+                .setSeconds(millis / 1000)
+                .setNanos((int) (millis % 1000) * 1000000)
+                .build();
+    }
+
+    /**
+     * @param response
+     * @return true if the response holds a final result
+     */
+    public static boolean isFinal(StreamingRecognizeResponse response) {
+        return response.getResultsCount() > 0 && response.getResults(0).getIsFinal();
+    }
+}
@@ -0,0 +1,354 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fake Google STT server, serving StreamingRecognize over gRPC with the results of a {@link LocalRecognizer}.
+ * Unlike {@link LocalSpeechStub} the calls go through a real channel, so that load and soak tests cover gRPC,
+ * HTTP/2 and its flow control the way they are used with Google, without its cost and quotas.
+ *
+ * Flow control is honored both ways: a request is only read once the previous one has been handled, and the
+ * responses are held while the client is not ready for them. Each response is sent after a latency with a random
+ * jitter, in order. Streams can be closed with OUT_OF_RANGE after a duration, like Google does after about 5 minutes.
+ *
+ * Point the pipeline at it with SPEECH_ENDPOINT=localhost:port and SPEECH_PLAINTEXT=true, or run it on its own:
+ * LocalSpeechServer [port]
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class LocalSpeechServer implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalSpeechServer.class);
+
+    private static final String SERVICE_NAME = "google.cloud.speech.v1.Speech";
+
+    // The method as called by SpeechClient, the generated service classes are not part of the client library
+    private static final MethodDescriptor<StreamingRecognizeRequest, StreamingRecognizeResponse> STREAMING_RECOGNIZE =
+            MethodDescriptor.<StreamingRecognizeRequest, StreamingRecognizeResponse>newBuilder()
+                    .setType(MethodDescriptor.MethodType.BIDI_STREAMING)
+                    .setFullMethodName(MethodDescriptor.generateFullMethodName(SERVICE_NAME, "StreamingRecognize"))
+                    .setRequestMarshaller(ProtoUtils.marshaller(StreamingRecognizeRequest.getDefaultInstance()))
+                    .setResponseMarshaller(ProtoUtils.marshaller(StreamingRecognizeResponse.getDefaultInstance()))
+                    .build();
+
+    private final int bytesPerMillisecond;
+    private final long segmentMillis;
+    private final long interimMillis;
+    private final long latencyMillis;
+    private final long latencyJitterMillis;
+    private final long streamLimitMillis;
+    private final Server server;
+    // timers of the responses of all streams, each stream keeps the order of its own
+    private final ScheduledExecutorService executor;
+
+    private final AtomicInteger streams = new AtomicInteger();
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final AtomicInteger maxActiveStreams = new AtomicInteger();
+    private final AtomicLong audioBytes = new AtomicLong();
+    private final AtomicLong results = new AtomicLong();
+    private final AtomicLong interimResults = new AtomicLong();
+    private final AtomicLong heldResponses = new AtomicLong();
+    private final AtomicInteger streamLimitsReached = new AtomicInteger();
+
+    /**
+     * @param port                0 for any free port
+     * @param bytesPerMillisecond size of one millisecond of the audio received
+     * @param segmentMillis       audio duration covered by each final result
+     * @param interimMillis       audio duration between two interim results, when the stream asks for them
+     * @param latencyMillis       time between receiving the end of a segment and answering it
+     * @param latencyJitterMillis random time added to the latency of each response, up to this
+     * @param streamLimitMillis   duration after which a stream is closed with OUT_OF_RANGE, 0 for no limit
+     */
+    public LocalSpeechServer(int port, int bytesPerMillisecond, long segmentMillis, long interimMillis,
+                             long latencyMillis, long latencyJitterMillis, long streamLimitMillis) {
+        this.bytesPerMillisecond = bytesPerMillisecond;
+        this.segmentMillis = segmentMillis;
+        this.interimMillis = interimMillis;
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = latencyJitterMillis;
+        this.streamLimitMillis = streamLimitMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "local-speech-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = ServerBuilder.forPort(port)
+                .addService(ServerServiceDefinition.builder(SERVICE_NAME)
+                        .addMethod(STREAMING_RECOGNIZE, ServerCalls.asyncBidiStreamingCall(this::streamingRecognize))
+                        .build())
+                .build();
+    }
+
+    /**
+     * Builds the server from the LOCAL_SPEECH_* environment variables, the same as the local stand-in of the replay
+     *
+     * @param port
+     * @return
+     */
+    public static LocalSpeechServer fromEnvironment(int port) {
+        return new LocalSpeechServer(port, 16, EnvUtils.getLong("LOCAL_SPEECH_SEGMENT_MS", 3000),
+                EnvUtils.getLong("LOCAL_SPEECH_INTERIM_MS", 250), EnvUtils.getLong("LOCAL_SPEECH_DELAY_MS", 300),
+                EnvUtils.getLong("LOCAL_SPEECH_JITTER_MS", 0), EnvUtils.getLong("LOCAL_SPEECH_STREAM_LIMIT_MS", 0));
+    }
+
+    public LocalSpeechServer start() throws IOException {
+        server.start();
+        logger.info(String.format("Local speech server listening on port %d", server.getPort()));
+        return this;
+    }
+
+    public int getPort() {
+        return server.getPort();
+    }
+
+    public int getStreams() {
+        return streams.get();
+    }
+
+    public int getActiveStreams() {
+        return activeStreams.get();
+    }
+
+    public int getMaxActiveStreams() {
+        return maxActiveStreams.get();
+    }
+
+    public long getAudioMillis() {
+        return audioBytes.get() / bytesPerMillisecond;
+    }
+
+    public long getResults() {
+        return results.get();
+    }
+
+    public long getInterimResults() {
+        return interimResults.get();
+    }
+
+    /**
+     * @return number of times responses had to wait for the client to be ready
+     */
+    public long getHeldResponses() {
+        return heldResponses.get();
+    }
+
+    public int getStreamLimitsReached() {
+        return streamLimitsReached.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d stream(s), %d active, at most %d at a time, %d ms of audio, %d result(s), "
+                        + "%d interim result(s), %d hold(s) by flow control, %d stream limit(s) reached",
+                getStreams(), getActiveStreams(), getMaxActiveStreams(), getAudioMillis(), getResults(),
+                getInterimResults(), getHeldResponses(), getStreamLimitsReached());
+    }
+
+    private StreamObserver<StreamingRecognizeRequest> streamingRecognize(StreamObserver<StreamingRecognizeResponse> responseObserver) {
+        return new ServerStream(streams.getAndIncrement(), (ServerCallStreamObserver<StreamingRecognizeResponse>) responseObserver);
+    }
+
+    /**
+     * A response, or the completion of the stream when it is null, and the time it is due
+     */
+    private static class Scheduled {
+        private final long dueNanos;
+        private final StreamingRecognizeResponse response;
+
+        private Scheduled(long dueNanos, StreamingRecognizeResponse response) {
+            this.dueNanos = dueNanos;
+            this.response = response;
+        }
+    }
+
+    private class ServerStream implements StreamObserver<StreamingRecognizeRequest> {
+        private final ServerCallStreamObserver<StreamingRecognizeResponse> call;
+        private final LocalRecognizer recognizer;
+        private final long startNanos = System.nanoTime();
+        // responses and completion not due yet, in order and due one after the other
+        private final ArrayDeque<Scheduled> scheduled = new ArrayDeque<Scheduled>();
+        // responses that are due, waiting for the client to be ready
+        private final Queue<StreamingRecognizeResponse> dueResponses = new ArrayDeque<StreamingRecognizeResponse>();
+        private boolean completing = false;
+        private boolean ended = false;
+
+        private ServerStream(int id, ServerCallStreamObserver<StreamingRecognizeResponse> call) {
+            this.call = call;
+            this.recognizer = new LocalRecognizer(id, bytesPerMillisecond, segmentMillis, interimMillis);
+            maxActiveStreams.accumulateAndGet(activeStreams.incrementAndGet(), Math::max);
+            call.disableAutoInboundFlowControl();
+            call.setOnReadyHandler(this::sendDue);
+            call.setOnCancelHandler(() -> end(null));
+            call.request(1);
+        }
+
+        @Override
+        public void onNext(StreamingRecognizeRequest request) {
+            if (streamLimitMillis > 0 && System.nanoTime() - startNanos > TimeUnit.MILLISECONDS.toNanos(streamLimitMillis)) {
+                streamLimitsReached.incrementAndGet();
+                end(Status.OUT_OF_RANGE.withDescription(String.format(
+                        "Exceeded maximum allowed stream duration of %d seconds.", streamLimitMillis / 1000)));
+                return;
+            }
+            long receivedBytes = recognizer.getAudioBytes();
+            for (StreamingRecognizeResponse response : recognizer.recognize(request)) {
+                if (LocalRecognizer.isFinal(response)) {
+                    results.incrementAndGet();
+                } else {
+                    interimResults.incrementAndGet();
+                }
+                schedule(response);
+            }
+            audioBytes.addAndGet(recognizer.getAudioBytes() - receivedBytes);
+            // the next request is read once this one is handled
+            call.request(1);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            end(null);
+        }
+
+        @Override
+        public void onCompleted() {
+            for (StreamingRecognizeResponse response : recognizer.finish()) {
+                results.incrementAndGet();
+                schedule(response);
+            }
+            schedule(null);
+        }
+
+        /**
+         * Schedules a response, or the completion when it is null, after the latency and not before the previous one
+         */
+        private synchronized void schedule(StreamingRecognizeResponse response) {
+            long jitterMillis = latencyJitterMillis > 0 ? ThreadLocalRandom.current().nextLong(latencyJitterMillis + 1) : 0;
+            long dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(latencyMillis + jitterMillis);
+            if (!scheduled.isEmpty()) {
+                dueNanos = Math.max(dueNanos, scheduled.peekLast().dueNanos);
+            }
+            scheduled.add(new Scheduled(dueNanos, response));
+            executor.schedule(this::releaseDue, dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Moves everything that is due to the responses to send, in order. Timers of equal due times may fire in
+         * any order, so each releases all that is due rather than its own response.
+         */
+        private synchronized void releaseDue() {
+            long now = System.nanoTime();
+            while (!ended && !scheduled.isEmpty() && scheduled.peek().dueNanos - now <= 0) {
+                StreamingRecognizeResponse response = scheduled.poll().response;
+                if (response == null) {
+                    completing = true;
+                } else {
+                    if (!dueResponses.isEmpty() || !call.isReady()) {
+                        heldResponses.incrementAndGet();
+                    }
+                    dueResponses.add(response);
+                }
+            }
+            sendDue();
+        }
+
+        private synchronized void sendDue() {
+            while (!ended && !dueResponses.isEmpty() && call.isReady()) {
+                call.onNext(dueResponses.poll());
+            }
+            if (completing && dueResponses.isEmpty()) {
+                end(Status.OK);
+            }
+        }
+
+        /**
+         * @param status status to close the call with, null if the client has cancelled it
+         */
+        private synchronized void end(Status status) {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            scheduled.clear();
+            dueResponses.clear();
+            activeStreams.decrementAndGet();
+            if (status == null || call.isCancelled()) {
+                return;
+            }
+            if (status.isOk()) {
+                call.onCompleted();
+            } else {
+                call.onError(status.asRuntimeException());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        server.awaitTermination();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : EnvUtils.getInt("LOCAL_SPEECH_PORT", 50051);
+        LocalSpeechServer server = fromEnvironment(port).start();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "local-speech-server-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long reportMillis = EnvUtils.getLong("LOCAL_SPEECH_REPORT_MS", 10000);
+        reporter.scheduleWithFixedDelay(() -> logger.info("Local speech server : " + server), reportMillis, reportMillis,
+                TimeUnit.MILLISECONDS);
+        server.awaitTermination();
+    }
+}
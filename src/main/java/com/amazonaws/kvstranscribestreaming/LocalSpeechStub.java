@@ -0,0 +1,215 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.api.gax.rpc.BidiStreamingCallable;
+import com.google.api.gax.rpc.ClientStream;
+import com.google.api.gax.rpc.ClientStreamReadyObserver;
+import com.google.api.gax.rpc.ResponseObserver;
+import com.google.api.gax.rpc.StreamController;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import com.google.cloud.speech.v1.stub.SpeechStub;
+import com.google.longrunning.stub.OperationsStub;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the Google STT streaming API, used to replay recorded calls without Google.
+ * Each stream answers with the results of a {@link LocalRecognizer}, after a fixed delay
+ * and on its own thread like the real API, so throughput and latency of the pipeline can be measured.
+ * The stub is called in-process, see {@link LocalSpeechServer} for the same over a gRPC channel.
+ * Install it with {@code ClientRegistry.setSpeechClient(SpeechClient.create(new LocalSpeechStub(...)))}.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class LocalSpeechStub extends SpeechStub {
+
+    private final int bytesPerMillisecond;
+    private final long segmentMillis;
+    private final long interimMillis;
+    private final long responseDelayMillis;
+    private final ScheduledExecutorService executor;
+
+    private final AtomicInteger streams = new AtomicInteger();
+    private final AtomicLong audioBytes = new AtomicLong();
+    private final AtomicLong results = new AtomicLong();
+    private final AtomicLong interimResults = new AtomicLong();
+
+    /**
+     * @param bytesPerMillisecond size of one millisecond of the audio received
+     * @param segmentMillis       audio duration covered by each final result
+     * @param interimMillis       audio duration between two interim results, when the stream asks for them
+     * @param responseDelayMillis time between receiving the end of a segment and answering it
+     */
+    public LocalSpeechStub(int bytesPerMillisecond, long segmentMillis, long interimMillis, long responseDelayMillis) {
+        this.bytesPerMillisecond = bytesPerMillisecond;
+        this.segmentMillis = segmentMillis;
+        this.interimMillis = interimMillis;
+        this.responseDelayMillis = responseDelayMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "local-speech");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getStreams() {
+        return streams.get();
+    }
+
+    public long getAudioMillis() {
+        return audioBytes.get() / bytesPerMillisecond;
+    }
+
+    public long getResults() {
+        return results.get();
+    }
+
+    public long getInterimResults() {
+        return interimResults.get();
+    }
+
+    /**
+     * Long running recognition is not used, SpeechClient only keeps the stub
+     *
+     * @return
+     */
+    @Override
+    public OperationsStub getOperationsStub() {
+        return null;
+    }
+
+    @Override
+    public BidiStreamingCallable<StreamingRecognizeRequest, StreamingRecognizeResponse> streamingRecognizeCallable() {
+        return new BidiStreamingCallable<StreamingRecognizeRequest, StreamingRecognizeResponse>() {
+            @Override
+            public ClientStream<StreamingRecognizeRequest> internalCall(
+                    ResponseObserver<StreamingRecognizeResponse> responseObserver,
+                    ClientStreamReadyObserver<StreamingRecognizeRequest> onReady, ApiCallContext context) {
+                return new LocalStream(streams.getAndIncrement(), responseObserver);
+            }
+        };
+    }
+
+    private class LocalStream implements ClientStream<StreamingRecognizeRequest> {
+        private final ResponseObserver<StreamingRecognizeResponse> responseObserver;
+        private final LocalRecognizer recognizer;
+        private boolean closed = false;
+
+        private LocalStream(int id, ResponseObserver<StreamingRecognizeResponse> responseObserver) {
+            this.responseObserver = responseObserver;
+            this.recognizer = new LocalRecognizer(id, bytesPerMillisecond, segmentMillis, interimMillis);
+            responseObserver.onStart(new StreamController() {
+                public void cancel() {
+                }
+
+                public void disableAutoInboundFlowControl() {
+                }
+
+                public void request(int count) {
+                }
+            });
+        }
+
+        @Override
+        public synchronized void send(StreamingRecognizeRequest request) {
+            if (closed) {
+                throw new IllegalStateException("Stream is already closed");
+            }
+            long receivedBytes = recognizer.getAudioBytes();
+            List<StreamingRecognizeResponse> responses = recognizer.recognize(request);
+            audioBytes.addAndGet(recognizer.getAudioBytes() - receivedBytes);
+            for (StreamingRecognizeResponse response : responses) {
+                answer(response);
+            }
+        }
+
+        @Override
+        public synchronized void closeSend() {
+            if (closed) {
+                throw new IllegalStateException("Stream is already closed");
+            }
+            closed = true;
+            for (StreamingRecognizeResponse response : recognizer.finish()) {
+                answer(response);
+            }
+            executor.schedule(responseObserver::onComplete, responseDelayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public synchronized void closeSendWithError(Throwable t) {
+            closed = true;
+            executor.execute(() -> responseObserver.onError(t));
+        }
+
+        @Override
+        public boolean isSendReady() {
+            return true;
+        }
+
+        private void answer(StreamingRecognizeResponse response) {
+            if (LocalRecognizer.isFinal(response)) {
+                results.incrementAndGet();
+            } else {
+                interimResults.incrementAndGet();
+            }
+            executor.schedule(() -> responseObserver.onResponse(response), responseDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return executor.isTerminated();
+    }
+
+    @Override
+    public void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public boolean awaitTermination(long duration, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(duration, unit);
+    }
+}
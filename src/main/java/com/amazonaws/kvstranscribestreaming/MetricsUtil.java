@@ -1,15 +1,39 @@
 package com.amazonaws.kvstranscribestreaming;
 
+import com.amazonaws.SdkClientException;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.model.Dimension;
 import com.amazonaws.services.cloudwatch.model.MetricDatum;
 import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
 import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Class relates CloudWatch
+ *
+ * Values are recorded in lock-free statistics on the hot path, and published aggregated on a background timer,
+ * either as statistic sets and histograms in batched PutMetricData requests or as Embedded Metric Format log lines.
+ * Each metric is published without dimension, and also per contact with a ContactId dimension when enabled.
  * 
  * 
  * MIT License
@@ -36,23 +60,391 @@ import java.util.Date;
  */
 public class MetricsUtil {
 
+    private static final Logger logger = LoggerFactory.getLogger(MetricsUtil.class);
+
     private static String NAMESPACE = "KVSTranscribeStreamingLambda";
+    private static final String CONTACT_DIMENSION = "ContactId";
+
+    // Limits of one PutMetricData request
+    private static final int MAX_DATUMS_PER_REQUEST = 1000;
+    private static final int MAX_REQUEST_BYTES = 1024 * 1024;
+
+    // Values below are kept exactly, above each power of two is split into 4 buckets (at most 19% error),
+    // up to 2^30 which is far more than any duration in milliseconds of a call
+    private static final int EXACT_VALUES = 16;
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int MAX_EXPONENT = 30;
+    private static final int HISTOGRAM_BUCKETS = EXACT_VALUES + (MAX_EXPONENT - 4 + 1) * (1 << SUB_BUCKET_BITS);
+
+    /**
+     * Where the aggregated metrics go
+     */
+    public enum Mode {
+        // batched PutMetricData requests
+        CLOUDWATCH,
+        // Embedded Metric Format lines on stdout, extracted by CloudWatch Logs without any API call
+        EMF,
+        // recorded but never published
+        OFF
+    }
+
+    /**
+     * Lock-free statistics of one metric, reset each time they are published.
+     * Durations keep a histogram as well, so that CloudWatch can compute percentiles.
+     */
+    public static final class Stat {
+        private final String name;
+        private final StandardUnit unit;
+        private final String contactId;
+        private final Stat parent;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        private final LongAccumulator max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+        private final AtomicLongArray buckets;
+
+        private Stat(String name, StandardUnit unit, String contactId, Stat parent) {
+            this.name = name;
+            this.unit = unit;
+            this.contactId = contactId;
+            this.parent = parent;
+            this.buckets = isDuration(unit) ? new AtomicLongArray(HISTOGRAM_BUCKETS) : null;
+        }
+
+        public void record(long value) {
+            count.increment();
+            sum.add(value);
+            min.accumulate(value);
+            max.accumulate(value);
+            if (buckets != null) {
+                buckets.incrementAndGet(bucketOf(value));
+            }
+            if (parent != null) {
+                parent.record(value);
+            }
+        }
+
+        /**
+         * Records the milliseconds elapsed since startNanos, for metrics in Milliseconds
+         *
+         * @param startNanos System.nanoTime() at the start
+         */
+        public void recordSince(long startNanos) {
+            record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+
+        /**
+         * Takes the values recorded since the last snapshot. Values recorded meanwhile may land in either snapshot.
+         *
+         * @return null if nothing has been recorded
+         */
+        private Snapshot snapshot() {
+            long n = count.sumThenReset();
+            if (n == 0) {
+                return null;
+            }
+            long[] counts = null;
+            if (buckets != null) {
+                counts = new long[HISTOGRAM_BUCKETS];
+                for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                    counts[i] = buckets.getAndSet(i, 0);
+                }
+            }
+            return new Snapshot(this, n, sum.sumThenReset(), min.getThenReset(), max.getThenReset(), counts);
+        }
+    }
+
+    private static final class Snapshot {
+        private final Stat stat;
+        private final long count;
+        private final long sum;
+        private final long min;
+        private final long max;
+        private final long[] counts;
+
+        private Snapshot(Stat stat, long count, long sum, long min, long max, long[] counts) {
+            this.stat = stat;
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+            this.counts = counts;
+        }
+
+        private double average() {
+            return (double) sum / count;
+        }
+
+        private long percentile(double p) {
+            long rank = (long) Math.ceil(count * p);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(max, Math.max(min, bucketValue(i)));
+                }
+            }
+            return max;
+        }
+    }
+
     private final AmazonCloudWatch amazonCloudWatch;
+    private final Mode mode;
+    private final boolean contactDimension;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    // statistics without dimension by metric name, and per contact by contact and metric name
+    private final ConcurrentMap<String, Stat> totals = new ConcurrentHashMap<String, Stat>();
+    private final ConcurrentMap<String, ConcurrentMap<String, Stat>> contacts = new ConcurrentHashMap<String, ConcurrentMap<String, Stat>>();
+    // contacts that have ended, dropped once their last values are published
+    private final ConcurrentLinkedQueue<String> releasedContacts = new ConcurrentLinkedQueue<String>();
+
+    private ScheduledExecutorService flushTimer = null;
 
     public MetricsUtil(AmazonCloudWatch amazonCloudWatch) {
+        this(amazonCloudWatch, Mode.CLOUDWATCH, false, 0);
+    }
+
+    /**
+     * @param amazonCloudWatch
+     * @param mode
+     * @param contactDimension publish each metric per contact as well
+     * @param flushIntervalMillis interval of the background publishing, 0 to publish only on {@link #flush}
+     */
+    public MetricsUtil(AmazonCloudWatch amazonCloudWatch, Mode mode, boolean contactDimension, long flushIntervalMillis) {
         this.amazonCloudWatch = amazonCloudWatch;
+        this.mode = mode;
+        this.contactDimension = contactDimension;
+        if (mode != Mode.OFF && flushIntervalMillis > 0) {
+            flushTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flushTimer.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the statistics to record a metric of a contact into. The statistics are meant to be kept
+     * by the caller for the whole contact, so that recording does not look them up again.
+     *
+     * @param metricName
+     * @param unit Milliseconds for durations, which keep a histogram
+     * @param contactId null for a metric that does not belong to a contact
+     * @return
+     */
+    public Stat stat(String metricName, StandardUnit unit, String contactId) {
+        Stat total = totals.computeIfAbsent(metricName, name -> new Stat(name, unit, null, null));
+        if (!contactDimension || contactId == null) {
+            return total;
+        }
+        return contacts.computeIfAbsent(contactId, c -> new ConcurrentHashMap<String, Stat>())
+                .computeIfAbsent(metricName, name -> new Stat(name, unit, contactId, total));
     }
 
     public void recordMetric(final String metricName, long value) {
-        MetricDatum metricData = new MetricDatum().withMetricName(metricName)
-                .withTimestamp(Date.from(Instant.now()))
-                .withUnit(StandardUnit.Count)
-                .withValue(Double.valueOf(value));
+        stat(metricName, StandardUnit.Count, null).record(value);
+    }
 
-        PutMetricDataRequest metricRequest = new PutMetricDataRequest()
+    /**
+     * Drops the statistics of a contact that has ended, once their last values have been published
+     *
+     * @param contactId
+     */
+    public void release(String contactId) {
+        if (contactDimension && contactId != null) {
+            releasedContacts.add(contactId);
+        }
+    }
+
+    /**
+     * Publishes the values recorded since the last flush. Called by the background timer,
+     * and at the end of a Lambda invocation since the container may be frozen before the next tick.
+     */
+    public synchronized void flush() {
+        List<String> released = new ArrayList<String>();
+        for (String contactId; (contactId = releasedContacts.poll()) != null; ) {
+            released.add(contactId);
+        }
+
+        List<Snapshot> snapshots = new ArrayList<Snapshot>();
+        addSnapshots(totals.values(), snapshots);
+        for (Map<String, Stat> stats : contacts.values()) {
+            addSnapshots(stats.values(), snapshots);
+        }
+        for (String contactId : released) {
+            contacts.remove(contactId);
+        }
+        if (snapshots.isEmpty() || mode == Mode.OFF) {
+            return;
+        }
+
+        try {
+            if (mode == Mode.EMF) {
+                printEmf(snapshots);
+            } else {
+                putStatistics(snapshots);
+            }
+        } catch (SdkClientException | JsonProcessingException e) {
+            logger.warn(String.format("Error publishing %d metric(s): %s", snapshots.size(), e));
+        }
+    }
+
+    /**
+     * Stops the background timer after publishing the last values
+     */
+    public void shutdown() {
+        if (flushTimer != null) {
+            flushTimer.shutdown();
+        }
+        flush();
+    }
+
+    private static void addSnapshots(Iterable<Stat> stats, List<Snapshot> snapshots) {
+        for (Stat stat : stats) {
+            Snapshot snapshot = stat.snapshot();
+            if (snapshot != null) {
+                snapshots.add(snapshot);
+            }
+        }
+    }
+
+    private void putStatistics(List<Snapshot> snapshots) {
+        Date timestamp = new Date();
+        List<MetricDatum> batch = new ArrayList<MetricDatum>();
+        int batchBytes = 0;
+        for (Snapshot snapshot : snapshots) {
+            MetricDatum datum = toDatum(snapshot, timestamp);
+            // rough size of the datum in the request
+            int datumBytes = 256 + (datum.getValues() == null ? 0 : datum.getValues().size() * 48);
+            if (batch.size() == MAX_DATUMS_PER_REQUEST || batchBytes + datumBytes > MAX_REQUEST_BYTES) {
+                putMetricData(batch);
+                batch = new ArrayList<MetricDatum>();
+                batchBytes = 0;
+            }
+            batch.add(datum);
+            batchBytes += datumBytes;
+        }
+        putMetricData(batch);
+    }
+
+    private void putMetricData(List<MetricDatum> batch) {
+        amazonCloudWatch.putMetricData(new PutMetricDataRequest()
                 .withNamespace(NAMESPACE)
-                .withMetricData(metricData);
+                .withMetricData(batch));
+    }
+
+    private static MetricDatum toDatum(Snapshot snapshot, Date timestamp) {
+        MetricDatum datum = new MetricDatum().withMetricName(snapshot.stat.name)
+                .withTimestamp(timestamp)
+                .withUnit(snapshot.stat.unit);
+        if (snapshot.stat.contactId != null) {
+            datum.withDimensions(new Dimension().withName(CONTACT_DIMENSION).withValue(snapshot.stat.contactId));
+        }
+        if (snapshot.counts == null) {
+            return datum.withStatisticValues(new StatisticSet()
+                    .withSampleCount((double) snapshot.count)
+                    .withSum((double) snapshot.sum)
+                    .withMinimum((double) snapshot.min)
+                    .withMaximum((double) snapshot.max));
+        }
+        List<Double> values = new ArrayList<Double>();
+        List<Double> counts = new ArrayList<Double>();
+        for (int i = 0; i < snapshot.counts.length; i++) {
+            if (snapshot.counts[i] > 0) {
+                values.add((double) bucketValue(i));
+                counts.add((double) snapshot.counts[i]);
+            }
+        }
+        return datum.withValues(values).withCounts(counts);
+    }
+
+    /**
+     * Prints one Embedded Metric Format line per dimension set. EMF has no statistic sets, so counters are
+     * published as their sum, and durations as their average, maximum and 99th percentile.
+     *
+     * @param snapshots
+     * @throws JsonProcessingException
+     */
+    private void printEmf(List<Snapshot> snapshots) throws JsonProcessingException {
+        Map<String, List<Snapshot>> byContact = new LinkedHashMap<String, List<Snapshot>>();
+        for (Snapshot snapshot : snapshots) {
+            byContact.computeIfAbsent(String.valueOf(snapshot.stat.contactId), c -> new ArrayList<Snapshot>()).add(snapshot);
+        }
+        long timestamp = System.currentTimeMillis();
+        for (List<Snapshot> contactSnapshots : byContact.values()) {
+            String contactId = contactSnapshots.get(0).stat.contactId;
+            Map<String, Object> line = new LinkedHashMap<String, Object>();
+            List<Map<String, String>> definitions = new ArrayList<Map<String, String>>();
+            for (Snapshot snapshot : contactSnapshots) {
+                String name = snapshot.stat.name;
+                String unit = snapshot.stat.unit.toString();
+                if (snapshot.counts == null) {
+                    addEmfMetric(line, definitions, name, unit, snapshot.sum);
+                } else {
+                    addEmfMetric(line, definitions, name, unit, snapshot.average());
+                    addEmfMetric(line, definitions, name + "Max", unit, snapshot.max);
+                    addEmfMetric(line, definitions, name + "P99", unit, snapshot.percentile(0.99));
+                }
+            }
+
+            Map<String, Object> directive = new LinkedHashMap<String, Object>();
+            directive.put("Namespace", NAMESPACE);
+            directive.put("Dimensions", Collections.singletonList(contactId == null
+                    ? Collections.emptyList() : Collections.singletonList(CONTACT_DIMENSION)));
+            directive.put("Metrics", definitions);
+            Map<String, Object> aws = new LinkedHashMap<String, Object>();
+            aws.put("Timestamp", timestamp);
+            aws.put("CloudWatchMetrics", Collections.singletonList(directive));
+
+            Map<String, Object> root = new LinkedHashMap<String, Object>();
+            root.put("_aws", aws);
+            if (contactId != null) {
+                root.put(CONTACT_DIMENSION, contactId);
+            }
+            root.putAll(line);
+            // the line must be pure JSON to be extracted, so it bypasses the log layout
+            System.out.println(objectMapper.writeValueAsString(root));
+        }
+    }
+
+    private static void addEmfMetric(Map<String, Object> line, List<Map<String, String>> definitions,
+                                     String name, String unit, Object value) {
+        Map<String, String> definition = new LinkedHashMap<String, String>();
+        definition.put("Name", name);
+        definition.put("Unit", unit);
+        definitions.add(definition);
+        line.put(name, value);
+    }
+
+    private static boolean isDuration(StandardUnit unit) {
+        return unit == StandardUnit.Milliseconds || unit == StandardUnit.Microseconds || unit == StandardUnit.Seconds;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < EXACT_VALUES) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return HISTOGRAM_BUCKETS - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+        return EXACT_VALUES + (exponent - 4) * (1 << SUB_BUCKET_BITS) + subBucket;
+    }
 
-        amazonCloudWatch.putMetricData(metricRequest);
+    /**
+     * @param bucket
+     * @return the middle of the values of the bucket
+     */
+    private static long bucketValue(int bucket) {
+        if (bucket < EXACT_VALUES) {
+            return bucket;
+        }
+        int exponent = 4 + (bucket - EXACT_VALUES) / (1 << SUB_BUCKET_BITS);
+        int subBucket = (bucket - EXACT_VALUES) % (1 << SUB_BUCKET_BITS);
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((1L << SUB_BUCKET_BITS) + subBucket) * width + width / 2;
     }
 }
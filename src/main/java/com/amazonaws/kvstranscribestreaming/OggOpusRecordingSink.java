@@ -0,0 +1,268 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import io.github.jaredmdobson.concentus.OpusApplication;
+import io.github.jaredmdobson.concentus.OpusEncoder;
+import io.github.jaredmdobson.concentus.OpusException;
+import io.github.jaredmdobson.concentus.OpusSignal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Writes PCM audio into an Ogg Opus file while the call is running, lossy at a low bitrate for the archive.
+ * The audio is encoded in 20 ms packets as it arrives, and the packets are written in pages of one second,
+ * so only the audio of the current page is held in memory.
+ *
+ * Opus works at 48 kHz: the pre-skip and the granule positions are counted at 48 kHz whatever the input rate.
+ * On close the last packet is padded with silence, and the granule position of the last page cuts it
+ * so that players play back exactly the samples written.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class OggOpusRecordingSink implements RecordingSink {
+
+    private static final int FRAME_MILLIS = 20;
+    private static final int PACKETS_PER_PAGE = 1000 / FRAME_MILLIS;
+    private static final int MAX_PACKET_SIZE = 1275;
+    private static final int MAX_SEGMENTS = 255;
+
+    private static final int FLAG_BEGINNING_OF_STREAM = 0x02;
+    private static final int FLAG_END_OF_STREAM = 0x04;
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private final Path path;
+    private final RecordingFile file;
+    private final OpusEncoder encoder;
+    private final int serialNumber;
+    private final int channels;
+    // samples per channel of a packet
+    private final int frameSize;
+    // samples at 48 kHz per input sample
+    private final int granuleScale;
+    private final int preSkip;
+
+    private final short[] frame;
+    private int frameSamples = 0;
+    private final byte[] packet = new byte[MAX_PACKET_SIZE];
+
+    // packets of the page being filled, and their lacing values
+    private final ByteBuffer pageBody = ByteBuffer.allocate(PACKETS_PER_PAGE * MAX_PACKET_SIZE);
+    private final byte[] segments = new byte[MAX_SEGMENTS];
+    private int segmentCount = 0;
+    private int pagePackets = 0;
+    private int pageSequence = 0;
+
+    private long inputSamples = 0;
+    private long encodedSamples = 0;
+    private long dataBytes = 0;
+
+    /**
+     * @param path
+     * @param sampleRate 8000, 12000, 16000, 24000 or 48000
+     * @param bitrate in bits per second
+     * @throws IOException
+     */
+    public OggOpusRecordingSink(Path path, int sampleRate, int bitrate) throws IOException {
+        this(path, sampleRate, 1, bitrate);
+    }
+
+    /**
+     * @param path
+     * @param sampleRate 8000, 12000, 16000, 24000 or 48000
+     * @param channels   1 or 2, the samples of stereo PCM are interleaved
+     * @param bitrate    in bits per second for all channels
+     * @throws IOException
+     */
+    public OggOpusRecordingSink(Path path, int sampleRate, int channels, int bitrate) throws IOException {
+        this.path = path;
+        this.channels = channels;
+        try {
+            this.encoder = new OpusEncoder(sampleRate, channels, OpusApplication.OPUS_APPLICATION_VOIP);
+        } catch (OpusException e) {
+            throw new IllegalArgumentException(String.format("Cannot encode Opus at %d Hz: %s", sampleRate, e.getMessage()), e);
+        }
+        encoder.setBitrate(bitrate);
+        encoder.setSignalType(OpusSignal.OPUS_SIGNAL_VOICE);
+        this.serialNumber = path.getFileName().toString().hashCode();
+        this.frameSize = sampleRate * FRAME_MILLIS / 1000;
+        this.granuleScale = 48000 / sampleRate;
+        this.preSkip = encoder.getLookahead() * granuleScale;
+        this.frame = new short[frameSize * channels];
+
+        this.file = new RecordingFile(path);
+        writeHeaders(sampleRate);
+    }
+
+    @Override
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    @Override
+    public long getFileBytes() {
+        return file.getWrittenBytes();
+    }
+
+    /**
+     * Encodes the chunk into packets, and writes a page every second of audio
+     *
+     * @param pcm
+     * @throws IOException
+     */
+    @Override
+    public void write(ByteBuffer pcm) throws IOException {
+        ByteBuffer input = pcm.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        dataBytes += input.remaining();
+        while (input.remaining() >= 2 * channels) {
+            for (int channel = 0; channel < channels; channel++) {
+                frame[frameSamples * channels + channel] = input.getShort();
+            }
+            frameSamples++;
+            inputSamples++;
+            if (frameSamples == frameSize) {
+                encodeFrame();
+            }
+        }
+        pcm.position(pcm.limit());
+    }
+
+    /**
+     * Pads the last packet with silence, writes the last page and closes the file
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (!file.isOpen()) {
+            return;
+        }
+        try {
+            // the decoder drops the pre-skip, so the packets must hold it on top of the input
+            while (frameSamples > 0 || encodedSamples * granuleScale < preSkip + inputSamples * granuleScale) {
+                while (frameSamples < frameSize) {
+                    for (int channel = 0; channel < channels; channel++) {
+                        frame[frameSamples * channels + channel] = 0;
+                    }
+                    frameSamples++;
+                }
+                encodeFrame();
+            }
+            writePage(preSkip + inputSamples * granuleScale, FLAG_END_OF_STREAM);
+        } finally {
+            file.close();
+        }
+    }
+
+    private void encodeFrame() throws IOException {
+        int length;
+        try {
+            length = encoder.encode(frame, 0, frameSize, packet, 0, packet.length);
+        } catch (OpusException e) {
+            throw new IOException("Opus encoding failed: " + e.getMessage(), e);
+        }
+        frameSamples = 0;
+        encodedSamples += frameSize;
+
+        // a full page is written before the next packet, so that the last page always ends with a packet
+        if (pagePackets == PACKETS_PER_PAGE || segmentCount + length / 255 + 1 > MAX_SEGMENTS) {
+            writePage((encodedSamples - frameSize) * granuleScale, 0);
+        }
+        pageBody.put(packet, 0, length);
+        for (int remaining = length; ; remaining -= 255) {
+            segments[segmentCount++] = (byte) Math.min(remaining, 255);
+            if (remaining < 255) {
+                break;
+            }
+        }
+        pagePackets++;
+    }
+
+    private void writeHeaders(int sampleRate) throws IOException {
+        pageBody.order(ByteOrder.LITTLE_ENDIAN);
+        pageBody.put("OpusHead".getBytes(StandardCharsets.US_ASCII));
+        pageBody.put((byte) 1); // version
+        pageBody.put((byte) channels);
+        pageBody.putShort((short) preSkip);
+        pageBody.putInt(sampleRate);
+        pageBody.putShort((short) 0); // output gain
+        pageBody.put((byte) 0); // mono or stereo, no channel mapping table
+        segments[segmentCount++] = (byte) pageBody.position();
+        writePage(0, FLAG_BEGINNING_OF_STREAM);
+
+        byte[] vendor = "concentus".getBytes(StandardCharsets.US_ASCII);
+        pageBody.put("OpusTags".getBytes(StandardCharsets.US_ASCII));
+        pageBody.putInt(vendor.length);
+        pageBody.put(vendor);
+        pageBody.putInt(0); // no comments
+        segments[segmentCount++] = (byte) pageBody.position();
+        writePage(0, 0);
+    }
+
+    private void writePage(long granulePosition, int flags) throws IOException {
+        ByteBuffer page = ByteBuffer.allocate(27 + segmentCount + pageBody.position()).order(ByteOrder.LITTLE_ENDIAN);
+        page.put("OggS".getBytes(StandardCharsets.US_ASCII));
+        page.put((byte) 0); // version
+        page.put((byte) flags);
+        page.putLong(granulePosition);
+        page.putInt(serialNumber);
+        page.putInt(pageSequence++);
+        page.putInt(0); // CRC, computed over the whole page with this field set to 0
+        page.put((byte) segmentCount);
+        page.put(segments, 0, segmentCount);
+        page.put(pageBody.array(), 0, pageBody.position());
+        page.putInt(22, crc(page.array()));
+        page.flip();
+        file.append(page);
+        pageBody.clear();
+        segmentCount = 0;
+        pagePackets = 0;
+    }
+
+    private static int crc(byte[] data) {
+        int crc = 0;
+        for (byte b : data) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ b) & 0xFF];
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,106 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import io.perfmark.PerfMark;
+import io.perfmark.Tag;
+import io.perfmark.tracewriter.TraceEventWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Switch and trace dumps of the PerfMark tasks along the path of the audio chunks, from the KVS reader through
+ * the audio pipeline and gRPC to DynamoDB and S3. Tasks of a contact are tagged with its contact ID, and links
+ * join a chunk or a segment across the threads that handle it.
+ *
+ * PerfMark records nothing until it is enabled, with PERFMARK_ENABLED or at runtime with {@link #setEnabled}.
+ * The traces are written in the Chrome Trace Event format, to be opened with chrome://tracing or Perfetto.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public final class PerfMarkTracing {
+
+    private static final Logger logger = LoggerFactory.getLogger(PerfMarkTracing.class);
+
+    private static final String DUMP_DIRECTORY = EnvUtils.getString("PERFMARK_DUMP_DIR", "/tmp");
+
+    private static volatile boolean enabled = false;
+
+    static {
+        setEnabled(EnvUtils.getBoolean("PERFMARK_ENABLED", false));
+    }
+
+    private PerfMarkTracing() {
+    }
+
+    /**
+     * @param contactId
+     * @return the tag of the tasks of the contact, nothing is allocated while tracing is disabled
+     */
+    public static Tag tag(String contactId) {
+        return PerfMark.createTag(contactId);
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts or stops recording the tasks of all threads
+     *
+     * @param value
+     */
+    public static void setEnabled(boolean value) {
+        PerfMark.setEnabled(value);
+        enabled = value;
+        logger.info(String.format("PerfMark tracing %s", value ? "enabled" : "disabled"));
+    }
+
+    /**
+     * Writes the tasks recorded so far by every thread, which PerfMark keeps in a bounded buffer per thread.
+     * Does nothing while tracing is disabled.
+     *
+     * @param contactId used in the file name, the tasks of the contact are tagged with it
+     * @return the trace file, or null if nothing was written
+     */
+    public static Path dump(String contactId) {
+        if (!enabled) {
+            return null;
+        }
+        Path path = Paths.get(DUMP_DIRECTORY, String.format("perfmark_%s_%d.json", contactId, System.currentTimeMillis()));
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            TraceEventWriter.writeTraceEvents(writer);
+            logger.info(String.format("PerfMark trace of %s written to %s", contactId, path));
+            return path;
+        } catch (IOException | RuntimeException e) {
+            logger.warn(String.format("Error writing PerfMark trace of %s: %s", contactId, e));
+            return null;
+        }
+    }
+}
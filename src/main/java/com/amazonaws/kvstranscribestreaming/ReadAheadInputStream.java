@@ -0,0 +1,263 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the GetMedia stream ahead on a daemon thread, so that the MKV parser never blocks on the socket.
+ * The parser thread parks on a bounded queue while KVS is idle, and reads fail with an {@link IdleTimeoutException}
+ * when no bytes have arrived for the idle timeout, e.g. when the producer stopped without ending the stream.
+ * Time spent waiting for KVS and time spent processing the stream are kept for the metrics of the call.
+ * A read of the underlying stream that returns no bytes is retried after a backoff, so the reader thread does not spin.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReadAheadInputStream.class);
+
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    private static final long INITIAL_BACKOFF_MILLIS = 1;
+
+    /**
+     * Thrown by the reads once KVS has been idle for longer than the timeout
+     */
+    public static class IdleTimeoutException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public IdleTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    private final InputStream in;
+    private final String name;
+    private final long idleTimeoutNanos;
+    private final int readSize;
+    private final long maxBackoffMillis;
+    private final BlockingQueue<byte[]> queue;
+    private final Thread reader;
+
+    private volatile IOException readException = null;
+    private volatile boolean closed = false;
+
+    // only used by the consuming thread
+    private byte[] current = null;
+    private int currentLength = 0;
+    private int position = 0;
+    private boolean ended = false;
+    private boolean timedOut = false;
+    private long firstReadNanos = 0;
+    private long lastReadNanos = 0;
+    private long idleNanos = 0;
+
+    /**
+     * @param in
+     * @param name used for the reader thread and the logs
+     * @param idleTimeoutMillis reads fail when no bytes arrived for that long, 0 to wait forever
+     * @param readSize bytes read from the underlying stream at once
+     * @param maxQueuedReads reads kept ahead of the parser before the reader thread blocks
+     * @param maxBackoffMillis longest wait before reading again after a read returned no bytes, the wait doubles from
+     *                         1 ms up to it
+     */
+    public ReadAheadInputStream(InputStream in, String name, long idleTimeoutMillis, int readSize, int maxQueuedReads,
+                                long maxBackoffMillis) {
+        this.in = in;
+        this.name = name;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.readSize = readSize;
+        this.maxBackoffMillis = Math.max(INITIAL_BACKOFF_MILLIS, maxBackoffMillis);
+        this.queue = new ArrayBlockingQueue<byte[]>(maxQueuedReads + 1);
+        this.reader = new Thread(this::readAhead, "read-ahead-" + name);
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * @return true if the reads failed because KVS was idle for longer than the timeout
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return milliseconds the parser spent waiting for bytes from KVS
+     */
+    public long getIdleMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(idleNanos);
+    }
+
+    /**
+     * @return milliseconds between the first and the last read that were not spent waiting for KVS
+     */
+    public long getBusyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(Math.max(0, lastReadNanos - firstReadNanos - idleNanos));
+    }
+
+    private void readAhead() {
+        long backoffMillis = INITIAL_BACKOFF_MILLIS;
+        try {
+            while (!closed) {
+                byte[] buffer = new byte[readSize];
+                int n = in.read(buffer);
+                if (n < 0) {
+                    break;
+                }
+                if (n == 0) {
+                    Thread.sleep(backoffMillis);
+                    backoffMillis = Math.min(backoffMillis * 2, maxBackoffMillis);
+                    continue;
+                }
+                backoffMillis = INITIAL_BACKOFF_MILLIS;
+                queue.put(n == buffer.length ? buffer : Arrays.copyOf(buffer, n));
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                readException = e;
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } finally {
+            queue.offer(END_OF_STREAM);
+        }
+    }
+
+    /**
+     * Makes the next read bytes current, parking until the reader thread queues them
+     *
+     * @return false at the end of the stream
+     * @throws IOException
+     */
+    private boolean fill() throws IOException {
+        if (position < currentLength) {
+            return true;
+        }
+        if (timedOut) {
+            throw idleTimeoutException();
+        }
+        if (ended) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+        if (firstReadNanos == 0) {
+            firstReadNanos = now;
+        }
+        byte[] next = queue.poll();
+        if (next == null) {
+            try {
+                next = idleTimeoutNanos > 0 ? queue.poll(idleTimeoutNanos, TimeUnit.NANOSECONDS) : queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + name);
+            }
+            long waited = System.nanoTime() - now;
+            idleNanos += waited;
+            now += waited;
+        }
+        lastReadNanos = now;
+
+        if (next == null) {
+            logger.warn(String.format("No data from %s for %d ms, ending the stream", name,
+                    TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos)));
+            timedOut = true;
+            throw idleTimeoutException();
+        }
+        if (next == END_OF_STREAM) {
+            ended = true;
+            if (readException != null) {
+                throw readException;
+            }
+            return false;
+        }
+        current = next;
+        currentLength = next.length;
+        position = 0;
+        return true;
+    }
+
+    private IdleTimeoutException idleTimeoutException() {
+        return new IdleTimeoutException(String.format("No data from %s for %d ms", name,
+                TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos)));
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, currentLength - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    /**
+     * Bytes that can be read without parking, so that the parser only waits when it has consumed everything
+     */
+    @Override
+    public int available() throws IOException {
+        if (position < currentLength) {
+            return currentLength - position;
+        }
+        byte[] next = queue.peek();
+        return next == null ? 0 : next.length;
+    }
+
+    /**
+     * Stops the reader thread and closes the underlying stream. The stream is shared by all tracks,
+     * so it may be closed more than once.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        reader.interrupt();
+        in.close();
+    }
+}
@@ -0,0 +1,391 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recording file in /tmp, written through a direct buffer instead of a write per chunk.
+ * The chunks are copied into the buffer, which is written to the file with a single write once it is full.
+ * The file is not mapped, so its space is free as soon as it is deleted.
+ *
+ * The recording reserves the bytes of /tmp it may take by whole extents, counted against a budget shared by all
+ * recordings of the process. When the budget or the disk is exhausted, the recording stops at the end of its last
+ * extent and the rest of the call is dropped from it, the transcription goes on. The bytes are given back when the
+ * file is deleted with {@link #delete}.
+ *
+ * Lambda keeps /tmp between the invocations of a warm container, {@link #deleteLeftovers} deletes the recordings
+ * of earlier calls that are not being written any more. A call that fails before deleting its recordings releases
+ * them with {@link #deleteAll}, so that they do not hold the budget of the container.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class RecordingFile {
+
+    private static final Logger logger = LoggerFactory.getLogger(RecordingFile.class);
+
+    // Size of the extents the recordings reserve, and the bytes of /tmp all recordings of the process may take
+    private static final long EXTENT_BYTES = EnvUtils.getLong("RECORDING_EXTENT_KB", 1024) * 1024;
+    private static final long TMP_BUDGET_BYTES = EnvUtils.getLong("TMP_BUDGET_MB", 384) * 1024 * 1024;
+    // Size of the buffer the chunks are collected in before they are written
+    private static final int WRITE_BUFFER_BYTES = EnvUtils.getInt("RECORDING_WRITE_BUFFER_KB", 64) * 1024;
+
+    private static final String[] RECORDING_EXTENSIONS = {".wav", ".flac", ".opus", ".mkv"};
+
+    // recordings not deleted yet, each holding the bytes of /tmp it has reserved
+    private static final Map<Path, RecordingFile> recordings = new ConcurrentHashMap<Path, RecordingFile>();
+    private static final AtomicLong totalReservedBytes = new AtomicLong();
+
+    private final Path path;
+    private final FileChannel channel;
+    // bytes appended but not written to the file yet, allocated on the first append
+    private ByteBuffer pending = null;
+    // bytes of the reserved extents
+    private long allocated = 0;
+    private long size = 0;
+    private long writtenBytes = 0;
+    private boolean full = false;
+    private long droppedBytes = 0;
+    // bytes of /tmp counted against the budget, given back when the recording is deleted
+    private long reservedBytes = 0;
+    private boolean released = false;
+
+    /**
+     * @param path
+     * @throws IOException
+     */
+    public RecordingFile(Path path) throws IOException {
+        this.path = path;
+        // known before it exists, so that deleteLeftovers of a concurrent call never takes it for a leftover
+        RecordingFile previous = recordings.put(path, this);
+        if (previous != null) {
+            // the file is truncated, the bytes of the previous recording are not taken any more
+            previous.release();
+        }
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            recordings.remove(path, this);
+            throw e;
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return number of bytes appended
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return number of bytes written to the file, which can be read from it while it is being appended to
+     */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * @return true if the recording has stopped because /tmp is exhausted
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * Appends the buffer, reserving another extent when the current ones are filled
+     *
+     * @param buffer
+     * @return false if the buffer was dropped because /tmp is exhausted
+     * @throws IOException
+     */
+    public boolean append(ByteBuffer buffer) throws IOException {
+        if (full) {
+            droppedBytes += buffer.remaining();
+            buffer.position(buffer.limit());
+            return false;
+        }
+        // buffers are dropped whole, so that the file ends with a whole packet or frame
+        if (size + buffer.remaining() > allocated && !grow(size + buffer.remaining() - allocated)) {
+            return append(buffer);
+        }
+        if (pending == null) {
+            pending = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+        }
+        while (buffer.hasRemaining()) {
+            int length = Math.min(buffer.remaining(), pending.remaining());
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(slice.position() + length);
+            pending.put(slice);
+            buffer.position(buffer.position() + length);
+            size += length;
+            if (!pending.hasRemaining()) {
+                flush();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Overwrites bytes already written, e.g. a header on close
+     *
+     * @param buffer
+     * @param position
+     * @throws IOException
+     */
+    public void write(ByteBuffer buffer, long position) throws IOException {
+        if (position + buffer.remaining() > size) {
+            throw new IOException(String.format("Cannot write %d bytes at %d past the end of %s", buffer.remaining(), position, path));
+        }
+        flush();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Writes the bytes appended, gives the rest of the last extent back to the budget and closes the file.
+     * Does nothing if it is already closed.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            flush();
+            pending = null;
+            // a failed write may have left part of its bytes
+            channel.truncate(size);
+            reserve(size - reservedBytes);
+            if (droppedBytes > 0) {
+                logger.warn(String.format("Recording %s truncated at %d bytes, %d bytes dropped", path, size, droppedBytes));
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reserves the extents holding at least the needed bytes past the reserved ones
+     *
+     * @param neededBytes
+     * @return false if /tmp is exhausted, and the recording stops
+     */
+    private boolean grow(long neededBytes) {
+        long growBytes = (neededBytes + EXTENT_BYTES - 1) / EXTENT_BYTES * EXTENT_BYTES;
+        String exhausted = null;
+        try {
+            if (Files.getFileStore(path).getUsableSpace() < growBytes) {
+                exhausted = "no space left";
+            }
+        } catch (IOException e) {
+            exhausted = e.getMessage();
+        }
+        if (exhausted == null && !reserve(growBytes)) {
+            exhausted = String.format("budget of %d MB reached", TMP_BUDGET_BYTES / 1024 / 1024);
+        }
+        if (exhausted != null) {
+            logger.warn(String.format("Recording %s stopped at %d bytes, /tmp is exhausted: %s", path, size, exhausted));
+            full = true;
+            return false;
+        }
+        allocated += growBytes;
+        return true;
+    }
+
+    /**
+     * Adds bytes to the reservation of the recording, or gives them back when negative.
+     * Bytes are only added if all recordings stay within the budget, checked and reserved in one step so that
+     * concurrent recordings cannot overrun it together.
+     *
+     * @param bytes
+     * @return false if the budget would be exceeded, or the recording has been deleted
+     */
+    private synchronized boolean reserve(long bytes) {
+        if (released) {
+            return false;
+        }
+        long total = totalReservedBytes.addAndGet(bytes);
+        if (bytes > 0 && total > TMP_BUDGET_BYTES) {
+            totalReservedBytes.addAndGet(-bytes);
+            return false;
+        }
+        reservedBytes += bytes;
+        return true;
+    }
+
+    /**
+     * Writes the bytes appended since the last write.
+     * The extents are not allocated on the disk, if it fills up anyway the recording stops at the bytes written.
+     */
+    private void flush() {
+        if (pending == null || pending.position() == 0) {
+            return;
+        }
+        pending.flip();
+        try {
+            while (pending.hasRemaining()) {
+                writtenBytes += channel.write(pending, writtenBytes);
+            }
+        } catch (IOException e) {
+            logger.warn(String.format("Recording %s stopped at %d bytes, writing it failed: %s", path, writtenBytes, e));
+            droppedBytes += size - writtenBytes;
+            size = writtenBytes;
+            full = true;
+        }
+        pending.clear();
+    }
+
+    /**
+     * Closes the file as it is, without writing the bytes appended, and gives its bytes back to the budget.
+     * An append still running fails to write and stops the recording.
+     */
+    private synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        totalReservedBytes.addAndGet(-reservedBytes);
+        reservedBytes = 0;
+        try {
+            // null while a concurrent constructor is opening it
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            logger.warn(String.format("Error closing %s: %s", path, e));
+        }
+    }
+
+    /**
+     * @return bytes of /tmp taken by the recordings not deleted yet
+     */
+    public static long getReservedBytes() {
+        return totalReservedBytes.get();
+    }
+
+    /**
+     * Deletes a recording and gives its bytes back to the budget, it is closed first if it is still open
+     *
+     * @param path
+     */
+    public static void delete(Path path) {
+        RecordingFile recording = recordings.remove(path);
+        if (recording != null) {
+            recording.release();
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn(String.format("Error deleting %s: %s", path, e));
+        }
+    }
+
+    /**
+     * Deletes the recordings of the contact that its call has not deleted, e.g. because it failed before uploading them.
+     * A contact is transcribed by one call at a time, so none of them is written once its call has returned.
+     *
+     * @param contactId
+     */
+    public static void deleteAll(String contactId) {
+        for (Path path : recordings.keySet()) {
+            if (path.getFileName().toString().startsWith(contactId + "_")) {
+                logger.warn(String.format("Deleting %s left over by the call of %s", path, contactId));
+                delete(path);
+            }
+        }
+    }
+
+    /**
+     * Deletes the recordings in the directory that this process has not created, left over by earlier calls
+     *
+     * @param directory
+     */
+    public static void deleteLeftovers(Path directory) {
+        long deletedBytes = 0;
+        int deletedFiles = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (!isRecording(file) || recordings.containsKey(file)) {
+                    continue;
+                }
+                try {
+                    long bytes = Files.size(file);
+                    Files.delete(file);
+                    deletedBytes += bytes;
+                    deletedFiles++;
+                } catch (IOException e) {
+                    logger.warn(String.format("Error deleting %s: %s", file, e));
+                }
+            }
+        } catch (IOException e) {
+            logger.warn(String.format("Error listing %s: %s", directory, e));
+        }
+        if (deletedFiles > 0) {
+            logger.info(String.format("Deleted %d recording(s) of %d bytes left over in %s", deletedFiles, deletedBytes, directory));
+        }
+    }
+
+    /**
+     * @param file
+     * @return true if the file is named as a recording of a track or of both, contactId_date_track[_partN].extension,
+     * or as a saved GetMedia stream
+     */
+    private static boolean isRecording(Path file) {
+        String name = file.getFileName().toString();
+        boolean recordingExtension = false;
+        for (String extension : RECORDING_EXTENSIONS) {
+            recordingExtension |= name.endsWith(extension);
+        }
+        if (!recordingExtension || !Files.isRegularFile(file)) {
+            return false;
+        }
+        for (KVSUtils.TrackName trackName : KVSUtils.TrackName.values()) {
+            if (name.contains("_" + trackName.getName())) {
+                return true;
+            }
+        }
+        return name.contains("_" + StereoRecorder.NAME) || name.contains("_" + TeeInputStream.NAME);
+    }
+}
@@ -0,0 +1,100 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Recording file of a track, or of both tracks in stereo, written while the call is running so that it is ready
+ * to upload when the stream ends. The audio is 16 bit PCM at 8 kHz, mono or with interleaved channels, encoded in
+ * the format of the sink chunk by chunk.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public interface RecordingSink extends Closeable {
+
+    /**
+     * Formats of the recordings, with the file extension and the content type of the S3 object.
+     * WAV and FLAC hold the length of the audio in their header, which is rewritten on close.
+     */
+    enum Format {
+        WAV("wav", "audio/wav", true),
+        FLAC("flac", "audio/flac", true),
+        OPUS("opus", "audio/ogg", false);
+
+        private final String extension;
+        private final String contentType;
+        private final boolean headerRewritten;
+
+        Format(String extension, String contentType, boolean headerRewritten) {
+            this.extension = extension;
+            this.contentType = contentType;
+            this.headerRewritten = headerRewritten;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return true if the start of the file is written again on close, false if the file is only appended to
+         */
+        public boolean isHeaderRewritten() {
+            return headerRewritten;
+        }
+    }
+
+    Path getPath();
+
+    /**
+     * @return number of PCM bytes written so far
+     */
+    long getDataBytes();
+
+    /**
+     * @return bytes written to the file so far, which can be read from it. They are not changed any more except the header on close
+     */
+    long getFileBytes();
+
+    /**
+     * Appends PCM audio to the recording
+     *
+     * @param pcm little-endian 16 bit PCM with interleaved channels, read from its position to its limit
+     * @throws IOException
+     */
+    void write(ByteBuffer pcm) throws IOException;
+
+    /**
+     * Writes the end of the recording and closes the file. Does nothing if it is already closed.
+     *
+     * @throws IOException
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,227 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import io.perfmark.PerfMark;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Uploads a recording to S3 with a multipart upload while it is being written, so that little is left to upload
+ * when the call ends. Each part is uploaded in the background from the file as soon as the recording has grown
+ * past it. The multipart upload is only started once a part is ready, shorter recordings are left to a single
+ * putObject as before.
+ *
+ * S3 requires every part but the last one to be of at least 5 MB. The header of WAV and FLAC recordings is
+ * rewritten on close, so their first part is uploaded with the last one. Ogg Opus recordings are only appended to,
+ * and only the last part is left for the end of the call.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class RecordingUploader {
+
+    private static final Logger logger = LoggerFactory.getLogger(RecordingUploader.class);
+
+    // minimum size of the parts but the last one
+    public static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+
+    private final AmazonS3 s3Client;
+    private final String bucketName;
+    private final String objectKey;
+    private final String contentType;
+    private final String contactId;
+    private final boolean publicReadAcl;
+    private final File file;
+    private final boolean headerRewritten;
+    private final long partSize;
+    private final ExecutorService executor;
+
+    // null until the first part is ready
+    private CompletableFuture<String> uploadId = null;
+    private final List<CompletableFuture<PartETag>> parts = new ArrayList<CompletableFuture<PartETag>>();
+    // next part to upload, the file is uploaded up to the start of this part
+    private int nextPart = 1;
+    // set once the multipart upload has been completed or aborted
+    private boolean finished = false;
+
+    /**
+     * @param s3Client
+     * @param bucketName
+     * @param keyPrefix
+     * @param file            recording file, written by a {@link RecordingSink}
+     * @param format          format of the recording, its header may be rewritten on close
+     * @param contactId
+     * @param publicReadAcl
+     * @param partSize        size of the parts uploaded during the call, at least {@link #MIN_PART_SIZE}
+     * @param executor        runs the uploads of the parts
+     */
+    public RecordingUploader(AmazonS3 s3Client, String bucketName, String keyPrefix, File file, RecordingSink.Format format,
+                             String contactId, boolean publicReadAcl, long partSize, ExecutorService executor) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.objectKey = keyPrefix + file.getName();
+        this.contentType = format.getContentType();
+        this.contactId = contactId;
+        this.publicReadAcl = publicReadAcl;
+        this.file = file;
+        this.headerRewritten = format.isHeaderRewritten();
+        this.partSize = Math.max(MIN_PART_SIZE, partSize);
+        this.executor = executor;
+    }
+
+    /**
+     * Starts the upload of the parts the file has grown past. Called after each write to the recording.
+     *
+     * @param fileBytes size of the file
+     */
+    public synchronized void appended(long fileBytes) {
+        while (fileBytes >= nextPart * partSize) {
+            // the first part holds the header, which may still change
+            if (nextPart > 1 || !headerRewritten) {
+                uploadPart(nextPart, (nextPart - 1) * partSize, partSize);
+            }
+            nextPart++;
+        }
+    }
+
+    /**
+     * Uploads the rest of the closed file and completes the multipart upload.
+     * The upload is aborted if a part or the completion fails.
+     *
+     * @param fileBytes size of the closed file
+     * @return true if the recording has been uploaded, false if no part was uploaded during the call or if the
+     * upload failed, and the file must be uploaded as a whole
+     */
+    public boolean complete(long fileBytes) {
+        int earlyParts;
+        synchronized (this) {
+            if (uploadId == null) {
+                return false;
+            }
+            earlyParts = parts.size();
+            if (headerRewritten) {
+                uploadPart(1, 0, partSize);
+            }
+            long offset = (nextPart - 1) * partSize;
+            if (fileBytes > offset) {
+                uploadPart(nextPart, offset, fileBytes - offset);
+            }
+        }
+
+        try {
+            List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+            for (CompletableFuture<PartETag> part : parts) {
+                partETags.add(part.join());
+            }
+            partETags.sort(Comparator.comparingInt(PartETag::getPartNumber));
+            CompleteMultipartUploadResult result = s3Client.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucketName, objectKey, uploadId.join(), partETags));
+            logger.info(String.format("Multipart upload to %s/%s completed %s: %d part(s), %d uploaded during the call",
+                    bucketName, objectKey, result.getETag(), partETags.size(), earlyParts));
+            synchronized (this) {
+                finished = true;
+            }
+            return true;
+        } catch (CompletionException | SdkClientException e) {
+            logger.error(String.format("Multipart upload to %s/%s failed: ", bucketName, objectKey), e);
+            abort();
+            return false;
+        }
+    }
+
+    /**
+     * Aborts the multipart upload once its parts are done, so that S3 does not keep them.
+     * Does nothing if no part has been uploaded, or if the upload has already been completed or aborted.
+     */
+    public void abort() {
+        CompletableFuture<String> upload;
+        CompletableFuture<?> pending;
+        synchronized (this) {
+            if (uploadId == null || finished) {
+                return;
+            }
+            finished = true;
+            upload = uploadId;
+            pending = CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]));
+        }
+        try {
+            pending.handle((result, e) -> null).join();
+            s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, objectKey, upload.join()));
+            logger.info(String.format("Multipart upload to %s/%s aborted", bucketName, objectKey));
+        } catch (CompletionException | SdkClientException e) {
+            logger.warn(String.format("Error aborting the multipart upload to %s/%s: %s", bucketName, objectKey, e));
+        }
+    }
+
+    private void uploadPart(int partNumber, long offset, long size) {
+        if (uploadId == null) {
+            uploadId = CompletableFuture.supplyAsync(this::initiate, executor);
+        }
+        parts.add(uploadId.thenApplyAsync(id -> {
+            PerfMark.startTask("RecordingUploader.uploadPart", PerfMark.createTag(contactId));
+            try {
+                return s3Client.uploadPart(new UploadPartRequest()
+                        .withBucketName(bucketName)
+                        .withKey(objectKey)
+                        .withUploadId(id)
+                        .withPartNumber(partNumber)
+                        .withFile(file)
+                        .withFileOffset(offset)
+                        .withPartSize(size)).getPartETag();
+            } finally {
+                PerfMark.stopTask("RecordingUploader.uploadPart");
+            }
+        }, executor));
+    }
+
+    private String initiate() {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(contentType);
+        metadata.addUserMetadata("contact-id", contactId);
+        InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(bucketName, objectKey, metadata);
+        if (publicReadAcl) {
+            request.setCannedACL(CannedAccessControlList.PublicRead);
+        }
+        String id = s3Client.initiateMultipartUpload(request).getUploadId();
+        logger.info(String.format("Uploading %s: to %s/%s in parts of %d bytes from %s", contentType, bucketName, objectKey,
+                partSize, file));
+        return id;
+    }
+}
@@ -0,0 +1,91 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces frames read from a recorded MKV file, so that the pipeline sees them at real time or N times real time.
+ * The position of each track is computed from the amount of PCM read, and the reader waits until the wall clock
+ * catches up with the track that is furthest ahead.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class ReplayPacer {
+
+    private final double speed;
+    private final int bytesPerMillisecond;
+    private final Map<String, long[]> trackBytes = new HashMap<String, long[]>();
+    private long startNanos = -1;
+    private long aheadMillis = 0;
+
+    /**
+     * @param speed               1 for real time, 2 for twice as fast, 0 or less to read as fast as possible
+     * @param bytesPerMillisecond size of one millisecond of audio of a track
+     */
+    public ReplayPacer(double speed, int bytesPerMillisecond) {
+        this.speed = speed;
+        this.bytesPerMillisecond = bytesPerMillisecond;
+    }
+
+    public boolean isPaced() {
+        return speed > 0;
+    }
+
+    /**
+     * @return audio duration read so far, of the track that is furthest ahead
+     */
+    public long getAudioMillis() {
+        return aheadMillis;
+    }
+
+    /**
+     * Accounts a frame of the track and waits until it is due
+     *
+     * @param trackName
+     * @param frameBytes
+     * @throws InterruptedException
+     */
+    public void pace(String trackName, int frameBytes) throws InterruptedException {
+        if (startNanos < 0) {
+            startNanos = System.nanoTime();
+        }
+        long[] bytes = trackBytes.get(trackName);
+        if (bytes == null) {
+            bytes = new long[1];
+            trackBytes.put(trackName, bytes);
+        }
+        bytes[0] += frameBytes;
+        aheadMillis = Math.max(aheadMillis, bytes[0] / bytesPerMillisecond);
+
+        if (!isPaced()) {
+            return;
+        }
+        long dueNanos = startNanos + (long) (TimeUnit.MILLISECONDS.toNanos(aheadMillis) / speed);
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
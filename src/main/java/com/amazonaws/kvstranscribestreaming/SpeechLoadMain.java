@@ -0,0 +1,162 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.amazonaws.util.StringUtils.isNullOrEmpty;
+
+/**
+ * Load and soak test of the consumer: replays a saved GetMedia stream as many contacts at the same time, each with its
+ * own Google STT streams to a {@link LocalSpeechServer} over gRPC, and its segments written to a {@link LocalDynamoDB}.
+ * Reports the calls that succeeded, the audio handled per second of wall time, and the heap left after GC per call.
+ * The latency of the results is the SpeechResultLatency metric, printed with its P99 and Max with METRICS_MODE=EMF.
+ *
+ * The speech server runs in the same JVM unless SPEECH_ENDPOINT is set, e.g. to a LocalSpeechServer in a JVM of its
+ * own so that the heap measured is the consumer's alone. The contacts are started LOAD_RAMP_MS apart.
+ * The environment variables of the Lambda are read as usual, REGION, LIMITDAY_OF_TTL and TRANSCRIPT_TABLE_NAME are required.
+ *
+ * Usage: SpeechLoadMain file.mkv calls [speed]
+ *   calls  number of contacts replaying the file at the same time
+ *   speed  1 for real time (default) to measure latency and memory, 0 as fast as possible to measure throughput
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class SpeechLoadMain {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpeechLoadMain.class);
+
+    private static final long HEAP_SAMPLE_INTERVAL_MILLIS = 1000;
+
+    /**
+     * @return bytes of the heap in use right after the last GC of each pool, which leaves out the garbage
+     */
+    private static long getLiveHeapBytes() {
+        long bytes = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+            if (usage != null) {
+                bytes += usage.getUsed();
+            }
+        }
+        return bytes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: SpeechLoadMain file.mkv calls [speed]");
+            System.exit(1);
+        }
+
+        String inputFileName = args[0];
+        int calls = Integer.parseInt(args[1]);
+        double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+        long rampMillis = EnvUtils.getLong("LOAD_RAMP_MS", 100);
+        String inputContactId = EnvUtils.getString("REPLAY_CONTACT_ID", KVSReplayMain.getContactId(inputFileName));
+
+        LocalSpeechServer localSpeech = null;
+        if (isNullOrEmpty(System.getenv("SPEECH_ENDPOINT"))) {
+            localSpeech = LocalSpeechServer.fromEnvironment(0).start();
+            ClientRegistry.setSpeechSettings(ClientRegistry.getSpeechSettings("localhost:" + localSpeech.getPort(), true));
+        }
+        LocalDynamoDB localDynamoDB = new LocalDynamoDB();
+        ClientRegistry.setDynamoDB(Regions.fromName(System.getenv("REGION")), new DynamoDB(localDynamoDB));
+
+        System.gc();
+        long baselineHeapBytes = getLiveHeapBytes();
+        AtomicLong maxHeapBytes = new AtomicLong(baselineHeapBytes);
+        ScheduledExecutorService heapSampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "load-heap-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heapSampler.scheduleAtFixedRate(() -> maxHeapBytes.accumulateAndGet(getLiveHeapBytes(), Math::max),
+                HEAP_SAMPLE_INTERVAL_MILLIS, HEAP_SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        KVSTranscribeStreamingLambda transcriber = new KVSTranscribeStreamingLambda();
+        ExecutorService executor = Executors.newFixedThreadPool(calls);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            TranscriptionRequest request = new TranscriptionRequest();
+            request.setInputFileName(inputFileName);
+            request.setInputContactId(inputContactId);
+            request.setReplaySpeed(speed);
+            request.setConnectContactId(String.format("%s-load-%d", inputContactId, i));
+            request.setPhoneNumber(EnvUtils.getString("REPLAY_PHONE_NUMBER", "load"));
+            request.setSaveCallRecording(false);
+            // the fixtures have both tracks
+            request.setStreamAudioToCustomer(true);
+            executor.execute(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    String result = transcriber.handleRequest(request, null);
+                    (result.contains("Success") ? succeeded : failed).incrementAndGet();
+                } catch (RuntimeException e) {
+                    logger.error("Error replaying " + request.getConnectContactId(), e);
+                    failed.incrementAndGet();
+                } finally {
+                    running.decrementAndGet();
+                }
+            });
+            if (rampMillis > 0 && i + 1 < calls) {
+                Thread.sleep(rampMillis);
+            }
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        heapSampler.shutdown();
+        KVSTranscribeStreamingLambda.metricsUtil.shutdown();
+
+        logger.info(String.format("Load of %s : %d call(s) at speed %s, %d succeeded, %d failed in %d ms, at most %d at a time",
+                inputFileName, calls, speed, succeeded.get(), failed.get(), elapsedMillis, maxRunning.get()));
+        if (localSpeech != null) {
+            logger.info("Local speech server : " + localSpeech);
+            logger.info(String.format("Throughput : %.1f seconds of audio per second", (double) localSpeech.getAudioMillis() / elapsedMillis));
+            localSpeech.close();
+        }
+        logger.info(String.format("Local DynamoDB : %d item(s) in %d BatchWriteItem call(s)",
+                localDynamoDB.getItems(System.getenv("TRANSCRIPT_TABLE_NAME")).size(), localDynamoDB.getBatchWrites()));
+        logger.info(String.format("Heap after GC : %d MB before the load, at most %d MB during it, about %d KB per call",
+                baselineHeapBytes / 1024 / 1024, maxHeapBytes.get() / 1024 / 1024,
+                (maxHeapBytes.get() - baselineHeapBytes) / 1024 / Math.max(1, maxRunning.get())));
+    }
+}
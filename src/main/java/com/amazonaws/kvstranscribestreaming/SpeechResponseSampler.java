@@ -0,0 +1,130 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import com.google.protobuf.TextFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs a sample of the full Google STT responses for diagnostics, off the gRPC callback thread.
+ * At most the configured number of responses per second is taken, and they are formatted and logged by a
+ * background thread. Nothing is taken or allocated while sampling is off, which is the default.
+ *
+ * Sampling is switched with SPEECH_RESPONSE_SAMPLES_PER_SECOND, or at runtime with {@link #setSamplesPerSecond}.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public final class SpeechResponseSampler {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpeechResponseSampler.class);
+
+    // responses waiting to be logged, further samples are dropped when the logger falls behind
+    private static final int QUEUE_CAPACITY = 64;
+
+    private static class Sample {
+        private final String trackName;
+        private final StreamingRecognizeResponse response;
+
+        private Sample(String trackName, StreamingRecognizeResponse response) {
+            this.trackName = trackName;
+            this.response = response;
+        }
+    }
+
+    private static final BlockingQueue<Sample> queue = new ArrayBlockingQueue<Sample>(QUEUE_CAPACITY);
+    private static final AtomicLong nextSampleNanos = new AtomicLong(System.nanoTime());
+    private static final AtomicLong dropped = new AtomicLong();
+
+    // 0 when sampling is off
+    private static volatile long intervalNanos = 0;
+    private static Thread writer = null;
+
+    static {
+        setSamplesPerSecond(EnvUtils.getInt("SPEECH_RESPONSE_SAMPLES_PER_SECOND", 0));
+    }
+
+    private SpeechResponseSampler() {
+    }
+
+    public static int getSamplesPerSecond() {
+        long interval = intervalNanos;
+        return interval == 0 ? 0 : (int) (1000000000L / interval);
+    }
+
+    /**
+     * @param samplesPerSecond maximum number of responses logged per second for all contacts, 0 to stop sampling
+     */
+    public static synchronized void setSamplesPerSecond(int samplesPerSecond) {
+        intervalNanos = samplesPerSecond <= 0 ? 0 : 1000000000L / samplesPerSecond;
+        if (intervalNanos > 0 && writer == null) {
+            writer = new Thread(SpeechResponseSampler::run, "speech-response-sampler");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        logger.info(String.format("Speech response sampling: %d per second", samplesPerSecond));
+    }
+
+    /**
+     * Takes the response if sampling is on and the last sample is old enough. Never blocks.
+     *
+     * @param trackName
+     * @param response
+     */
+    public static void sample(String trackName, StreamingRecognizeResponse response) {
+        long interval = intervalNanos;
+        if (interval == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long next = nextSampleNanos.get();
+        if (now - next < 0 || !nextSampleNanos.compareAndSet(next, now + interval)) {
+            return;
+        }
+        if (!queue.offer(new Sample(trackName, response))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static void run() {
+        while (true) {
+            try {
+                Sample sample = queue.take();
+                logger.info(String.format("Speech response %s : %s", sample.trackName,
+                        TextFormat.shortDebugString(sample.response)));
+                long droppedSamples = dropped.getAndSet(0);
+                if (droppedSamples > 0) {
+                    logger.info(String.format("%d speech response sample(s) dropped", droppedSamples));
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.warn("Error logging a speech response sample", e);
+            }
+        }
+    }
+}
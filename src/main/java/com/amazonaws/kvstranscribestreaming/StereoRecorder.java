@@ -0,0 +1,221 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Records both tracks of a call into one stereo file, the customer on the left and the agent on the right.
+ * The chunks of each track are placed on a common timeline by their timecodes, see {@link KVSUtils#getTimecodeMillis},
+ * so that the channels stay aligned whatever the order in which the frames of the tracks are read.
+ * A gap in the frames of a track is filled with silence, and audio overlapping what has been recorded is dropped.
+ *
+ * The samples of each channel are kept until the other channel has reached them, then written interleaved.
+ * A channel more than the maximum lag behind the other, e.g. a track that has stopped, is filled with silence.
+ * Called by the recording stage of the audio pipeline only, so it is not synchronized.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class StereoRecorder {
+
+    private static final Logger logger = LoggerFactory.getLogger(StereoRecorder.class);
+
+    // Name of the stereo recording in place of the track name
+    public static final String NAME = "STEREO";
+
+    private static final int LEFT = 0;
+    private static final int RIGHT = 1;
+
+    // A chunk closer than this to the end of its channel is appended as is, the timecodes have a millisecond resolution
+    private static final long MAX_DRIFT_MILLIS = 20;
+
+    private final RecordingSink sink;
+    private final RecordingUploader uploader;
+    private final int samplesPerMillisecond;
+    private final long maxDriftSamples;
+    private final int maxLagSamples;
+
+    // time of the first sample of the recording
+    private long originMillis = AudioChunkAssembler.NO_TIMECODE;
+    // samples written to the file for both channels
+    private long mixedSamples = 0;
+    // samples of each channel after the mixed ones
+    private final short[][] pending = new short[2][];
+    private final int[] pendingSamples = new int[2];
+    private ByteBuffer interleaved = ByteBuffer.allocate(0);
+
+    private final long[] silenceSamples = new long[2];
+    private final long[] droppedSamples = new long[2];
+
+    /**
+     * @param sink            2 channel recording
+     * @param uploader        uploads the recording during the call, or null
+     * @param sampleRate
+     * @param maxLagMillis    how far a channel may be behind the other before it is filled with silence
+     */
+    public StereoRecorder(RecordingSink sink, RecordingUploader uploader, int sampleRate, int maxLagMillis) {
+        this.sink = sink;
+        this.uploader = uploader;
+        this.samplesPerMillisecond = sampleRate / 1000;
+        this.maxDriftSamples = MAX_DRIFT_MILLIS * samplesPerMillisecond;
+        this.maxLagSamples = maxLagMillis * samplesPerMillisecond;
+        for (int channel = LEFT; channel <= RIGHT; channel++) {
+            pending[channel] = new short[2 * maxLagSamples];
+        }
+    }
+
+    public RecordingSink getSink() {
+        return sink;
+    }
+
+    public RecordingUploader getUploader() {
+        return uploader;
+    }
+
+    /**
+     * Places a chunk of a track on its channel, and writes the samples both channels have reached
+     *
+     * @param trackName      AUDIO_FROM_CUSTOMER on the left, AUDIO_TO_CUSTOMER on the right
+     * @param timecodeMillis time of the first sample of the chunk, or {@link AudioChunkAssembler#NO_TIMECODE}
+     *                       to append it to its channel
+     * @param pcm            little-endian 16 bit mono PCM, read from its position to its limit
+     * @throws IOException
+     */
+    public void write(String trackName, long timecodeMillis, ByteBuffer pcm) throws IOException {
+        int channel = KVSUtils.TrackName.AUDIO_TO_CUSTOMER.getName().equals(trackName) ? RIGHT : LEFT;
+        ByteBuffer input = pcm.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        pcm.position(pcm.limit());
+
+        if (timecodeMillis != AudioChunkAssembler.NO_TIMECODE) {
+            if (originMillis == AudioChunkAssembler.NO_TIMECODE) {
+                originMillis = timecodeMillis;
+            }
+            long start = (timecodeMillis - originMillis) * samplesPerMillisecond;
+            long end = mixedSamples + pendingSamples[channel];
+            if (start - end > maxDriftSamples) {
+                silenceSamples[channel] += start - end;
+                appendSilence(channel, start - end);
+            } else if (end - start > maxDriftSamples) {
+                int overlap = (int) Math.min(input.remaining() / 2, end - start);
+                droppedSamples[channel] += overlap;
+                input.position(input.position() + 2 * overlap);
+            }
+        }
+
+        ensureCapacity(channel, input.remaining() / 2);
+        short[] samples = pending[channel];
+        while (input.remaining() >= 2) {
+            samples[pendingSamples[channel]++] = input.getShort();
+        }
+        mix();
+    }
+
+    /**
+     * Fills the shorter channel with silence and writes the rest of both. The sink is closed by the caller.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        for (int channel = LEFT; channel <= RIGHT; channel++) {
+            int missing = pendingSamples[1 - channel] - pendingSamples[channel];
+            if (missing > 0) {
+                silenceSamples[channel] += missing;
+                ensureCapacity(channel, missing);
+                pendingSamples[channel] += missing;
+            }
+        }
+        mix();
+        logger.info(String.format("Stereo recording %s: %d ms, silence added left %d ms, right %d ms, overlap dropped left %d ms, right %d ms",
+                sink.getPath(), mixedSamples / samplesPerMillisecond,
+                silenceSamples[LEFT] / samplesPerMillisecond, silenceSamples[RIGHT] / samplesPerMillisecond,
+                droppedSamples[LEFT] / samplesPerMillisecond, droppedSamples[RIGHT] / samplesPerMillisecond));
+    }
+
+    /**
+     * Appends silence in steps of the maximum lag, writing the samples both channels reach at each step,
+     * so that a long gap does not grow the pending samples
+     */
+    private void appendSilence(int channel, long samples) throws IOException {
+        while (samples > 0) {
+            int step = (int) Math.min(samples, maxLagSamples);
+            ensureCapacity(channel, step);
+            pendingSamples[channel] += step;
+            samples -= step;
+            mix();
+        }
+    }
+
+    private void mix() throws IOException {
+        // a channel far behind the other is not coming, it is silent up to the lag
+        for (int channel = LEFT; channel <= RIGHT; channel++) {
+            int lag = pendingSamples[1 - channel] - pendingSamples[channel];
+            if (lag > maxLagSamples) {
+                silenceSamples[channel] += lag - maxLagSamples;
+                ensureCapacity(channel, lag - maxLagSamples);
+                pendingSamples[channel] += lag - maxLagSamples;
+            }
+        }
+
+        int ready = Math.min(pendingSamples[LEFT], pendingSamples[RIGHT]);
+        if (ready == 0) {
+            return;
+        }
+        if (interleaved.capacity() < ready * 4) {
+            interleaved = ByteBuffer.allocate(ready * 4).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        interleaved.clear();
+        short[] left = pending[LEFT];
+        short[] right = pending[RIGHT];
+        for (int i = 0; i < ready; i++) {
+            interleaved.putShort(left[i]);
+            interleaved.putShort(right[i]);
+        }
+        interleaved.flip();
+        sink.write(interleaved);
+        if (uploader != null) {
+            uploader.appended(sink.getFileBytes());
+        }
+
+        mixedSamples += ready;
+        for (int channel = LEFT; channel <= RIGHT; channel++) {
+            pendingSamples[channel] -= ready;
+            System.arraycopy(pending[channel], ready, pending[channel], 0, pendingSamples[channel]);
+        }
+    }
+
+    /**
+     * Makes room for more samples on the channel, the new room is silent
+     */
+    private void ensureCapacity(int channel, int samples) {
+        int needed = pendingSamples[channel] + samples;
+        if (needed > pending[channel].length) {
+            pending[channel] = Arrays.copyOf(pending[channel], Math.max(needed, pending[channel].length * 2));
+        }
+        Arrays.fill(pending[channel], pendingSamples[channel], needed, (short) 0);
+    }
+}
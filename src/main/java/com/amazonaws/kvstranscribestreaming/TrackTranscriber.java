@@ -0,0 +1,389 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import com.google.protobuf.Duration;
+import io.perfmark.PerfMark;
+import io.perfmark.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Transcribes the audio of one track of the KVS stream with its own Google Speech to Text stream.
+ * Frames of the track are joined into pooled chunks, which the audio pipeline sends to Google STT
+ * and writes to the recording file of the track.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class TrackTranscriber {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrackTranscriber.class);
+
+    // 8kHz 16bit mono PCM
+    private static final int BYTES_PER_MILLISECOND = 16;
+
+    private final KVSStreamTrackObject kvsStreamTrackObject;
+    private final TranscribedSegmentWriter segmentWriter;
+    private final String phoneNumber;
+    private final String tableName;
+    private final String audioFileLink;
+    private final int limitDayOfTTL;
+    private final AudioPipeline audioPipeline;
+    private final AudioChunkAssembler chunkAssembler;
+
+    // Guards the chunk being assembled, held by the KVS reader while it waits for room in the ring
+    private final ReentrantLock assemblyLock = new ReentrantLock();
+    // Chunk taken by an idle flush while the ring was full, published ahead of the next one
+    private ByteBuffer unpublishedChunk = null;
+    private long unpublishedTimecodeMillis;
+
+    // Shared by all tracks of the contact so that the ReplyCount of each segment stays unique
+    private final AtomicInteger replyCount;
+
+    // Interim results of the contact, or null when they are not published
+    private final LiveTranscriptWriter liveTranscriptWriter;
+
+    private final VoiceActivityDetector voiceActivityDetector;
+    private final VoiceActivityDetector.AudioSender speechSender = audio -> this.speechStream.send(audio);
+    private InfiniteSpeechStream speechStream;
+
+    // updated by the gRPC callbacks of the stream, read once it has completed
+    private int finalResults = 0;
+    private int interimResponses = 0;
+
+    private final MetricsUtil.Stat chunkAssemblyTime;
+    private final MetricsUtil.Stat resultLatency;
+    private final Tag tag;
+
+    public TrackTranscriber(KVSStreamTrackObject kvsStreamTrackObject, TranscribedSegmentWriter segmentWriter,
+                            String phoneNumber, String tableName, String audioFileLink, int limitDayOfTTL,
+                            AudioBufferPool bufferPool, AudioPipeline audioPipeline, int minChunkMillis, int maxChunkMillis, AtomicInteger replyCount,
+                            VoiceActivityDetector voiceActivityDetector, MetricsUtil metricsUtil,
+                            LiveTranscriptWriter liveTranscriptWriter) {
+        this.kvsStreamTrackObject = kvsStreamTrackObject;
+        this.segmentWriter = segmentWriter;
+        this.phoneNumber = phoneNumber;
+        this.tableName = tableName;
+        this.audioFileLink = audioFileLink;
+        this.limitDayOfTTL = limitDayOfTTL;
+        this.audioPipeline = audioPipeline;
+        this.chunkAssembler = new AudioChunkAssembler(bufferPool, BYTES_PER_MILLISECOND, minChunkMillis, maxChunkMillis);
+        this.replyCount = replyCount;
+        this.voiceActivityDetector = voiceActivityDetector;
+        this.liveTranscriptWriter = liveTranscriptWriter;
+        this.chunkAssemblyTime = metricsUtil.stat("ChunkAssemblyTime", StandardUnit.Milliseconds, segmentWriter.getContactId());
+        this.resultLatency = metricsUtil.stat("SpeechResultLatency", StandardUnit.Milliseconds, segmentWriter.getContactId());
+        this.tag = PerfMarkTracing.tag(segmentWriter.getContactId());
+    }
+
+    public KVSStreamTrackObject getKVSStreamTrackObject() {
+        return kvsStreamTrackObject;
+    }
+
+    public String getTrackName() {
+        return kvsStreamTrackObject.getTrackName();
+    }
+
+    /**
+     * @return the Google STT stream of the track, null before {@link #start}
+     */
+    public InfiniteSpeechStream getSpeechStream() {
+        return speechStream;
+    }
+
+    /**
+     * Opens the Google STT stream of this track and sends the configuration request.
+     * The stream rolls over to a new session before the streaming limit of Google STT is reached.
+     *
+     * @param streamingRecognitionConfig
+     * @param streamingLimitMillis
+     * @param rolloverWindowMillis
+     * @param maxReplayMillis
+     * @param rolloverBudgetMillis
+     * @throws IOException
+     */
+    public void start(StreamingRecognitionConfig streamingRecognitionConfig, long streamingLimitMillis,
+                      long rolloverWindowMillis, long maxReplayMillis, long rolloverBudgetMillis) throws IOException {
+
+        speechStream = new InfiniteSpeechStream(getTrackName(), streamingRecognitionConfig, this::onResponse,
+                BYTES_PER_MILLISECOND, streamingLimitMillis, rolloverWindowMillis, maxReplayMillis, rolloverBudgetMillis,
+                resultLatency);
+        speechStream.start();
+    }
+
+    /**
+     * Handles a response of the current session of the Google STT stream.
+     * Responses of a session that has been rolled over are never passed here, so each final segment is written once.
+     * Called on the gRPC thread for every response, interim ones included, so nothing is formatted or logged here
+     * except for a sample of the responses, see {@link SpeechResponseSampler}.
+     *
+     * @param response
+     * @param sessionStartMillis
+     */
+    private void onResponse(StreamingRecognizeResponse response, long sessionStartMillis) {
+        SpeechResponseSampler.sample(getTrackName(), response);
+
+        boolean interim = false;
+        for (int i = 0; i < response.getResultsCount(); i++) {
+            StreamingRecognitionResult result = response.getResults(i);
+            if (result.getAlternativesCount() == 0) {
+                continue;
+            }
+            if (result.getIsFinal()) {
+                commit(result, bestAlternative(result), sessionStartMillis);
+            } else {
+                interim = true;
+            }
+        }
+        if (interim) {
+            interimResponses++;
+            if (liveTranscriptWriter != null) {
+                publishInterim(response);
+            }
+        }
+    }
+
+    /**
+     * Writes a final result as the next segment of the contact
+     *
+     * @param result
+     * @param alternative
+     * @param sessionStartMillis
+     */
+    private void commit(StreamingRecognitionResult result, SpeechRecognitionAlternative alternative, long sessionStartMillis) {
+        String transcript_segment = alternative.getTranscript();
+        finalResults++;
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Segment %s end %d ms, confidence %f : %s", getTrackName(),
+                    sessionStartMillis + toMillis(result.getResultEndTime()), alternative.getConfidence(), transcript_segment));
+        }
+
+        PerfMark.attachTag(tag);
+        int count = replyCount.getAndIncrement();
+        segmentWriter.writeToDynamoDB(transcript_segment, phoneNumber, tableName, count, audioFileLink, limitDayOfTTL);
+        if (liveTranscriptWriter != null) {
+            liveTranscriptWriter.commit(getTrackName(), transcript_segment, count);
+        }
+    }
+
+    /**
+     * @param result with at least one alternative
+     * @return the alternative with the highest confidence, the first one of equal confidences
+     */
+    private static SpeechRecognitionAlternative bestAlternative(StreamingRecognitionResult result) {
+        SpeechRecognitionAlternative best = result.getAlternatives(0);
+        for (int i = 1; i < result.getAlternativesCount(); i++) {
+            if (result.getAlternatives(i).getConfidence() > best.getConfidence()) {
+                best = result.getAlternatives(i);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Publishes the interim results of a response as the live transcript of the track, the first and most stable
+     * one followed by the others. The transcript of a single result, the usual case, is passed as is.
+     *
+     * @param response
+     */
+    private void publishInterim(StreamingRecognizeResponse response) {
+        StreamingRecognitionResult first = null;
+        StringBuilder transcript = null;
+        for (int i = 0; i < response.getResultsCount(); i++) {
+            StreamingRecognitionResult result = response.getResults(i);
+            if (result.getIsFinal() || result.getAlternativesCount() == 0) {
+                continue;
+            }
+            if (first == null) {
+                first = result;
+            } else {
+                if (transcript == null) {
+                    transcript = new StringBuilder(first.getAlternatives(0).getTranscript());
+                }
+                transcript.append(result.getAlternatives(0).getTranscript());
+            }
+        }
+        liveTranscriptWriter.interim(getTrackName(),
+                transcript == null ? first.getAlternatives(0).getTranscript() : transcript.toString(), first.getStability());
+    }
+
+    /**
+     * Adds a frame of this track. Once the frames collected reach the target duration they are sent as one chunk,
+     * and a frame that does not follow them in time starts a new chunk.
+     * Guarded against {@link #flushIfIdle}, which is called from another thread.
+     *
+     * @param frameData
+     * @param timecodeMillis time of the frame, see {@link KVSUtils#getTimecodeMillis}
+     * @throws InterruptedException
+     */
+    public void addFrame(ByteBuffer frameData, long timecodeMillis) throws InterruptedException {
+        assemblyLock.lock();
+        try {
+            if (!chunkAssembler.continues(timecodeMillis)) {
+                flush();
+            }
+            if (chunkAssembler.append(frameData, timecodeMillis)) {
+                flush();
+            }
+        } finally {
+            assemblyLock.unlock();
+        }
+    }
+
+    /**
+     * Publishes the collected frames as one chunk to the audio pipeline, blocking while the ring is full
+     *
+     * @throws InterruptedException
+     */
+    public void flush() throws InterruptedException {
+
+        assemblyLock.lock();
+        PerfMark.startTask("TrackTranscriber.flush", tag);
+        try {
+            publishUnpublished();
+            if (takeChunk()) {
+                publishUnpublished();
+            }
+        } finally {
+            PerfMark.stopTask("TrackTranscriber.flush", tag);
+            assemblyLock.unlock();
+        }
+    }
+
+    /**
+     * Publishes the collected frames early when no frame has arrived for a while, so that the end of an
+     * utterance does not wait for the next frames of KVS.
+     * Runs on the scheduler shared by all calls, so it never waits: a track the reader is busy with is not idle,
+     * and a chunk the ring has no room for is published by the next call or the next flush.
+     *
+     * @param idleMillis
+     */
+    public void flushIfIdle(long idleMillis) {
+        if (!assemblyLock.tryLock()) {
+            return;
+        }
+        try {
+            if (unpublishedChunk == null) {
+                if (!chunkAssembler.isPending()
+                        || System.nanoTime() - chunkAssembler.getLastAppendNanos() < TimeUnit.MILLISECONDS.toNanos(idleMillis)) {
+                    return;
+                }
+                takeChunk();
+            }
+            if (unpublishedChunk != null && audioPipeline.tryPublish(this, unpublishedChunk, unpublishedTimecodeMillis)) {
+                unpublishedChunk = null;
+            }
+        } finally {
+            assemblyLock.unlock();
+        }
+    }
+
+    /**
+     * Takes the collected frames as the unpublished chunk, which must have been published before
+     *
+     * @return false if no frame has been collected
+     */
+    private boolean takeChunk() {
+        long firstAppendNanos = chunkAssembler.getFirstAppendNanos();
+        long timecodeMillis = chunkAssembler.getTimecodeMillis();
+        ByteBuffer chunk = chunkAssembler.take(audioPipeline.isBacklogged());
+        if (chunk == null) {
+            return false;
+        }
+        chunkAssemblyTime.recordSince(firstAppendNanos);
+        unpublishedChunk = chunk;
+        unpublishedTimecodeMillis = timecodeMillis;
+        return true;
+    }
+
+    private void publishUnpublished() throws InterruptedException {
+        if (unpublishedChunk != null) {
+            audioPipeline.publish(this, unpublishedChunk, unpublishedTimecodeMillis);
+            unpublishedChunk = null;
+        }
+    }
+
+    /**
+     * Sends the voiced parts of a chunk to Google STT. Called by the STT stage of the audio pipeline.
+     *
+     * @param chunk
+     * @throws IOException
+     */
+    public void send(ByteBuffer chunk) throws IOException {
+        voiceActivityDetector.process(chunk, speechSender);
+    }
+
+    /**
+     * Writes a chunk to the recording file, and starts the upload of the parts it completes.
+     * With a stereo recording the chunk is placed on the channel of the track at its timecode.
+     * Called by the recording stage of the audio pipeline.
+     *
+     * @param chunk
+     * @param timecodeMillis time of the first sample of the chunk
+     * @throws IOException
+     */
+    public void record(ByteBuffer chunk, long timecodeMillis) throws IOException {
+        StereoRecorder stereoRecorder = kvsStreamTrackObject.getStereoRecorder();
+        if (stereoRecorder != null) {
+            stereoRecorder.write(kvsStreamTrackObject.getTrackName(), timecodeMillis, chunk);
+            return;
+        }
+        RecordingSink recordingSink = kvsStreamTrackObject.getRecordingSink();
+        recordingSink.write(chunk);
+        if (kvsStreamTrackObject.getRecordingUploader() != null) {
+            kvsStreamTrackObject.getRecordingUploader().appended(recordingSink.getFileBytes());
+        }
+    }
+
+    /**
+     * Closes the Google STT stream and waits for the last responses.
+     * The remaining frames must have been flushed and the audio pipeline drained before.
+     *
+     * @param timeoutMillis
+     * @throws InterruptedException
+     */
+    public void finish(long timeoutMillis) throws InterruptedException {
+        speechStream.finish(timeoutMillis);
+        logger.info(String.format("Chunks %s : %d chunk(s) for %d ms of audio", getTrackName(),
+                chunkAssembler.getChunks(), chunkAssembler.getChunkedMillis()));
+        logger.info(String.format("VAD %s : voiced %d ms, skipped %d ms, %d keep-alive frame(s)", getTrackName(),
+                voiceActivityDetector.getVoicedMillis(), voiceActivityDetector.getSkippedMillis(),
+                voiceActivityDetector.getKeepAliveFrames()));
+        logger.info(String.format("Results %s : %d final result(s), %d interim response(s)", getTrackName(),
+                finalResults, interimResponses));
+    }
+
+    private static long toMillis(Duration duration) {
+        return duration.getSeconds() * 1000 + duration.getNanos() / 1000000;
+    }
+}
@@ -1,7 +1,7 @@
 package com.amazonaws.kvstranscribestreaming;
 
-import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import io.perfmark.PerfMark;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,13 +41,15 @@ import java.time.format.DateTimeFormatter;
 public class TranscribedSegmentWriter {
 
     private String contactId;
-    private DynamoDB ddbClient;
+    private String trackName;
+    private DynamoDBBatchWriter batchWriter;
     private static final Logger logger = LoggerFactory.getLogger(TranscribedSegmentWriter.class);
 
-    public TranscribedSegmentWriter(String contactId, DynamoDB ddbClient) {
+    public TranscribedSegmentWriter(String contactId, String trackName, DynamoDBBatchWriter batchWriter) {
 
         this.contactId = Validate.notNull(contactId);
-        this.ddbClient = Validate.notNull(ddbClient);
+        this.trackName = Validate.notNull(trackName);
+        this.batchWriter = Validate.notNull(batchWriter);
     }
 
     public String getContactId() {
@@ -55,30 +57,43 @@ public class TranscribedSegmentWriter {
         return this.contactId;
     }
 
-    public DynamoDB getDdbClient() {
+    public String getTrackName() {
 
-        return this.ddbClient;
+        return this.trackName;
     }
 
+    public DynamoDBBatchWriter getBatchWriter() {
+
+        return this.batchWriter;
+    }
+
+    /**
+     * Queues the segment to be written by the {@link DynamoDBBatchWriter}, so the caller is not blocked by DynamoDB
+     */
     public void writeToDynamoDB(String transcript_segment, String phoneNumber, String tableName, int count, String audioFileLink, int limitDayOfTTL) {
 
-        logger.info(String.format("writing to \"%s\"", tableName));
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("writing to \"%s\"", tableName));
+        }
 
         if (!transcript_segment.equals("")) {
+            PerfMark.startTask("TranscribedSegmentWriter.writeToDynamoDB", trackName);
             try {
                 Item ddbItem = toDynamoDbItem(transcript_segment, phoneNumber, count, audioFileLink,limitDayOfTTL);
                 if (ddbItem != null) {
-                    this.getDdbClient().getTable(tableName).putItem(ddbItem);
+                    this.getBatchWriter().write(tableName, ddbItem);
                 }
-                logger.info("write to dynamo success!");
 
             } catch (Exception e) {
-                logger.error("Exception while writing to DDB: ", e);
+                logger.error("Exception while queueing write to DDB: ", e);
+            } finally {
+                PerfMark.stopTask("TranscribedSegmentWriter.writeToDynamoDB", trackName);
             }
         }
     }
 
-    private Item toDynamoDbItem(String transcript_segment, String phoneNumber, int replyCount, String audioFileLink, int limitDayOfTTL) {
+    // package-private for the benchmarks
+    Item toDynamoDbItem(String transcript_segment, String phoneNumber, int replyCount, String audioFileLink, int limitDayOfTTL) {
 
         String contactId = this.getContactId();
         Item ddbItem = null;
@@ -93,6 +108,7 @@ public class TranscribedSegmentWriter {
         ddbItem = new Item()
                 .withKeyComponent("ContactId", contactId)
                 .withKeyComponent("ReplyCount", replyCount)
+                .withString("Track", this.getTrackName())
                 .withString("Transcript", transcript_segment)
                 .withString("PhoneNumber", phoneNumber)
                 .withString("AudioFileLink", audioFileLink)
@@ -32,11 +32,17 @@ public class TranscriptionRequest {
 
     String streamARN = null;
     String inputFileName = null;
+    String inputContactId = null;
     String startFragmentNum = null;
     String connectContactId = null;
     Optional<Boolean> saveCallRecording = Optional.empty();
+    Optional<Boolean> streamAudioFromCustomer = Optional.empty();
+    Optional<Boolean> streamAudioToCustomer = Optional.empty();
     String phoneNumber = null;
+    double replaySpeed = 1.0;
     int replyCount = -1;
+    int recordingPart = 0;
+    String startSelectorType = null;
 
     public String getStreamARN() {
 
@@ -58,6 +64,33 @@ public class TranscriptionRequest {
         this.inputFileName = inputFileName;
     }
 
+    public String getInputContactId() {
+
+        return this.inputContactId;
+    }
+
+    /**
+     * @param inputContactId contact ID in the tags of inputFileName when it is replayed as another contact,
+     *                       e.g. to replay one saved stream as many contacts at the same time
+     */
+    public void setInputContactId(String inputContactId) {
+
+        this.inputContactId = inputContactId;
+    }
+
+    public double getReplaySpeed() {
+
+        return this.replaySpeed;
+    }
+
+    /**
+     * @param replaySpeed speed at which inputFileName is replayed, 1 for real time, 0 to read as fast as possible
+     */
+    public void setReplaySpeed(double replaySpeed) {
+
+        this.replaySpeed = replaySpeed;
+    }
+
     public String getStartFragmentNum() {
 
         return this.startFragmentNum;
@@ -68,6 +101,45 @@ public class TranscriptionRequest {
         this.startFragmentNum = startFragmentNum;
     }
 
+    /**
+     * @return the StartSelectorType of GetMedia, or null to use the one of the environment
+     */
+    public String getStartSelectorType() {
+
+        return this.startSelectorType;
+    }
+
+    public void setStartSelectorType(String startSelectorType) {
+
+        this.startSelectorType = startSelectorType;
+    }
+
+    /**
+     * @return number of the first transcript written, or -1 to start from 1
+     */
+    public int getReplyCount() {
+
+        return this.replyCount;
+    }
+
+    public void setReplyCount(int replyCount) {
+
+        this.replyCount = replyCount;
+    }
+
+    /**
+     * @return 0 for the first invocation of the contact, then the number of the continuation
+     */
+    public int getRecordingPart() {
+
+        return this.recordingPart;
+    }
+
+    public void setRecordingPart(int recordingPart) {
+
+        this.recordingPart = recordingPart;
+    }
+
     public String getConnectContactId() {
 
         return this.connectContactId;
@@ -92,6 +164,27 @@ public class TranscriptionRequest {
         return (saveCallRecording.isPresent() ? saveCallRecording.get() : false);
     }
 
+    public void setStreamAudioFromCustomer(boolean shouldStreamAudioFromCustomer) {
+
+        streamAudioFromCustomer = Optional.of(shouldStreamAudioFromCustomer);
+    }
+
+    public boolean isStreamAudioFromCustomerEnabled() {
+
+        return (streamAudioFromCustomer.isPresent() ? streamAudioFromCustomer.get() : true);
+    }
+
+    public void setStreamAudioToCustomer(boolean shouldStreamAudioToCustomer) {
+
+        streamAudioToCustomer = Optional.of(shouldStreamAudioToCustomer);
+    }
+
+    public boolean isStreamAudioToCustomerEnabled() {
+
+        // only the customer is transcribed unless the agent is requested, as before both tracks were supported
+        return (streamAudioToCustomer.isPresent() ? streamAudioToCustomer.get() : false);
+    }
+
     public String getPhoneNumber() {
 
         return this.phoneNumber;
@@ -102,10 +195,34 @@ public class TranscriptionRequest {
         this.phoneNumber = phoneNumber;
     }
 
+    /**
+     * Builds the request of the invocation that continues this one after the given fragment
+     *
+     * @param fragmentNumber last fragment read by this invocation
+     * @param nextReplyCount number of the next transcript
+     * @return
+     */
+    public TranscriptionRequest continueAfter(String fragmentNumber, int nextReplyCount) {
+
+        TranscriptionRequest continuation = new TranscriptionRequest();
+        continuation.streamARN = this.streamARN;
+        continuation.connectContactId = this.connectContactId;
+        continuation.saveCallRecording = this.saveCallRecording;
+        continuation.streamAudioFromCustomer = this.streamAudioFromCustomer;
+        continuation.streamAudioToCustomer = this.streamAudioToCustomer;
+        continuation.phoneNumber = this.phoneNumber;
+        continuation.startFragmentNum = fragmentNumber;
+        continuation.startSelectorType = "FRAGMENT_NUMBER";
+        continuation.replyCount = nextReplyCount;
+        continuation.recordingPart = this.recordingPart + 1;
+        return continuation;
+    }
+
     public String toString() {
 
-        return String.format("streamARN=%s, startFragmentNum=%s, connectContactId=%s, saveCallRecording=%s, customerPhoneNumber=%s",
-                getStreamARN(), getStartFragmentNum(), getConnectContactId(), isSaveCallRecordingEnabled(),getPhoneNumber());
+        return String.format("streamARN=%s, inputFileName=%s, startFragmentNum=%s, startSelectorType=%s, connectContactId=%s, saveCallRecording=%s, streamAudioFromCustomer=%s, streamAudioToCustomer=%s, customerPhoneNumber=%s, replyCount=%d, recordingPart=%d",
+                getStreamARN(), getInputFileName(), getStartFragmentNum(), getStartSelectorType(), getConnectContactId(), isSaveCallRecordingEnabled(),
+                isStreamAudioFromCustomerEnabled(), isStreamAudioToCustomerEnabled(), getPhoneNumber(), getReplyCount(), getRecordingPart());
     }
 
 }
@@ -0,0 +1,295 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.amazonaws.util.StringUtils.isNullOrEmpty;
+
+/**
+ * Long-running service that transcribes many contacts in one JVM, instead of one Lambda invocation per contact.
+ * Requests are taken from a bounded local queue, fed by {@link #submit} or by POSTing the JSON of a
+ * {@link TranscriptionRequest} to /transcriptions, and each contact runs the same code as the Lambda on its own thread.
+ * The Google STT channel and the AWS clients are shared by all contacts through {@link ClientRegistry}.
+ *
+ * Usage: TranscriptionService, configured with the environment variables of the Lambda and
+ *   SERVICE_PORT            port of the HTTP endpoint (8080)
+ *   SERVICE_MAX_CALLS       contacts transcribed at the same time (200)
+ *   SERVICE_QUEUE_CAPACITY  contacts waiting for a free slot (1000)
+ *   SCHEDULER_THREADS       threads flushing idle chunks and saving checkpoints of all contacts (1 per 25 calls)
+ *
+ * The contacts are not lightweight tasks: each one takes 5 threads, the one running it, the read-ahead of GetMedia,
+ * the STT and recording stages of its audio pipeline and its DynamoDB batch writer. SERVICE_MAX_CALLS=200 runs about
+ * 1000 threads, the container must allow them and the memory of their stacks.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class TranscriptionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(TranscriptionService.class);
+
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = EnvUtils.getLong("SERVICE_SHUTDOWN_TIMEOUT_MS", 30000);
+
+    // Contacts served by each thread of the shared scheduler, unless SCHEDULER_THREADS is set
+    private static final int CALLS_PER_SCHEDULER_THREAD = 25;
+
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final KVSTranscribeStreamingLambda transcriber = new KVSTranscribeStreamingLambda();
+    private final ThreadPoolExecutor executor;
+
+    // contacts queued or running, a contact is only transcribed once at a time
+    private final ConcurrentMap<String, TranscriptionRequest> contacts = new ConcurrentHashMap<String, TranscriptionRequest>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private HttpServer httpServer = null;
+    private ExecutorService httpExecutor = null;
+
+    /**
+     * @param maxCalls contacts transcribed at the same time
+     * @param queueCapacity contacts waiting for a free slot
+     */
+    public TranscriptionService(int maxCalls, int queueCapacity) {
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(maxCalls, maxCalls, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity), r -> {
+                    Thread thread = new Thread(r, "call-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+        KVSTranscribeStreamingLambda.setSchedulerThreads(
+                EnvUtils.getInt("SCHEDULER_THREADS", Math.max(1, maxCalls / CALLS_PER_SCHEDULER_THREAD)));
+    }
+
+    /**
+     * Queues a contact to be transcribed
+     *
+     * @param request
+     * @return false if the contact is already queued or running
+     * @throws RejectedExecutionException if the queue is full or the service is shutting down
+     */
+    public boolean submit(TranscriptionRequest request) {
+        String contactId = request.getConnectContactId();
+        if (isNullOrEmpty(contactId)) {
+            throw new IllegalArgumentException("connectContactId is required");
+        }
+        if (contacts.putIfAbsent(contactId, request) != null) {
+            logger.info(String.format("Contact %s is already being transcribed", contactId));
+            return false;
+        }
+        try {
+            executor.execute(() -> transcribe(request));
+        } catch (RejectedExecutionException e) {
+            contacts.remove(contactId, request);
+            throw e;
+        }
+        return true;
+    }
+
+    private void transcribe(TranscriptionRequest request) {
+        Thread thread = Thread.currentThread();
+        String threadName = thread.getName();
+        thread.setName(threadName + "-" + request.getConnectContactId());
+        running.incrementAndGet();
+        try {
+            String result = transcriber.handleRequest(request, null);
+            if (result.contains("Success")) {
+                succeeded.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            logger.error(String.format("Transcription of %s failed: ", request.getConnectContactId()), e);
+            failed.incrementAndGet();
+        } finally {
+            running.decrementAndGet();
+            contacts.remove(request.getConnectContactId(), request);
+            thread.setName(threadName);
+        }
+    }
+
+    /**
+     * Starts the HTTP endpoint.
+     * POST /transcriptions queues a contact and answers 202, 409 if it is already queued or running, 503 if the queue is full.
+     * GET /status answers the counters of the service.
+     * POST /perfmark?enabled=true|false switches PerfMark tracing, a trace is then written to /tmp after each contact.
+     * POST /responses?samplesPerSecond=N logs up to N full Google STT responses per second, 0 to stop.
+     *
+     * @param port
+     * @throws IOException
+     */
+    public void startHttpServer(int port) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        httpServer.createContext("/transcriptions", this::handleTranscription);
+        httpServer.createContext("/status", this::handleStatus);
+        httpServer.createContext("/perfmark", this::handlePerfMark);
+        httpServer.createContext("/responses", this::handleResponseSampling);
+        // requests are only parsed and queued, a couple of threads are enough
+        httpExecutor = Executors.newFixedThreadPool(2, r -> {
+            Thread thread = new Thread(r, "service-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpServer.setExecutor(httpExecutor);
+        httpServer.start();
+        logger.info(String.format("Transcription service listening on port %d", port));
+    }
+
+    private void handleTranscription(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "{ \"result\": \"MethodNotAllowed\" }");
+                return;
+            }
+            TranscriptionRequest request;
+            try (InputStream body = exchange.getRequestBody()) {
+                request = objectMapper.readValue(body, TranscriptionRequest.class);
+            } catch (IOException e) {
+                respond(exchange, 400, "{ \"result\": \"BadRequest\" }");
+                return;
+            }
+            logger.info("received request: " + request.toString());
+            try {
+                if (submit(request)) {
+                    respond(exchange, 202, "{ \"result\": \"Accepted\" }");
+                } else {
+                    respond(exchange, 409, "{ \"result\": \"AlreadyRunning\" }");
+                }
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, "{ \"result\": \"BadRequest\" }");
+            } catch (RejectedExecutionException e) {
+                respond(exchange, 503, "{ \"result\": \"Busy\" }");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        try {
+            respond(exchange, 200, String.format(
+                    "{ \"running\": %d, \"queued\": %d, \"succeeded\": %d, \"failed\": %d }",
+                    running.get(), executor.getQueue().size(), succeeded.get(), failed.get()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handlePerfMark(HttpExchange exchange) throws IOException {
+        try {
+            String query = exchange.getRequestURI().getQuery();
+            if (!"POST".equals(exchange.getRequestMethod()) || query == null || !query.startsWith("enabled=")) {
+                respond(exchange, 400, "{ \"result\": \"BadRequest\" }");
+                return;
+            }
+            PerfMarkTracing.setEnabled(Boolean.parseBoolean(query.substring("enabled=".length())));
+            respond(exchange, 200, String.format("{ \"enabled\": %b }", PerfMarkTracing.isEnabled()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleResponseSampling(HttpExchange exchange) throws IOException {
+        try {
+            String query = exchange.getRequestURI().getQuery();
+            if (!"POST".equals(exchange.getRequestMethod()) || query == null || !query.startsWith("samplesPerSecond=")) {
+                respond(exchange, 400, "{ \"result\": \"BadRequest\" }");
+                return;
+            }
+            try {
+                SpeechResponseSampler.setSamplesPerSecond(Integer.parseInt(query.substring("samplesPerSecond=".length())));
+            } catch (NumberFormatException e) {
+                respond(exchange, 400, "{ \"result\": \"BadRequest\" }");
+                return;
+            }
+            respond(exchange, 200, String.format("{ \"samplesPerSecond\": %d }", SpeechResponseSampler.getSamplesPerSecond()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Stops taking requests and waits for the running contacts to finish
+     *
+     * @param timeoutMillis
+     * @throws InterruptedException
+     */
+    public void shutdown(long timeoutMillis) throws InterruptedException {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpExecutor.shutdown();
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            logger.warn(String.format("%d contact(s) still running after %d ms", running.get(), timeoutMillis));
+        }
+        KVSTranscribeStreamingLambda.metricsUtil.shutdown();
+    }
+
+    public static void main(String[] args) throws Exception {
+        TranscriptionService service = new TranscriptionService(EnvUtils.getInt("SERVICE_MAX_CALLS", 200),
+                EnvUtils.getInt("SERVICE_QUEUE_CAPACITY", 1000));
+        service.startHttpServer(EnvUtils.getInt("SERVICE_PORT", 8080));
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                service.shutdown(SHUTDOWN_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "service-shutdown"));
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,233 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming voice activity detection in front of Google STT.
+ * Chunks of 16bit little endian PCM are split into short frames whose mean absolute amplitude is compared with
+ * an adaptive noise floor. Voiced frames are sent as slices of the chunk, silence is dropped or replaced by
+ * a short keep-alive frame now and then, so that Google STT does not end the session for lack of audio.
+ * A hangover keeps sending for a while after the voice ends, and a pre-roll of the silence just before the voice
+ * starts is sent first, so that the beginning and end of words are not cut.
+ * Only the audio sent to Google STT goes through here, the recording always gets the full audio.
+ * Not thread safe, it is only used by the STT stage of the audio pipeline.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class VoiceActivityDetector {
+
+    public enum Mode {
+        // everything is sent
+        OFF,
+        // silence is not sent at all
+        DROP,
+        // silence is replaced by a short frame of zeros every keep-alive interval
+        KEEP_ALIVE
+    }
+
+    /**
+     * Receives the audio to send to Google STT
+     */
+    public interface AudioSender {
+        void send(ByteBuffer audio) throws IOException;
+    }
+
+    private static final int FRAME_MILLIS = 20;
+    private static final int KEEP_ALIVE_FRAME_MILLIS = 10;
+
+    // Adaptation rates of the noise floor on silent and voiced frames
+    private static final double NOISE_ADAPT_RATE = 0.05;
+    private static final double NOISE_ADAPT_RATE_VOICED = 0.0001;
+
+    // A frame is voiced when its energy is this many times the noise floor
+    private static final double VOICE_TO_NOISE_RATIO = 3.0;
+
+    private final Mode mode;
+    private final int bytesPerMillisecond;
+    private final int frameBytes;
+    private final double minEnergy;
+    private final int hangoverFrames;
+    private final long keepAliveIntervalBytes;
+    private final byte[] keepAliveFrame;
+
+    // Circular buffer of the latest silence, sent when the voice starts
+    private final byte[] preRoll;
+    private int preRollStart = 0;
+    private int preRollLength = 0;
+
+    private double noiseFloor;
+    private int hangoverRemaining = 0;
+    private long silentBytesSinceSend = 0;
+
+    private long voicedBytes = 0;
+    private long skippedBytes = 0;
+    private long keepAliveFrames = 0;
+
+    /**
+     * @param mode
+     * @param bytesPerMillisecond     size of one millisecond of the audio, 16 for 8kHz 16bit mono
+     * @param minEnergy               mean absolute amplitude below which a frame is always silent, above it a frame
+     *                                is voiced when its energy is also 3 times the noise floor, which follows the
+     *                                energy of the silent frames from 0
+     * @param hangoverMillis          audio still sent after the last voiced frame
+     * @param preRollMillis           silence sent before the first voiced frame
+     * @param keepAliveIntervalMillis silence after which a keep-alive frame is sent in KEEP_ALIVE mode
+     */
+    public VoiceActivityDetector(Mode mode, int bytesPerMillisecond, double minEnergy, int hangoverMillis,
+                                 int preRollMillis, int keepAliveIntervalMillis) {
+        this.mode = mode;
+        this.bytesPerMillisecond = bytesPerMillisecond;
+        this.frameBytes = FRAME_MILLIS * bytesPerMillisecond;
+        this.minEnergy = minEnergy;
+        this.hangoverFrames = (hangoverMillis + FRAME_MILLIS - 1) / FRAME_MILLIS;
+        this.keepAliveIntervalBytes = (long) keepAliveIntervalMillis * bytesPerMillisecond;
+        this.keepAliveFrame = new byte[KEEP_ALIVE_FRAME_MILLIS * bytesPerMillisecond];
+        this.preRoll = new byte[preRollMillis * bytesPerMillisecond];
+        this.noiseFloor = 0;
+    }
+
+    /**
+     * @return milliseconds of audio sent to Google STT as voice, including hangover and pre-roll
+     */
+    public long getVoicedMillis() {
+        return voicedBytes / bytesPerMillisecond;
+    }
+
+    /**
+     * @return milliseconds of silence not sent to Google STT
+     */
+    public long getSkippedMillis() {
+        return skippedBytes / bytesPerMillisecond;
+    }
+
+    public long getKeepAliveFrames() {
+        return keepAliveFrames;
+    }
+
+    /**
+     * Sends the voiced parts of the chunk
+     *
+     * @param chunk  PCM audio, its position and limit are not changed
+     * @param sender
+     * @throws IOException
+     */
+    public void process(ByteBuffer chunk, AudioSender sender) throws IOException {
+        if (mode == Mode.OFF) {
+            voicedBytes += chunk.remaining();
+            sender.send(chunk);
+            return;
+        }
+
+        int end = chunk.limit();
+        int runStart = -1;
+        for (int frameStart = chunk.position(); frameStart < end; frameStart += frameBytes) {
+            int frameEnd = Math.min(frameStart + frameBytes, end);
+            boolean send = isVoiced(chunk, frameStart, frameEnd);
+            if (!send && hangoverRemaining > 0) {
+                hangoverRemaining--;
+                send = true;
+            }
+            if (send) {
+                if (runStart < 0) {
+                    runStart = frameStart;
+                    sendPreRoll(sender);
+                }
+            } else {
+                if (runStart >= 0) {
+                    sendSlice(chunk, runStart, frameStart, sender);
+                    runStart = -1;
+                }
+                skip(chunk, frameStart, frameEnd, sender);
+            }
+        }
+        if (runStart >= 0) {
+            sendSlice(chunk, runStart, end, sender);
+        }
+    }
+
+    private boolean isVoiced(ByteBuffer chunk, int from, int to) {
+        long sum = 0;
+        int samples = 0;
+        for (int i = from; i + 1 < to; i += 2) {
+            int sample = (short) ((chunk.get(i) & 0xFF) | (chunk.get(i + 1) << 8));
+            sum += sample < 0 ? -sample : sample;
+            samples++;
+        }
+        if (samples == 0) {
+            return false;
+        }
+        double energy = (double) sum / samples;
+        boolean voiced = energy >= Math.max(minEnergy, noiseFloor * VOICE_TO_NOISE_RATIO);
+        // not held at minEnergy, or the threshold would be 3 times minEnergy and quiet voice would be dropped
+        noiseFloor += (energy - noiseFloor) * (voiced ? NOISE_ADAPT_RATE_VOICED : NOISE_ADAPT_RATE);
+        if (voiced) {
+            hangoverRemaining = hangoverFrames;
+        }
+        return voiced;
+    }
+
+    private void sendSlice(ByteBuffer chunk, int from, int to, AudioSender sender) throws IOException {
+        ByteBuffer slice = chunk.duplicate();
+        slice.limit(to).position(from);
+        voicedBytes += to - from;
+        silentBytesSinceSend = 0;
+        sender.send(slice);
+    }
+
+    private void sendPreRoll(AudioSender sender) throws IOException {
+        if (preRollLength == 0) {
+            return;
+        }
+        byte[] audio = new byte[preRollLength];
+        int firstPart = Math.min(preRollLength, preRoll.length - preRollStart);
+        System.arraycopy(preRoll, preRollStart, audio, 0, firstPart);
+        System.arraycopy(preRoll, 0, audio, firstPart, preRollLength - firstPart);
+        skippedBytes -= preRollLength;
+        voicedBytes += preRollLength;
+        preRollStart = 0;
+        preRollLength = 0;
+        silentBytesSinceSend = 0;
+        sender.send(ByteBuffer.wrap(audio));
+    }
+
+    private void skip(ByteBuffer chunk, int from, int to, AudioSender sender) throws IOException {
+        skippedBytes += to - from;
+        for (int i = from; i < to && preRoll.length > 0; i++) {
+            if (preRollLength < preRoll.length) {
+                preRoll[(preRollStart + preRollLength++) % preRoll.length] = chunk.get(i);
+            } else {
+                preRoll[preRollStart] = chunk.get(i);
+                preRollStart = (preRollStart + 1) % preRoll.length;
+            }
+        }
+
+        silentBytesSinceSend += to - from;
+        if (mode == Mode.KEEP_ALIVE && silentBytesSinceSend >= keepAliveIntervalBytes) {
+            silentBytesSinceSend = 0;
+            keepAliveFrames++;
+            sender.send(ByteBuffer.wrap(keepAliveFrame));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+
+/**
+ * Writes PCM audio straight into a WAV file while the call is running.
+ * The header is written first with empty sizes, and the RIFF and data chunk sizes are patched on close,
+ * so the file is ready to upload as soon as the stream ends.
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class WavRecordingSink implements RecordingSink {
+
+    private static final int HEADER_SIZE = 44;
+
+    private final Path path;
+    private final RecordingFile file;
+    private long dataBytes = 0;
+
+    /**
+     * @param path
+     * @param sampleRate
+     * @param channels
+     * @param bitsPerSample
+     * @throws IOException
+     */
+    public WavRecordingSink(Path path, int sampleRate, int channels, int bitsPerSample) throws IOException {
+        this.path = path;
+        this.file = new RecordingFile(path);
+
+        int blockAlign = channels * bitsPerSample / 8;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[]{'R', 'I', 'F', 'F'});
+        header.putInt(0); // patched on close
+        header.put(new byte[]{'W', 'A', 'V', 'E'});
+        header.put(new byte[]{'f', 'm', 't', ' '});
+        header.putInt(16);
+        header.putShort((short) 1); // PCM
+        header.putShort((short) channels);
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * blockAlign);
+        header.putShort((short) blockAlign);
+        header.putShort((short) bitsPerSample);
+        header.put(new byte[]{'d', 'a', 't', 'a'});
+        header.putInt(0); // patched on close
+        header.flip();
+        file.append(header);
+    }
+
+    @Override
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return number of PCM bytes written so far, without the header
+     */
+    @Override
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    @Override
+    public long getFileBytes() {
+        return file.getWrittenBytes();
+    }
+
+    /**
+     * Appends PCM audio to the data chunk, the chunk is dropped once /tmp is exhausted
+     *
+     * @param pcm
+     * @throws IOException
+     */
+    @Override
+    public void write(ByteBuffer pcm) throws IOException {
+        int length = pcm.remaining();
+        if (file.append(pcm)) {
+            dataBytes += length;
+        }
+    }
+
+    /**
+     * Patches the RIFF and data chunk sizes and closes the file
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (!file.isOpen()) {
+            return;
+        }
+        try {
+            if (file.size() >= HEADER_SIZE) {
+                // a failed write stops the recording at the bytes written
+                long dataBytes = Math.min(this.dataBytes, file.size() - HEADER_SIZE);
+                ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+                size.putInt(0, (int) Math.min(0xFFFFFFFFL, HEADER_SIZE - 8 + dataBytes));
+                file.write(size, 4);
+                size.clear();
+                size.putInt(0, (int) Math.min(0xFFFFFFFFL, dataBytes));
+                file.write(size, 40);
+            }
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the audio ring buffer shared by the STT and the recording stages of the audio pipeline
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class AudioChunkRingBufferTest {
+
+    private static final int CAPACITY = 4;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final AudioBufferPool bufferPool = new AudioBufferPool(Integer.BYTES, CAPACITY * 2);
+
+    @Test
+    public void everyConsumerSeesEveryChunkInOrderAcrossWraparound() throws Exception {
+        AudioChunkRingBuffer ring = new AudioChunkRingBuffer(CAPACITY, 2, bufferPool);
+
+        int chunks = CAPACITY * 5 + 1;
+        int taken = 0;
+        for (int i = 0; i < chunks; i++) {
+            ring.put(null, chunk(i), timecode(i), null);
+            if (ring.getDepth(0) == CAPACITY || i == chunks - 1) {
+                for (int consumer = 0; consumer < 2; consumer++) {
+                    for (int expected = taken; expected <= i; expected++) {
+                        assertChunk(expected, ring.take(consumer));
+                        ring.release(consumer);
+                    }
+                }
+                taken = i + 1;
+            }
+        }
+
+        assertEquals(chunks, ring.getPublished());
+        assertEquals(chunks, ring.getReleased(0));
+        assertEquals(chunks, ring.getReleased(1));
+        assertEquals(CAPACITY, ring.getMaxDepth(0));
+        assertEquals(0, ring.getProducerWaits());
+        // the slots return their buffers to the pool, so a full ring is the most ever allocated
+        assertEquals(CAPACITY, bufferPool.getAllocatedBuffers());
+    }
+
+    @Test
+    public void slowConsumerBlocksProducer() throws Exception {
+        final AudioChunkRingBuffer ring = new AudioChunkRingBuffer(CAPACITY, 2, bufferPool);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < CAPACITY; i++) {
+                ring.put(null, chunk(i), timecode(i), null);
+                assertChunk(i, ring.take(0));
+                ring.release(0);
+            }
+            // the fast consumer is done, but the slow one has not released anything yet
+            assertFalse(ring.offer(null, chunk(CAPACITY), timecode(CAPACITY), null));
+
+            Future<?> producer = executor.submit(() -> {
+                ring.put(null, chunk(CAPACITY), timecode(CAPACITY), null);
+                return null;
+            });
+            awaitProducerWait(ring);
+            assertFalse(producer.isDone());
+            assertEquals(CAPACITY, ring.getPublished());
+
+            assertChunk(0, ring.take(1));
+            ring.release(1);
+            producer.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+            assertEquals(CAPACITY + 1, ring.getPublished());
+            assertEquals(1, ring.getProducerWaits());
+            for (int i = 1; i <= CAPACITY; i++) {
+                assertChunk(i, ring.take(1));
+                ring.release(1);
+            }
+            assertChunk(CAPACITY, ring.take(0));
+            ring.release(0);
+            assertTrue(ring.offer(null, chunk(CAPACITY + 1), timecode(CAPACITY + 1), null));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closeDrainsThenWakesBlockedConsumer() throws Exception {
+        final AudioChunkRingBuffer ring = new AudioChunkRingBuffer(CAPACITY, 1, bufferPool);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ring.put(null, chunk(0), timecode(0), null);
+            Future<Integer> consumer = executor.submit(() -> {
+                int taken = 0;
+                while (ring.take(0) != null) {
+                    ring.release(0);
+                    taken++;
+                }
+                return taken;
+            });
+            awaitReleased(ring, 1);
+            assertFalse(consumer.isDone());
+
+            ring.put(null, chunk(1), timecode(1), null);
+            ring.close();
+            assertEquals(2, (int) consumer.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            assertNull(ring.take(0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void interruptWakesBlockedProducer() throws Exception {
+        final AudioChunkRingBuffer ring = new AudioChunkRingBuffer(CAPACITY, 1, bufferPool);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < CAPACITY; i++) {
+                ring.put(null, chunk(i), timecode(i), null);
+            }
+            Future<?> producer = executor.submit(() -> {
+                ring.put(null, chunk(CAPACITY), timecode(CAPACITY), null);
+                return null;
+            });
+            awaitProducerWait(ring);
+
+            executor.shutdownNow();
+            try {
+                producer.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                fail("put returned while the ring was full");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof InterruptedException);
+            }
+            assertEquals(CAPACITY, ring.getPublished());
+            for (int i = 0; i < CAPACITY; i++) {
+                assertChunk(i, ring.take(0));
+                ring.release(0);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void interruptWakesBlockedConsumer() throws Exception {
+        final AudioChunkRingBuffer ring = new AudioChunkRingBuffer(CAPACITY, 1, bufferPool);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final AtomicReference<Thread> consumerThread = new AtomicReference<Thread>();
+        Future<?> consumer = executor.submit(() -> {
+            consumerThread.set(Thread.currentThread());
+            return ring.take(0);
+        });
+        awaitWaiting(consumerThread);
+
+        executor.shutdownNow();
+        try {
+            consumer.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            fail("take returned from an empty ring");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        }
+    }
+
+    private ByteBuffer chunk(int value) {
+        ByteBuffer buffer = bufferPool.acquire();
+        buffer.putInt(value);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void assertChunk(int expected, AudioChunkRingBuffer.AudioChunk chunk) {
+        assertEquals(expected, chunk.getData().duplicate().getInt());
+        assertEquals(timecode(expected), chunk.getTimecodeMillis());
+    }
+
+    private static long timecode(int value) {
+        return value * 20L;
+    }
+
+    private static void awaitProducerWait(AudioChunkRingBuffer ring) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (ring.getProducerWaits() == 0) {
+            assertTrue("producer never blocked", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void awaitReleased(AudioChunkRingBuffer ring, long released) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (ring.getReleased(0) < released) {
+            assertTrue("consumer never released", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void awaitWaiting(AtomicReference<Thread> thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (thread.get() == null || thread.get().getState() != Thread.State.WAITING) {
+            assertTrue("consumer never blocked", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the hand over of audio chunks from the KVS reader to the STT and recording sinks
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class AudioPipelineTest {
+
+    private static final int CAPACITY = 8;
+
+    private final AudioBufferPool bufferPool = new AudioBufferPool(320, CAPACITY);
+
+    @Test
+    public void backloggedOnceQuarterOfRingIsPending() throws Exception {
+        AudioPipeline pipeline = new AudioPipeline("test", CAPACITY, bufferPool);
+
+        for (int i = 1; i < CAPACITY / 4; i++) {
+            pipeline.publish(null, bufferPool.acquire(), i);
+        }
+        assertFalse(pipeline.isBacklogged());
+        pipeline.publish(null, bufferPool.acquire(), CAPACITY / 4);
+        assertTrue(pipeline.isBacklogged());
+    }
+
+    @Test
+    public void closeDrainsEveryChunkEvenIfSinksFail() throws Exception {
+        AudioPipeline pipeline = new AudioPipeline("test", CAPACITY, bufferPool);
+        pipeline.start();
+
+        // without a track transcriber both sinks fail on every chunk, which must not stall the reader
+        int chunks = CAPACITY * 3;
+        for (int i = 0; i < chunks; i++) {
+            pipeline.publish(null, bufferPool.acquire(), i);
+        }
+        pipeline.close(5000);
+
+        assertEquals(chunks, pipeline.getPublishedChunks());
+        assertEquals(chunks, pipeline.getSentChunks());
+        assertEquals(chunks, pipeline.getRingBuffer().getReleased(AudioPipeline.RECORDING_CONSUMER));
+    }
+}
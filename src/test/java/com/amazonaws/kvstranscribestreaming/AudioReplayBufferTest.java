@@ -0,0 +1,132 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the audio kept to be sent again to a new Speech session after a rollover
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class AudioReplayBufferTest {
+
+    @Test
+    public void readsFromOffsetBeforeWraparound() {
+        AudioReplayBuffer buffer = new AudioReplayBuffer(16);
+        buffer.append(audio(0, 10));
+
+        assertEquals(10, buffer.getWrittenBytes());
+        assertEquals(0, buffer.getOldestOffset());
+        assertArrayEquals(audio(4, 6).array(), concat(buffer.read(4, 1024)));
+        assertTrue(buffer.read(10, 1024).isEmpty());
+    }
+
+    @Test
+    public void keepsLatestAudioAcrossWraparound() {
+        AudioReplayBuffer buffer = new AudioReplayBuffer(16);
+        for (int offset = 0; offset < 50; offset += 7) {
+            buffer.append(audio(offset, 7));
+        }
+
+        assertEquals(56, buffer.getWrittenBytes());
+        assertEquals(40, buffer.getOldestOffset());
+        // older audio is overwritten, the read starts at the oldest byte kept
+        assertArrayEquals(audio(40, 16).array(), concat(buffer.read(0, 1024)));
+        assertArrayEquals(audio(50, 6).array(), concat(buffer.read(50, 1024)));
+    }
+
+    @Test
+    public void appendLargerThanCapacityKeepsItsEnd() {
+        AudioReplayBuffer buffer = new AudioReplayBuffer(16);
+        buffer.append(audio(0, 3));
+        buffer.append(audio(3, 40));
+
+        assertEquals(43, buffer.getWrittenBytes());
+        assertArrayEquals(audio(27, 16).array(), concat(buffer.read(0, 1024)));
+    }
+
+    @Test
+    public void readSplitsIntoChunks() {
+        AudioReplayBuffer buffer = new AudioReplayBuffer(16);
+        buffer.append(audio(0, 28));
+
+        List<ByteString> chunks = buffer.read(14, 5);
+        for (ByteString chunk : chunks) {
+            assertTrue(chunk.size() <= 5);
+        }
+        assertArrayEquals(audio(14, 14).array(), concat(chunks));
+    }
+
+    @Test
+    public void appendDoesNotMoveSourcePosition() {
+        AudioReplayBuffer buffer = new AudioReplayBuffer(16);
+        ByteBuffer audio = audio(0, 8);
+        buffer.append(audio);
+
+        assertEquals(0, audio.position());
+        assertEquals(8, audio.remaining());
+    }
+
+    @Test
+    public void zeroCapacityReplaysNothing() {
+        AudioReplayBuffer buffer = new AudioReplayBuffer(0);
+        buffer.append(audio(0, 10));
+        buffer.append(audio(10, 10));
+
+        assertEquals(20, buffer.getWrittenBytes());
+        assertEquals(20, buffer.getOldestOffset());
+        assertTrue(buffer.read(0, 1024).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeCapacity() {
+        new AudioReplayBuffer(-1);
+    }
+
+    /**
+     * @return audio whose bytes are their offset in the audio of the track
+     */
+    private static ByteBuffer audio(int offset, int length) {
+        byte[] audio = new byte[length];
+        for (int i = 0; i < length; i++) {
+            audio[i] = (byte) (offset + i);
+        }
+        return ByteBuffer.wrap(audio);
+    }
+
+    private static byte[] concat(List<ByteString> chunks) {
+        ByteString audio = ByteString.EMPTY;
+        for (ByteString chunk : chunks) {
+            audio = audio.concat(chunk);
+        }
+        return audio.toByteArray();
+    }
+}
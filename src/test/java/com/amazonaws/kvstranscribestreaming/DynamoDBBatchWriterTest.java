@@ -0,0 +1,168 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the batching and the retries of the writes of the transcript segments
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class DynamoDBBatchWriterTest {
+
+    private static final String TABLE = "TranscriptSegment";
+    private static final long BATCH_WINDOW_MILLIS = 200;
+
+    private DynamoDBBatchWriter batchWriter;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (batchWriter != null) {
+            batchWriter.close(1000);
+        }
+    }
+
+    @Test
+    public void batchesUpToMaxBatchSize() throws Exception {
+        LocalDynamoDB ddb = new LocalDynamoDB();
+        batchWriter = new DynamoDBBatchWriter(new DynamoDB(ddb), BATCH_WINDOW_MILLIS);
+
+        int items = DynamoDBBatchWriter.MAX_BATCH_SIZE * 2 + 10;
+        for (int i = 0; i < items; i++) {
+            batchWriter.write(TABLE, item("segment-" + i, i));
+        }
+
+        assertTrue(batchWriter.flush(5000));
+        assertEquals(items, ddb.getItems(TABLE).size());
+        assertEquals(3, ddb.getBatchWrites());
+    }
+
+    @Test
+    public void writesOnlyLastVersionOfCoalescedItem() throws Exception {
+        LocalDynamoDB ddb = new LocalDynamoDB();
+        batchWriter = new DynamoDBBatchWriter(new DynamoDB(ddb), BATCH_WINDOW_MILLIS);
+
+        batchWriter.write(TABLE, item("segment-0", 0), "segment-0");
+        batchWriter.write(TABLE, item("segment-1", 1), "segment-1");
+        batchWriter.write(TABLE, item("segment-0", 2), "segment-0");
+        batchWriter.write(TABLE, item("segment-2", 3));
+        batchWriter.write(TABLE, item("segment-0", 4), "segment-0");
+
+        assertTrue(batchWriter.flush(5000));
+        List<Map<String, AttributeValue>> written = ddb.getItems(TABLE);
+        assertEquals(1, ddb.getBatchWrites());
+        assertEquals(3, written.size());
+        for (Map<String, AttributeValue> item : written) {
+            if ("segment-0".equals(item.get("SegmentId").getS())) {
+                assertEquals("4", item.get("Version").getN());
+            }
+        }
+    }
+
+    @Test
+    public void retriesUnprocessedItems() throws Exception {
+        LocalDynamoDB ddb = new ThrottledDynamoDB(10, 0);
+        batchWriter = new DynamoDBBatchWriter(new DynamoDB(ddb), BATCH_WINDOW_MILLIS);
+
+        for (int i = 0; i < DynamoDBBatchWriter.MAX_BATCH_SIZE; i++) {
+            batchWriter.write(TABLE, item("segment-" + i, i));
+        }
+
+        assertTrue(batchWriter.flush(5000));
+        assertEquals(DynamoDBBatchWriter.MAX_BATCH_SIZE, ddb.getItems(TABLE).size());
+        assertEquals(3, ddb.getBatchWrites());
+    }
+
+    @Test
+    public void retriesAfterException() throws Exception {
+        LocalDynamoDB ddb = new ThrottledDynamoDB(Integer.MAX_VALUE, 2);
+        batchWriter = new DynamoDBBatchWriter(new DynamoDB(ddb), BATCH_WINDOW_MILLIS);
+
+        batchWriter.write(TABLE, item("segment-0", 0));
+        batchWriter.write(TABLE, item("segment-1", 1));
+
+        assertTrue(batchWriter.flush(5000));
+        assertEquals(2, ddb.getItems(TABLE).size());
+        assertEquals(1, ddb.getBatchWrites());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsWritesAfterClose() throws Exception {
+        batchWriter = new DynamoDBBatchWriter(new DynamoDB(new LocalDynamoDB()), BATCH_WINDOW_MILLIS);
+        batchWriter.close(1000);
+
+        batchWriter.write(TABLE, item("segment-0", 0));
+    }
+
+    private static Item item(String segmentId, int version) {
+        return new Item().withPrimaryKey("SegmentId", segmentId).withNumber("Version", version);
+    }
+
+    /**
+     * Fails the first requests, then processes a limited number of items per request and returns the rest as unprocessed
+     */
+    private static class ThrottledDynamoDB extends LocalDynamoDB {
+        private final int maxItemsPerRequest;
+        private final AtomicInteger failures;
+
+        private ThrottledDynamoDB(int maxItemsPerRequest, int failures) {
+            this.maxItemsPerRequest = maxItemsPerRequest;
+            this.failures = new AtomicInteger(failures);
+        }
+
+        @Override
+        public BatchWriteItemResult batchWriteItem(BatchWriteItemRequest request) {
+            if (failures.getAndDecrement() > 0) {
+                throw new AmazonServiceException("Throughput exceeds the current capacity of your table");
+            }
+            Map<String, List<WriteRequest>> processed = new HashMap<String, List<WriteRequest>>();
+            Map<String, List<WriteRequest>> unprocessed = new HashMap<String, List<WriteRequest>>();
+            int items = 0;
+            for (Map.Entry<String, List<WriteRequest>> table : request.getRequestItems().entrySet()) {
+                for (WriteRequest writeRequest : table.getValue()) {
+                    Map<String, List<WriteRequest>> target = items++ < maxItemsPerRequest ? processed : unprocessed;
+                    target.computeIfAbsent(table.getKey(), t -> new ArrayList<WriteRequest>()).add(writeRequest);
+                }
+            }
+            super.batchWriteItem(new BatchWriteItemRequest().withRequestItems(processed));
+            return new BatchWriteItemResult().withUnprocessedItems(unprocessed);
+        }
+    }
+}
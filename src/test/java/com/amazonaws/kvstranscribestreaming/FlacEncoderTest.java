@@ -0,0 +1,152 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the FLAC encoding of the audio sent to Google STT and of the recordings is lossless
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class FlacEncoderTest {
+
+    private static final int SAMPLE_RATE = 8000;
+
+    private final Random random = new Random(1);
+
+    @Test
+    public void silenceRoundTrip() {
+        byte[] pcm = new byte[SAMPLE_RATE * 2 * 2];
+
+        byte[] flac = assertRoundTrip(pcm, 320);
+        // a constant subframe and the frame header for each 20 ms chunk
+        assertTrue(flac.length < pcm.length / 20);
+    }
+
+    @Test
+    public void toneRoundTrip() {
+        ByteBuffer pcm = pcm(SAMPLE_RATE * 3);
+        for (int i = 0; i < SAMPLE_RATE * 3; i++) {
+            pcm.putShort((short) (8000 * Math.sin(i * 0.05) + random.nextGaussian() * 50));
+        }
+
+        byte[] flac = assertRoundTrip(pcm.array(), 320);
+        // fixed predictors
+        assertTrue(flac.length < pcm.capacity() * 3 / 4);
+    }
+
+    @Test
+    public void noiseAndFullScaleRoundTrip() {
+        ByteBuffer pcm = pcm(SAMPLE_RATE * 2);
+        for (int i = 0; i < SAMPLE_RATE; i++) {
+            pcm.putShort((short) (random.nextInt(65536) - 32768));
+        }
+        for (int i = 0; i < SAMPLE_RATE; i++) {
+            pcm.putShort(i % 3 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE);
+        }
+
+        assertRoundTrip(pcm.array(), 320);
+    }
+
+    @Test
+    public void chunksOfAnySizeRoundTrip() {
+        ByteBuffer pcm = pcm(SAMPLE_RATE * 10);
+        for (int i = 0; i < SAMPLE_RATE * 10; i++) {
+            pcm.putShort((short) (4000 * Math.sin(i * 0.01) + random.nextGaussian() * 200));
+        }
+        byte[] audio = pcm.array();
+
+        FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE);
+        FlacDecoder decoder = new FlacDecoder();
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        long encodedBytes = 0;
+        int position = 0;
+        while (position < audio.length) {
+            // shorter than a block, and longer than the largest block
+            int samples = random.nextBoolean() ? 1 + random.nextInt(FlacEncoder.MIN_BLOCK_SIZE * 2)
+                    : 1 + random.nextInt(FlacEncoder.MAX_BLOCK_SIZE * 2);
+            int length = Math.min(audio.length - position, samples * 2);
+            byte[] encoded = encoder.encode(ByteBuffer.wrap(audio, position, length));
+            encodedBytes += encoded.length;
+            byte[] frames = decoder.decode(encoded);
+            decoded.write(frames, 0, frames.length);
+            position += length;
+        }
+        byte[] encoded = encoder.finish();
+        encodedBytes += encoded.length;
+        byte[] frames = decoder.decode(encoded);
+        decoded.write(frames, 0, frames.length);
+
+        assertArrayEquals(audio, decoded.toByteArray());
+        assertEquals(audio.length, encoder.getPcmBytes());
+        assertEquals(encodedBytes, encoder.getEncodedBytes());
+    }
+
+    @Test
+    public void finishedHeaderHasSameLength() {
+        FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE);
+        encoder.encode(ByteBuffer.wrap(new byte[SAMPLE_RATE * 2]));
+        encoder.finish();
+
+        assertEquals(encoder.streamHeader().length, encoder.streamHeader(new byte[16]).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMoreThanTwoChannels() {
+        new FlacEncoder(SAMPLE_RATE, 3);
+    }
+
+    private static ByteBuffer pcm(int samples) {
+        return ByteBuffer.allocate(samples * 2).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] assertRoundTrip(byte[] pcm, int chunkBytes) {
+        FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE);
+        FlacDecoder decoder = new FlacDecoder();
+        ByteArrayOutputStream flac = new ByteArrayOutputStream();
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        for (int position = 0; position < pcm.length; position += chunkBytes) {
+            byte[] encoded = encoder.encode(ByteBuffer.wrap(pcm, position, Math.min(chunkBytes, pcm.length - position)));
+            flac.write(encoded, 0, encoded.length);
+            byte[] frames = decoder.decode(encoded);
+            decoded.write(frames, 0, frames.length);
+        }
+        byte[] encoded = encoder.finish();
+        flac.write(encoded, 0, encoded.length);
+        byte[] frames = decoder.decode(encoded);
+        decoded.write(frames, 0, frames.length);
+
+        assertArrayEquals(pcm, decoded.toByteArray());
+        assertEquals(pcm.length / 2, decoder.getSamples());
+        return flac.toByteArray();
+    }
+}
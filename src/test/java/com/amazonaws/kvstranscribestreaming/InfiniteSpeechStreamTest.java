@@ -0,0 +1,146 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the final results stay continuous when the Speech session is rolled over, against a {@link LocalSpeechServer}
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class InfiniteSpeechStreamTest {
+
+    private static final int BYTES_PER_MILLISECOND = 16;
+    private static final int CHUNK_MILLIS = 20;
+    private static final long SEGMENT_MILLIS = 1000;
+
+    // "[local 1-12] 36000-37065 ms", offsets in the audio of the session
+    private static final Pattern TRANSCRIPT = Pattern.compile("\\] (\\d+)-(\\d+) ms");
+
+    private LocalSpeechServer server;
+    private final MetricsUtil metrics = new MetricsUtil(null, MetricsUtil.Mode.OFF, false, 60000);
+    // start and end of each final result in the audio of the track
+    private final List<long[]> finals = new ArrayList<long[]>();
+
+    @After
+    public void tearDown() {
+        ClientRegistry.setSpeechSettings(null);
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void finalResultsAreContinuousAcrossRollovers() throws Exception {
+        startServer(0);
+        InfiniteSpeechStream stream = stream(1000, 300);
+
+        long audioMillis = sendAudio(stream, 8000);
+
+        assertTrue(stream.isCompleted());
+        assertTrue("no rollover: " + server, server.getStreams() > 2);
+        assertContinuous(audioMillis);
+        assertEquals(audioMillis * BYTES_PER_MILLISECOND, stream.getFinalizedOffset());
+    }
+
+    @Test
+    public void audioIsReplayedAfterSessionFails() throws Exception {
+        // the server ends each stream with OUT_OF_RANGE long before the stream rolls over by itself
+        startServer(1500);
+        InfiniteSpeechStream stream = stream(60000, 1000);
+
+        long audioMillis = sendAudio(stream, 8000);
+
+        assertTrue(stream.isCompleted());
+        assertTrue("no stream limit reached: " + server, server.getStreamLimitsReached() > 0);
+        assertContinuous(audioMillis);
+    }
+
+    private void startServer(long streamLimitMillis) throws Exception {
+        server = new LocalSpeechServer(0, BYTES_PER_MILLISECOND, SEGMENT_MILLIS, 250, 100, 0, streamLimitMillis).start();
+        ClientRegistry.setSpeechSettings(ClientRegistry.getSpeechSettings("localhost:" + server.getPort(), true));
+    }
+
+    private InfiniteSpeechStream stream(long streamingLimitMillis, long rolloverWindowMillis) {
+        StreamingRecognitionConfig config = StreamingRecognitionConfig.newBuilder()
+                .setConfig(RecognitionConfig.newBuilder()
+                        .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
+                        .setSampleRateHertz(8000))
+                .setInterimResults(true)
+                .build();
+        return new InfiniteSpeechStream("test", config, (response, sessionStartMillis) -> {
+            for (StreamingRecognitionResult result : response.getResultsList()) {
+                if (result.getIsFinal()) {
+                    Matcher matcher = TRANSCRIPT.matcher(result.getAlternatives(0).getTranscript());
+                    assertTrue(matcher.find());
+                    synchronized (finals) {
+                        finals.add(new long[]{sessionStartMillis + Long.parseLong(matcher.group(1)),
+                                sessionStartMillis + Long.parseLong(matcher.group(2))});
+                    }
+                }
+            }
+        }, BYTES_PER_MILLISECOND, streamingLimitMillis, rolloverWindowMillis, 30000, 1000,
+                metrics.stat("ResultLatency", StandardUnit.Milliseconds, null));
+    }
+
+    /**
+     * Sends silence twice as fast as real time, then finishes the stream
+     *
+     * @return duration of the audio sent
+     */
+    private static long sendAudio(InfiniteSpeechStream stream, long audioMillis) throws Exception {
+        stream.start();
+        for (long sent = 0; sent < audioMillis; sent += CHUNK_MILLIS) {
+            stream.send(ByteBuffer.wrap(new byte[CHUNK_MILLIS * BYTES_PER_MILLISECOND]));
+            Thread.sleep(CHUNK_MILLIS / 2);
+        }
+        stream.finish(5000);
+        return audioMillis;
+    }
+
+    private void assertContinuous(long audioMillis) {
+        long end = 0;
+        synchronized (finals) {
+            assertTrue(finals.size() >= audioMillis / SEGMENT_MILLIS);
+            for (long[] result : finals) {
+                assertEquals("gap or overlap before the final result ending at " + result[1], end, result[0]);
+                end = result[1];
+            }
+        }
+        assertEquals(audioMillis, end);
+    }
+}
@@ -0,0 +1,203 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the alignment of the two tracks of a call in the stereo recording
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class StereoRecorderTest {
+
+    private static final int SAMPLE_RATE = 8000;
+    private static final int SAMPLES_PER_MILLISECOND = SAMPLE_RATE / 1000;
+    private static final int MAX_LAG_MILLIS = 2000;
+    private static final long ORIGIN_MILLIS = 1700000000000L;
+
+    private static final String LEFT = KVSUtils.TrackName.AUDIO_FROM_CUSTOMER.getName();
+    private static final String RIGHT = KVSUtils.TrackName.AUDIO_TO_CUSTOMER.getName();
+
+    private final MemorySink sink = new MemorySink();
+    private final StereoRecorder recorder = new StereoRecorder(sink, null, SAMPLE_RATE, MAX_LAG_MILLIS);
+
+    @Test
+    public void alignsTracksReadOneAfterTheOther() throws Exception {
+        for (int millis = 0; millis < 1000; millis += 100) {
+            write(LEFT, millis, millis, 100);
+        }
+        assertEquals(0, sink.getDataBytes());
+        for (int millis = 0; millis < 1000; millis += 100) {
+            write(RIGHT, millis, millis, 100);
+        }
+        recorder.flush();
+
+        assertChannel(0, 1000, 1000, -1, -1);
+        assertChannel(1, 1000, 1000, -1, -1);
+    }
+
+    @Test
+    public void fillsGapWithSilence() throws Exception {
+        write(LEFT, 0, 0, 500);
+        write(LEFT, 800, 800, 200);
+        write(RIGHT, 0, 0, 1000);
+        recorder.flush();
+
+        assertChannel(0, 1000, 1000, 500, 800);
+        assertChannel(1, 1000, 1000, -1, -1);
+    }
+
+    @Test
+    public void dropsRepeatedAudio() throws Exception {
+        write(RIGHT, 0, 0, 300);
+        write(RIGHT, 200, 200, 100);
+        write(RIGHT, 300, 300, 200);
+        write(LEFT, 0, 0, 500);
+        recorder.flush();
+
+        assertChannel(0, 500, 500, -1, -1);
+        assertChannel(1, 500, 500, -1, -1);
+    }
+
+    @Test
+    public void appendsChunkWithinTimecodeJitter() throws Exception {
+        write(LEFT, 0, 0, 100);
+        // 5 ms late, then 1 ms early, within the drift allowed for millisecond timecodes
+        write(LEFT, 105, 100, 100);
+        write(LEFT, 199, 200, 100);
+        write(RIGHT, 0, 0, 300);
+        recorder.flush();
+
+        assertChannel(0, 300, 300, -1, -1);
+    }
+
+    @Test
+    public void appendsChunkWithoutTimecode() throws Exception {
+        write(LEFT, 0, 0, 100);
+        recorder.write(LEFT, AudioChunkAssembler.NO_TIMECODE, audio(LEFT, 100, 100));
+        write(RIGHT, 0, 0, 200);
+        recorder.flush();
+
+        assertChannel(0, 200, 200, -1, -1);
+    }
+
+    @Test
+    public void fillsStoppedTrackWithSilenceAfterMaxLag() throws Exception {
+        write(RIGHT, 0, 0, 1000);
+        for (int millis = 0; millis < 5000; millis += 100) {
+            write(LEFT, millis, millis, 100);
+        }
+        // written while the call goes on, without waiting for the stopped track
+        assertTrue(sink.getDataBytes() >= (5000 - MAX_LAG_MILLIS) * SAMPLES_PER_MILLISECOND * 4);
+
+        recorder.flush();
+        assertChannel(0, 5000, 5000, -1, -1);
+        assertChannel(1, 5000, 1000, -1, -1);
+    }
+
+    /**
+     * Writes audio of a track whose samples tell the time they were recorded at
+     */
+    private void write(String trackName, long timecodeMillis, int audioMillis, int durationMillis) throws Exception {
+        recorder.write(trackName, ORIGIN_MILLIS + timecodeMillis, audio(trackName, audioMillis, durationMillis));
+    }
+
+    /**
+     * @return samples of millisecond n worth n + 1 on the left and -(n + 1) on the right
+     */
+    private static ByteBuffer audio(String trackName, int startMillis, int durationMillis) {
+        int sign = LEFT.equals(trackName) ? 1 : -1;
+        ByteBuffer audio = ByteBuffer.allocate(durationMillis * SAMPLES_PER_MILLISECOND * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < durationMillis * SAMPLES_PER_MILLISECOND; i++) {
+            audio.putShort((short) (sign * (startMillis + i / SAMPLES_PER_MILLISECOND + 1)));
+        }
+        audio.flip();
+        return audio;
+    }
+
+    /**
+     * @param channel           0 for the left, 1 for the right
+     * @param totalMillis       duration of the recording
+     * @param endMillis         end of the audio of the channel, it is silent after
+     * @param silenceFromMillis start of a silence within the audio, or -1
+     * @param silenceToMillis   end of the silence
+     */
+    private void assertChannel(int channel, int totalMillis, int endMillis, int silenceFromMillis, int silenceToMillis) {
+        ShortBuffer samples = ByteBuffer.wrap(sink.getData()).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        assertEquals(totalMillis * SAMPLES_PER_MILLISECOND * 2, samples.remaining());
+        int sign = channel == 0 ? 1 : -1;
+        for (int frame = 0; frame < totalMillis * SAMPLES_PER_MILLISECOND; frame++) {
+            int millis = frame / SAMPLES_PER_MILLISECOND;
+            boolean silent = millis >= endMillis || (millis >= silenceFromMillis && millis < silenceToMillis);
+            assertEquals("channel " + channel + " at " + millis + " ms",
+                    silent ? 0 : sign * (millis + 1), samples.get(2 * frame + channel));
+        }
+    }
+
+    /**
+     * Keeps the interleaved PCM in memory
+     */
+    private static class MemorySink implements RecordingSink {
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        @Override
+        public Path getPath() {
+            return Paths.get("memory");
+        }
+
+        @Override
+        public long getDataBytes() {
+            return data.size();
+        }
+
+        @Override
+        public long getFileBytes() {
+            return data.size();
+        }
+
+        @Override
+        public void write(ByteBuffer pcm) {
+            while (pcm.hasRemaining()) {
+                data.write(pcm.get());
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private byte[] getData() {
+            return data.toByteArray();
+        }
+    }
+}
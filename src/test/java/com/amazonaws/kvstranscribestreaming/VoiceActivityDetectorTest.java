@@ -0,0 +1,160 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests of the silence detection in front of Google STT
+ * 
+ * 
+ * MIT License
+ * 
+ * Copyright (c) 2021 YugaTamae
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+public class VoiceActivityDetectorTest {
+
+    private static final int BYTES_PER_MILLISECOND = 16;
+    private static final int CHUNK_MILLIS = 100;
+    private static final double MIN_ENERGY = 100;
+    private static final int HANGOVER_MILLIS = 200;
+    private static final int PRE_ROLL_MILLIS = 100;
+    private static final int KEEP_ALIVE_INTERVAL_MILLIS = 500;
+
+    private final Random random = new Random(1);
+    private final List<byte[]> sent = new ArrayList<byte[]>();
+    private final VoiceActivityDetector.AudioSender sender = audio -> {
+        byte[] bytes = new byte[audio.remaining()];
+        audio.duplicate().get(bytes);
+        sent.add(bytes);
+    };
+
+    @Test
+    public void offSendsEverything() throws Exception {
+        VoiceActivityDetector detector = detector(VoiceActivityDetector.Mode.OFF);
+        List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        VoiceActivityDetector.AudioSender sameBuffer = chunks::add;
+
+        ByteBuffer chunk = ByteBuffer.wrap(silence(CHUNK_MILLIS));
+        detector.process(chunk, sameBuffer);
+
+        assertEquals(1, chunks.size());
+        assertSame(chunk, chunks.get(0));
+        assertEquals(CHUNK_MILLIS, detector.getVoicedMillis());
+        assertEquals(0, detector.getSkippedMillis());
+    }
+
+    @Test
+    public void dropSendsVoiceWithPreRollAndHangover() throws Exception {
+        VoiceActivityDetector detector = detector(VoiceActivityDetector.Mode.DROP);
+        byte[] audio = concat(silence(1000), tone(500), silence(1000));
+
+        process(detector, audio);
+
+        // the end of the silence before the voice, the voice, and the start of the silence after it
+        int from = (1000 - PRE_ROLL_MILLIS) * BYTES_PER_MILLISECOND;
+        int to = (1500 + HANGOVER_MILLIS) * BYTES_PER_MILLISECOND;
+        assertArrayEquals(Arrays.copyOfRange(audio, from, to), concat(sent.toArray(new byte[0][])));
+        assertEquals(PRE_ROLL_MILLIS + 500 + HANGOVER_MILLIS, detector.getVoicedMillis());
+        assertEquals(2500 - detector.getVoicedMillis(), detector.getSkippedMillis());
+        assertEquals(0, detector.getKeepAliveFrames());
+    }
+
+    @Test
+    public void keepAliveReplacesSilence() throws Exception {
+        VoiceActivityDetector detector = detector(VoiceActivityDetector.Mode.KEEP_ALIVE);
+
+        process(detector, silence(2000));
+
+        assertEquals(2000 / KEEP_ALIVE_INTERVAL_MILLIS, detector.getKeepAliveFrames());
+        assertEquals(detector.getKeepAliveFrames(), sent.size());
+        for (byte[] frame : sent) {
+            assertArrayEquals(new byte[frame.length], frame);
+        }
+        assertEquals(0, detector.getVoicedMillis());
+        assertEquals(2000, detector.getSkippedMillis());
+    }
+
+    @Test
+    public void processKeepsChunkPosition() throws Exception {
+        VoiceActivityDetector detector = detector(VoiceActivityDetector.Mode.DROP);
+        ByteBuffer chunk = ByteBuffer.wrap(concat(silence(CHUNK_MILLIS), tone(CHUNK_MILLIS)));
+        chunk.position(CHUNK_MILLIS * BYTES_PER_MILLISECOND / 2);
+
+        detector.process(chunk, sender);
+
+        assertEquals(CHUNK_MILLIS * BYTES_PER_MILLISECOND / 2, chunk.position());
+        assertEquals(chunk.capacity(), chunk.limit());
+    }
+
+    private static VoiceActivityDetector detector(VoiceActivityDetector.Mode mode) {
+        return new VoiceActivityDetector(mode, BYTES_PER_MILLISECOND, MIN_ENERGY, HANGOVER_MILLIS, PRE_ROLL_MILLIS,
+                KEEP_ALIVE_INTERVAL_MILLIS);
+    }
+
+    private void process(VoiceActivityDetector detector, byte[] audio) throws Exception {
+        int chunkBytes = CHUNK_MILLIS * BYTES_PER_MILLISECOND;
+        for (int position = 0; position < audio.length; position += chunkBytes) {
+            detector.process(ByteBuffer.wrap(audio, position, Math.min(chunkBytes, audio.length - position)).slice(), sender);
+        }
+    }
+
+    /**
+     * @return background noise well below the minimum energy
+     */
+    private byte[] silence(int millis) {
+        ByteBuffer audio = pcm(millis);
+        while (audio.hasRemaining()) {
+            audio.putShort((short) (random.nextInt(21) - 10));
+        }
+        return audio.array();
+    }
+
+    private static byte[] tone(int millis) {
+        ByteBuffer audio = pcm(millis);
+        for (int i = 0; audio.hasRemaining(); i++) {
+            audio.putShort((short) (3000 * Math.sin(i * 0.3)));
+        }
+        return audio.array();
+    }
+
+    private static ByteBuffer pcm(int millis) {
+        return ByteBuffer.allocate(millis * BYTES_PER_MILLISECOND).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream audio = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            audio.write(part, 0, part.length);
+        }
+        return audio.toByteArray();
+    }
+}